@@ -1,8 +1,10 @@
 package io.github.cosmic_terror_turtle.ctt_verdant_villagers;
 
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.block.ModBlocks;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.data.ModResources;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.data.village.DataRegistry;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.VillageBlockTracker;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.item.ModItemGroups;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.ModRegistries;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.item.ModItems;
@@ -29,5 +31,8 @@ public class VerdantVillagers implements ModInitializer {
 		GeckoLib.initialize();
 
 		ModResources.registerResourceReloadListeners();
+
+		VillageBlockTracker.registerEvents();
+		BlockStateClassification.registerEvents();
 	}
 }
\ No newline at end of file
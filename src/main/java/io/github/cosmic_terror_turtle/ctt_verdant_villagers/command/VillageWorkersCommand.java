@@ -0,0 +1,68 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.command;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.ServerVillage;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.TerrainTypeCache;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.VillageBlockReader;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.VillageWorkers;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+
+import java.util.List;
+
+public class VillageWorkersCommand {
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+        dispatcher.register(
+                CommandManager.literal("verdant_village_workers")
+                        .executes(VillageWorkersCommand::run)
+        );
+    }
+
+    /**
+     * Runs this command: Lists the worker lanes of all villages with their queue depths and latencies, followed by the
+     * statistics of the block readers and terrain type caches of the villages.
+     * @param context The context in which the command was called.
+     * @return {@link Command#SINGLE_SUCCESS}
+     */
+    public static int run(CommandContext<ServerCommandSource> context) {
+        ServerCommandSource source = context.getSource();
+        List<VillageWorkers.Lane> lanes = VillageWorkers.getLanes();
+        source.sendMessage(Text.literal(
+                VillageWorkers.THREAD_COUNT + " workers, " + VillageWorkers.MAX_RUNNING_TASKS_PER_LANE
+                        + " per village, " + lanes.size() + " villages"
+        ));
+        for (VillageWorkers.Lane lane : lanes) {
+            source.sendMessage(Text.literal(String.format(
+                    "%s: queued %d (running %d), done %d, wait %.1f ms (max %.1f ms), run %.1f ms",
+                    lane.getName(),
+                    lane.getQueueDepth(),
+                    lane.getRunningTasks(),
+                    lane.getCompletedTasks(),
+                    lane.getMeanWaitMillis(),
+                    lane.getMaxWaitMillis(),
+                    lane.getMeanRunMillis()
+            )));
+        }
+        VillageBlockReader blockReader;
+        TerrainTypeCache cache;
+        for (ServerVillage village : ServerVillage.getVillages()) {
+            blockReader = village.getBlockReader();
+            cache = village.getTerrainTypeCache();
+            source.sendMessage(Text.literal(String.format(
+                    "%s: block reader %d hits, %d misses; terrain types %.1f%% hits (%d hits, %d misses), %d invalidated",
+                    village.getWorkerLane().getName(),
+                    blockReader.getHits(),
+                    blockReader.getMisses(),
+                    100*cache.getHitRate(),
+                    cache.getHits(),
+                    cache.getMisses(),
+                    cache.getInvalidatedEntries()
+            )));
+        }
+        return Command.SINGLE_SUCCESS;
+    }
+}
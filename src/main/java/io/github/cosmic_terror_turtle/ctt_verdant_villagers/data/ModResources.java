@@ -3,6 +3,7 @@ package io.github.cosmic_terror_turtle.ctt_verdant_villagers.data;
 import com.google.gson.stream.JsonReader;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.VerdantVillagers;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.data.village.*;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.ServerVillage;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.RoadTypeProvider;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.structure.StructureProvider;
 import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
@@ -29,6 +30,9 @@ public class ModResources {
             @Override
             public void reload(ResourceManager manager) {
 
+                // Planning steps on the workers read the data, so they must not run while it is cleared.
+                ServerVillage.cancelPlanning();
+
                 // Clear caches
                 DataRegistry.clearData();
                 RoadTypeProvider.resetProviders();
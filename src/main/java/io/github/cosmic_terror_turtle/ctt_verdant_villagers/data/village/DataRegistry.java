@@ -15,8 +15,6 @@ import java.util.function.Function;
 
 public class DataRegistry {
 
-    private static final Random random = new Random();
-
     private static final HashMap<String, BlockPaletteType> blockPaletteTypes = new HashMap<>();
     private static final HashMap<String, HashMap<String, BlockPalette>> blockPalettes = new HashMap<>();
     private static final HashMap<String, HashMap<String, BlockPalette>> defaultBlockPalettes = new HashMap<>();
@@ -299,12 +297,13 @@ public class DataRegistry {
      * @param villageType The type of the village.
      * @param structureType The wanted structure type.
      * @param villagerCount The villager count of the village.
+     * @param random The random number generator to use.
      * @return A random template that matches the village and structure types, or null if no template matching the constraints
      * was found. If possible, a template will be selected that is available for the given villager count.
      */
     public static RawStructureTemplate getRandomTemplateFor(
             String villageType, String structureType,
-            int villagerCount, HashMap<String, ArrayList<BlockPalette>> blockPalettes) {
+            int villagerCount, HashMap<String, ArrayList<BlockPalette>> blockPalettes, Random random) {
         ArrayList<RawStructureTemplate> candidates = new ArrayList<>();
         ArrayList<RawStructureTemplate> bestCandidates = new ArrayList<>();
         boolean fits;
@@ -358,9 +357,10 @@ public class DataRegistry {
      * Selects a random raw road type that matches the given constraints.
      * @param villageType The type of the village.
      * @param villagerCount The villager count of the village.
+     * @param random The random number generator to use.
      * @return A random road type that matches the village type and villager count, if possible.
      */
-    public static RawRoadType getRandomRoadTypeFor(String villageType, int villagerCount) {
+    public static RawRoadType getRandomRoadTypeFor(String villageType, int villagerCount, Random random) {
         ArrayList<RawRoadType> candidates = new ArrayList<>();
         ArrayList<RawRoadType> bestCandidates = new ArrayList<>();
         for (RawRoadType type : roadTypes.values()) {
@@ -381,7 +381,7 @@ public class DataRegistry {
     public static void addVillageNames(ArrayList<String> newNames) {
         villageNames.addAll(newNames);
     }
-    public static String getRandomVillageName() {
+    public static String getRandomVillageName(Random random) {
         return villageNames.get(random.nextInt(villageNames.size()));
     }
 
@@ -0,0 +1,163 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.registry.Registries;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An immutable copy of the block states of a single chunk section. Snapshots are taken on the server thread (copying
+ * the paletted container of a section is cheap) and can then be read safely from any other thread.
+ */
+public class ChunkSectionSnapshot {
+
+    /**
+     * The side length of a chunk section.
+     */
+    public static final int LENGTH = 16;
+    /**
+     * The number of blocks in a chunk section.
+     */
+    public static final int VOLUME = LENGTH*LENGTH*LENGTH;
+
+    private final int x;
+    private final int y;
+    private final int z;
+    private final @Nullable PalettedContainer<BlockState> blockStates; // Null if the section is outside the height limit.
+    // The BlockStateClassification classes of the bottom layer of the section above, indexed by i*LENGTH+k.
+    private final byte[] classesAbove;
+
+    private ChunkSectionSnapshot(int x, int y, int z, @Nullable PalettedContainer<BlockState> blockStates,
+                                 byte[] classesAbove) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.blockStates = blockStates;
+        this.classesAbove = classesAbove;
+    }
+
+    /**
+     * Takes a snapshot of a chunk section and of the classes of the block layer above it (needed for finding surface
+     * blocks in the top layer of the section). Must be called on the server thread.
+     * @param world The world the section exists in.
+     * @param x The lowest x coordinate of the section.
+     * @param y The lowest y coordinate of the section.
+     * @param z The lowest z coordinate of the section.
+     * @return The snapshot of the section.
+     */
+    public static ChunkSectionSnapshot of(World world, int x, int y, int z) {
+        byte[] classesAbove = new byte[LENGTH*LENGTH];
+        // Sections outside the height limit consist of void air only.
+        if (world.isOutOfHeightLimit(y)) {
+            return new ChunkSectionSnapshot(x, y, z, null, classesAbove);
+        }
+        Chunk chunk = world.getChunk(ChunkSectionPos.getSectionCoord(x), ChunkSectionPos.getSectionCoord(z));
+        if (!world.isOutOfHeightLimit(y+LENGTH)) {
+            ChunkSection sectionAbove = chunk.getSection(world.getSectionIndex(y+LENGTH));
+            if (!sectionAbove.isEmpty()) {
+                for (int i=0; i<LENGTH; i++) {
+                    for (int k=0; k<LENGTH; k++) {
+                        classesAbove[i*LENGTH+k] = BlockStateClassification.getClasses(sectionAbove.getBlockState(i, 0, k));
+                    }
+                }
+            }
+        }
+        return new ChunkSectionSnapshot(x, y, z, chunk
+                .getSection(world.getSectionIndex(y))
+                .getBlockStateContainer()
+                .copy(),
+                classesAbove
+        );
+    }
+
+    /**
+     * Gets a block state of this snapshot.
+     * @param i The x coordinate relative to the section.
+     * @param j The y coordinate relative to the section.
+     * @param k The z coordinate relative to the section.
+     * @return The block state at the given position.
+     */
+    public BlockState getBlockState(int i, int j, int k) {
+        return blockStates == null ? Blocks.VOID_AIR.getDefaultState() : blockStates.get(i, j, k);
+    }
+
+    /**
+     * Counts the block types of this snapshot and collects the tree blocks within it. Block types are counted from the
+     * palette, so sections made of a single block state (for example air) are counted in constant time. This method
+     * does not access the world and may be called from any thread.
+     * @param blockCounts The map that the block type counts will be added to.
+     * @param treeBlocks The list that the positions of tree blocks will be added to. If null, tree blocks are not
+     *                   searched for.
+     */
+    public void scan(HashMap<Identifier, Integer> blockCounts, @Nullable ArrayList<BlockPos> treeBlocks) {
+        if (blockStates == null) {
+            addToBlockCounts(blockCounts, Blocks.VOID_AIR.getDefaultState(), VOLUME);
+            return;
+        }
+        // Count block states by their palette entries.
+        blockStates.count((state, count) -> addToBlockCounts(blockCounts, state, count));
+        // Only look at single positions if the palette contains tree blocks at all.
+        if (treeBlocks != null && blockStates.hasAny(BlockStateClassification::isVillageTree)) {
+            for (int i=0; i<LENGTH; i++) {
+                for (int j=0; j<LENGTH; j++) {
+                    for (int k=0; k<LENGTH; k++) {
+                        if (BlockStateClassification.isVillageTree(blockStates.get(i, j, k))) {
+                            treeBlocks.add(new BlockPos(x+i, y+j, z+k));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static void addToBlockCounts(HashMap<Identifier, Integer> blockCounts, BlockState state, int count) {
+        Identifier blockId = Registries.BLOCK.getId(state.getBlock());
+        blockCounts.put(blockId, blockCounts.getOrDefault(blockId, 0)+count);
+    }
+
+    /**
+     * Computes the surface levels of this snapshot (see {@link SurfaceIndex#isSurfaceLevel}). This method does not
+     * access the world and may be called from any thread.
+     * @return For each {@link ServerVillage.SurfaceFluidMode} and each column (indexed by i*LENGTH+k), a bit mask in
+     * which bit j is set if the block at height j is a surface block.
+     */
+    public short[][] computeSurfaceMasks() {
+        ServerVillage.SurfaceFluidMode[] modes = ServerVillage.SurfaceFluidMode.values();
+        short[][] masks = new short[modes.length][LENGTH*LENGTH];
+        // Surface blocks are ground or fluid blocks, so sections without any of them have no surface levels.
+        if (blockStates == null || !blockStates.hasAny(state ->
+                BlockStateClassification.isAny(state, BlockStateClassification.NATURAL_GROUND | BlockStateClassification.FLUID))) {
+            return masks;
+        }
+        // In sections made of natural ground only, only the top layer can contain surface levels.
+        int jMin = blockStates.hasAny(state -> !BlockStateClassification.isNaturalGround(state)) ? 0 : LENGTH-1;
+        byte classes;
+        byte classesAbove;
+        for (int i=0; i<LENGTH; i++) {
+            for (int k=0; k<LENGTH; k++) {
+                classesAbove = this.classesAbove[i*LENGTH+k];
+                for (int j=LENGTH-1; j>=jMin; j--) {
+                    classes = BlockStateClassification.getClasses(blockStates.get(i, j, k));
+                    for (ServerVillage.SurfaceFluidMode mode : modes) {
+                        if (SurfaceIndex.isSurfaceLevel(mode, classes, classesAbove)) {
+                            masks[mode.ordinal()][i*LENGTH+k] |= (short) (1 << j);
+                        }
+                    }
+                    classesAbove = classes;
+                }
+            }
+        }
+        return masks;
+    }
+}
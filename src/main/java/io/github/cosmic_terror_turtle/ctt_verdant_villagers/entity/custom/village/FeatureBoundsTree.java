@@ -0,0 +1,322 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeature;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * A dynamic bounding volume hierarchy over the bounds of {@link GeoFeature}s. Each feature is a leaf holding its
+ * bounds, and every inner node holds the union of the bounds of its two children. New leaves are inserted next to the
+ * sibling that increases the surface area of the tree the least, and the tree is kept balanced with AVL rotations, so
+ * that box queries only visit O(log n) nodes for features that are spread out.
+ */
+public class FeatureBoundsTree {
+
+    private @Nullable Node root = null;
+    private final Long2ObjectOpenHashMap<Node> leaves = new Long2ObjectOpenHashMap<>(); // Leaves by element ID
+
+    /**
+     * Inserts a feature with its current bounds.
+     * @param feature The feature. Must not be in the tree already.
+     */
+    public void insert(GeoFeature feature) {
+        Node leaf = new Node();
+        leaf.feature = feature;
+        leaf.setBounds(feature);
+        leaves.put(feature.elementID, leaf);
+        insertLeaf(leaf);
+    }
+
+    /**
+     * Updates the bounds of a feature after they have changed (for example after bits were added or removed).
+     * @param feature The feature. Is inserted if it is not in the tree.
+     */
+    public void update(GeoFeature feature) {
+        Node leaf = leaves.get(feature.elementID);
+        if (leaf == null) {
+            insert(feature);
+            return;
+        }
+        if (leaf.hasBounds(feature)) {
+            return;
+        }
+        removeLeaf(leaf);
+        leaf.setBounds(feature);
+        insertLeaf(leaf);
+    }
+
+    /**
+     * Removes a feature.
+     * @param feature The feature.
+     */
+    public void remove(GeoFeature feature) {
+        Node leaf = leaves.remove(feature.elementID);
+        if (leaf != null) {
+            removeLeaf(leaf);
+        }
+    }
+
+    public void clear() {
+        root = null;
+        leaves.clear();
+    }
+
+    public int size() {
+        return leaves.size();
+    }
+
+    /**
+     * Tests if the bounds of a feature in the tree collide with the bounds of a candidate feature (see
+     * {@link GeoFeature#boundsCollideWith}).
+     * @param candidate The candidate feature.
+     * @param filter Only features matching the filter are considered.
+     * @return True if a matching feature with colliding bounds was found.
+     */
+    public boolean anyCollidesWith(GeoFeature candidate, Predicate<GeoFeature> filter) {
+        if (root == null) {
+            return false;
+        }
+        ArrayList<Node> stack = new ArrayList<>();
+        stack.add(root);
+        Node node;
+        while (!stack.isEmpty()) {
+            node = stack.remove(stack.size()-1);
+            if (!node.collidesWith(candidate)) {
+                continue;
+            }
+            if (node.isLeaf()) {
+                if (filter.test(node.feature)) {
+                    return true;
+                }
+            } else {
+                stack.add(node.child1);
+                stack.add(node.child2);
+            }
+        }
+        return false;
+    }
+
+    private void insertLeaf(Node leaf) {
+        if (root == null) {
+            root = leaf;
+            leaf.parent = null;
+            return;
+        }
+        // Find the best sibling by descending while it is cheaper to push the leaf further down.
+        Node sibling = root;
+        double area, combinedArea, cost, inheritanceCost, cost1, cost2;
+        while (!sibling.isLeaf()) {
+            area = sibling.getSurfaceArea();
+            combinedArea = Node.getUnionSurfaceArea(sibling, leaf);
+            // Cost of creating a new parent for the sibling and the leaf
+            cost = 2 * combinedArea;
+            // Minimum cost of pushing the leaf further down the tree
+            inheritanceCost = 2 * (combinedArea - area);
+            cost1 = getDescendCost(sibling.child1, leaf) + inheritanceCost;
+            cost2 = getDescendCost(sibling.child2, leaf) + inheritanceCost;
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+            sibling = cost1 < cost2 ? sibling.child1 : sibling.child2;
+        }
+        // Create a new parent.
+        Node oldParent = sibling.parent;
+        Node newParent = new Node();
+        newParent.parent = oldParent;
+        newParent.setUnion(sibling, leaf);
+        newParent.height = sibling.height + 1;
+        if (oldParent == null) {
+            root = newParent;
+        } else if (oldParent.child1 == sibling) {
+            oldParent.child1 = newParent;
+        } else {
+            oldParent.child2 = newParent;
+        }
+        newParent.child1 = sibling;
+        newParent.child2 = leaf;
+        sibling.parent = newParent;
+        leaf.parent = newParent;
+        refitAncestors(leaf.parent);
+    }
+
+    private static double getDescendCost(Node child, Node leaf) {
+        if (child.isLeaf()) {
+            return Node.getUnionSurfaceArea(child, leaf);
+        }
+        return Node.getUnionSurfaceArea(child, leaf) - child.getSurfaceArea();
+    }
+
+    private void removeLeaf(Node leaf) {
+        if (leaf == root) {
+            root = null;
+            return;
+        }
+        Node parent = leaf.parent;
+        Node grandParent = parent.parent;
+        Node sibling = parent.child1 == leaf ? parent.child2 : parent.child1;
+        if (grandParent == null) {
+            root = sibling;
+            sibling.parent = null;
+        } else {
+            if (grandParent.child1 == parent) {
+                grandParent.child1 = sibling;
+            } else {
+                grandParent.child2 = sibling;
+            }
+            sibling.parent = grandParent;
+            refitAncestors(grandParent);
+        }
+        leaf.parent = null;
+    }
+
+    /**
+     * Balances and refits all nodes from a node up to the root.
+     */
+    private void refitAncestors(@Nullable Node node) {
+        while (node != null) {
+            node = balance(node);
+            node.height = 1 + Math.max(node.child1.height, node.child2.height);
+            node.setUnion(node.child1, node.child2);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Performs a left or right rotation if a node's subtree is imbalanced.
+     * @return The new root of the subtree.
+     */
+    private Node balance(Node a) {
+        if (a.isLeaf() || a.height < 2) {
+            return a;
+        }
+        Node b = a.child1;
+        Node c = a.child2;
+        int balance = c.height - b.height;
+        if (balance > 1) {
+            // Rotate c up.
+            Node f = c.child1;
+            Node g = c.child2;
+            c.child1 = a;
+            c.parent = a.parent;
+            a.parent = c;
+            replaceChild(c.parent, a, c);
+            if (f.height > g.height) {
+                c.child2 = f;
+                a.child2 = g;
+                g.parent = a;
+                a.setUnion(b, g);
+                c.setUnion(a, f);
+                a.height = 1 + Math.max(b.height, g.height);
+                c.height = 1 + Math.max(a.height, f.height);
+            } else {
+                c.child2 = g;
+                a.child2 = f;
+                f.parent = a;
+                a.setUnion(b, f);
+                c.setUnion(a, g);
+                a.height = 1 + Math.max(b.height, f.height);
+                c.height = 1 + Math.max(a.height, g.height);
+            }
+            return c;
+        }
+        if (balance < -1) {
+            // Rotate b up.
+            Node d = b.child1;
+            Node e = b.child2;
+            b.child1 = a;
+            b.parent = a.parent;
+            a.parent = b;
+            replaceChild(b.parent, a, b);
+            if (d.height > e.height) {
+                b.child2 = d;
+                a.child1 = e;
+                e.parent = a;
+                a.setUnion(c, e);
+                b.setUnion(a, d);
+                a.height = 1 + Math.max(c.height, e.height);
+                b.height = 1 + Math.max(a.height, d.height);
+            } else {
+                b.child2 = e;
+                a.child1 = d;
+                d.parent = a;
+                a.setUnion(c, d);
+                b.setUnion(a, e);
+                a.height = 1 + Math.max(c.height, d.height);
+                b.height = 1 + Math.max(a.height, e.height);
+            }
+            return b;
+        }
+        return a;
+    }
+
+    private void replaceChild(@Nullable Node parent, Node oldChild, Node newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.child1 == oldChild) {
+            parent.child1 = newChild;
+        } else {
+            parent.child2 = newChild;
+        }
+    }
+
+    private static class Node {
+        private int xMin, xMax, yMin, yMax, zMin, zMax;
+        private @Nullable Node parent = null;
+        private Node child1 = null;
+        private Node child2 = null;
+        private int height = 0; // 0 for leaves
+        private GeoFeature feature = null; // Only set for leaves
+
+        private boolean isLeaf() {
+            return child1 == null;
+        }
+
+        private void setBounds(GeoFeature feature) {
+            xMin = feature.getXMin();
+            xMax = feature.getXMax();
+            yMin = feature.getYMin();
+            yMax = feature.getYMax();
+            zMin = feature.getZMin();
+            zMax = feature.getZMax();
+        }
+
+        private boolean hasBounds(GeoFeature feature) {
+            return xMin == feature.getXMin() && xMax == feature.getXMax()
+                    && yMin == feature.getYMin() && yMax == feature.getYMax()
+                    && zMin == feature.getZMin() && zMax == feature.getZMax();
+        }
+
+        private void setUnion(Node node1, Node node2) {
+            xMin = Math.min(node1.xMin, node2.xMin);
+            xMax = Math.max(node1.xMax, node2.xMax);
+            yMin = Math.min(node1.yMin, node2.yMin);
+            yMax = Math.max(node1.yMax, node2.yMax);
+            zMin = Math.min(node1.zMin, node2.zMin);
+            zMax = Math.max(node1.zMax, node2.zMax);
+        }
+
+        private boolean collidesWith(GeoFeature feature) {
+            return xMin <= feature.getXMax() && feature.getXMin() <= xMax
+                    && yMin <= feature.getYMax() && feature.getYMin() <= yMax
+                    && zMin <= feature.getZMax() && feature.getZMin() <= zMax;
+        }
+
+        private double getSurfaceArea() {
+            return getSurfaceArea(xMax-xMin+1, yMax-yMin+1, zMax-zMin+1);
+        }
+
+        private static double getUnionSurfaceArea(Node node1, Node node2) {
+            return getSurfaceArea(
+                    Math.max(node1.xMax, node2.xMax) - Math.min(node1.xMin, node2.xMin) + 1,
+                    Math.max(node1.yMax, node2.yMax) - Math.min(node1.yMin, node2.yMin) + 1,
+                    Math.max(node1.zMax, node2.zMax) - Math.min(node1.zMin, node2.zMin) + 1);
+        }
+
+        private static double getSurfaceArea(double x, double y, double z) {
+            return 2 * (x*y + y*z + z*x);
+        }
+    }
+}
@@ -1,18 +1,25 @@
 package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
 
-import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.ModTags;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.VerdantVillagers;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.NbtUtils;
 import net.minecraft.block.BlockState;
 import net.minecraft.nbt.NbtCompound;
-import net.minecraft.registry.Registries;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Box;
 import net.minecraft.world.World;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils.getCubeCoordinate;
 
@@ -22,9 +29,24 @@ public class MegaChunk {
      * The side length of a {@link MegaChunk}.
      */
     public static final int LENGTH = 128;
+    private static final int SECTION_LENGTH = ChunkSectionSnapshot.LENGTH;
+    /**
+     * The number of chunk sections along each axis of a {@link MegaChunk}.
+     */
+    private static final int SECTIONS_PER_SIDE = LENGTH / SECTION_LENGTH;
+    /**
+     * The number of chunk sections in a {@link MegaChunk}.
+     */
+    public static final int SECTION_COUNT = SECTIONS_PER_SIDE*SECTIONS_PER_SIDE*SECTIONS_PER_SIDE;
 
     public final long elementID;
     private final BlockPos lowerTip;
+    private int scannedSections; // The number of sections that have been scanned (sections are scanned in x-y-z order).
+    private int snapshottedSections; // The number of sections that have been handed to a scan (not saved).
+    private final ArrayDeque<Scan> runningScans = new ArrayDeque<>(); // Scans of this mega chunk that have not been applied yet.
+    private int indexedSections = 0; // The number of sections whose surface levels have been added to the builder (not saved).
+    private @Nullable SurfaceIndex.Builder surfaceIndexBuilder = null;
+    private final SurfaceView surfaceView; // Not saved; rebuilt by scanning again after loading.
 
     /**
      * Creates a new MegaChunk.
@@ -37,41 +59,194 @@ public class MegaChunk {
                 getCubeCoordinate(LENGTH, pos.getY()),
                 getCubeCoordinate(LENGTH, pos.getZ())
         );
+        scannedSections = 0;
+        snapshottedSections = 0;
+        surfaceView = new SurfaceView(lowerTip);
     }
 
     /**
-     * Scans the blocks in this mega chunk. This includes counting block types, scanning for blocks to mine and
-     * possibly removing them.
+     * Continues the scan of the blocks in this mega chunk. This includes counting block types, scanning for blocks
+     * to mine and finding the surface levels for the {@link SurfaceIndex}. Sections whose blocks have already been
+     * counted (before the mega chunk was saved) are only scanned for surface levels. The scan works on whole chunk
+     * sections: On the calling (server) thread, only {@link ChunkSectionSnapshot}s of the sections are taken; counting
+     * and searching happens on the {@link VillageWorkers}, in the lane of the village. Snapshots are taken until
+     * {@code deadline} has passed (after at least one section); the next call continues with the next section. The
+     * result must be applied with {@link Scan#apply} on the server thread once it is done.
      * @param world The world this mega chunk exists in.
-     * @param blockCounts The map that the block type counts will be added to.
-     * @param removeBlocksImmediately Whether blocks found to mine should be immediately removed.
-     */
-    public void scanBlocks(World world, HashMap<Identifier, Integer> blockCounts, boolean removeBlocksImmediately) {
-        BlockPos pos;
-        BlockState state;
-        Identifier blockId;
-        ArrayList<BlockPos> toRemoveImmediately = new ArrayList<>();
-        for (int i=0; i<LENGTH; i++) {
-            for (int j=0; j<LENGTH; j++) {
-                for (int k=0; k<LENGTH; k++) {
-                    pos = lowerTip.add(i, j, k);
-                    state = world.getBlockState(pos);
-                    blockId = Registries.BLOCK.getId(state.getBlock());
-                    blockCounts.put(blockId, blockCounts.getOrDefault(blockId, 0)+1);
-                    // Check for block to mine and add them to the village's list or remove them immediately.
-                    if (state.isIn(ModTags.Blocks.VILLAGE_TREE_BLOCKS)) {
-                        if (removeBlocksImmediately) {
-                            toRemoveImmediately.add(pos);
-                        }
-                    }
+     * @param searchTreeBlocks Whether blocks to mine should be searched for.
+     * @param deadline The {@link System#nanoTime()} value after which no more sections should be snapshotted.
+     * @param lane The worker lane of the village.
+     * @return The started scan or null if all sections have already been snapshotted.
+     */
+    public @Nullable Scan startScan(World world, boolean searchTreeBlocks, long deadline, VillageWorkers.Lane lane) {
+        ArrayList<ChunkSectionSnapshot> snapshots = new ArrayList<>();
+        boolean countBlocks = snapshottedSections >= scannedSections;
+        // A scan either counts blocks for all of its sections or for none of them.
+        while (snapshottedSections < SECTION_COUNT && (countBlocks || snapshottedSections < scannedSections)) {
+            snapshots.add(ChunkSectionSnapshot.of(
+                    world,
+                    lowerTip.getX() + snapshottedSections/(SECTIONS_PER_SIDE*SECTIONS_PER_SIDE)*SECTION_LENGTH,
+                    lowerTip.getY() + snapshottedSections/SECTIONS_PER_SIDE%SECTIONS_PER_SIDE*SECTION_LENGTH,
+                    lowerTip.getZ() + snapshottedSections%SECTIONS_PER_SIDE*SECTION_LENGTH
+            ));
+            snapshottedSections++;
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        Scan scan = new Scan(this, snapshots.size(), countBlocks, CompletableFuture.supplyAsync(() -> {
+            ScanResult result = new ScanResult(countBlocks && searchTreeBlocks, snapshots.size());
+            for (int i=0; i<snapshots.size(); i++) {
+                if (countBlocks) {
+                    snapshots.get(i).scan(result.blockCounts, result.treeBlocks);
+                }
+                result.surfaceMasks[i] = snapshots.get(i).computeSurfaceMasks();
+            }
+            return result;
+        }, lane));
+        runningScans.add(scan);
+        return scan;
+    }
+
+    /**
+     * Updates the block counts after a block in this mega chunk has changed. Changes in sections that have already
+     * been scanned are applied to {@code blockCounts} directly. Changes in sections whose snapshot is still being
+     * scanned are applied together with the result of the scan, since the snapshot contains the previous block state.
+     * Changes in sections that have not been snapshotted yet are ignored, since the snapshot will contain the new
+     * block state. The surface index column of the block is marked as dirty if the classes of the block have changed.
+     * @param pos The position of the changed block. Must be within this mega chunk.
+     * @param oldState The previous block state.
+     * @param newState The new block state.
+     * @param blockCounts The block counts of the village this mega chunk belongs to.
+     */
+    public void onBlockChanged(BlockPos pos, BlockState oldState, BlockState newState,
+                               HashMap<Identifier, Integer> blockCounts) {
+        if (BlockStateClassification.getClasses(oldState) != BlockStateClassification.getClasses(newState)) {
+            markSurfaceColumnDirty(pos.getX(), pos.getZ());
+        }
+        if (oldState.getBlock() == newState.getBlock()) {
+            return;
+        }
+        int section = (pos.getX()-lowerTip.getX())/SECTION_LENGTH*SECTIONS_PER_SIDE*SECTIONS_PER_SIDE
+                + (pos.getY()-lowerTip.getY())/SECTION_LENGTH*SECTIONS_PER_SIDE
+                + (pos.getZ()-lowerTip.getZ())/SECTION_LENGTH;
+        HashMap<Identifier, Integer> countsToChange = null;
+        if (section < scannedSections) {
+            countsToChange = blockCounts;
+        } else if (section < snapshottedSections) {
+            for (Scan scan : runningScans) {
+                if (scan.countBlocks && scan.firstSection <= section && section < scan.firstSection + scan.sectionCount) {
+                    countsToChange = scan.blockCountChanges;
+                    break;
                 }
             }
         }
-        for (BlockPos removePos : toRemoveImmediately) {
-            world.removeBlock(removePos, false);
+        if (countsToChange != null) {
+            ChunkSectionSnapshot.addToBlockCounts(countsToChange, oldState, -1);
+            ChunkSectionSnapshot.addToBlockCounts(countsToChange, newState, 1);
         }
     }
 
+    /**
+     * Marks a column of the surface index as dirty, so that its surface levels will no longer be taken from the index.
+     * This is also needed for changes in the lowest block layer of the mega chunk above, since they affect the surface
+     * levels of the top layer of this mega chunk.
+     * @param x The x coordinate of the column.
+     * @param z The z coordinate of the column.
+     */
+    public void markSurfaceColumnDirty(int x, int z) {
+        surfaceView.dirtyColumns.set((x-lowerTip.getX())*LENGTH + z-lowerTip.getZ());
+    }
+
+    /**
+     * Determines whether the surface levels of a column can be taken from the surface index.
+     * @param x The x coordinate of the column.
+     * @param z The z coordinate of the column.
+     * @return True if the surface index has been built and the column is not dirty.
+     */
+    public boolean hasSurfaceIndexFor(int x, int z) {
+        return surfaceView.hasSurfaceIndexFor(x, z);
+    }
+
+    /**
+     * Finds the surface level of a column closest to {@code fromY} within the part of the range from {@code fromY} to
+     * {@code toY} that lies within this mega chunk. Must only be called if {@link MegaChunk#hasSurfaceIndexFor}
+     * returned true for the column.
+     * @param mode The surface fluid mode.
+     * @param x The x coordinate of the column.
+     * @param z The z coordinate of the column.
+     * @param fromY The y coordinate from which the search starts.
+     * @param toY The y coordinate where the search ends. May be below or above {@code fromY}.
+     * @return The y coordinate of the surface level or {@link SurfaceIndex#NO_LEVEL} if there is none.
+     */
+    public int findSurfaceLevel(ServerVillage.SurfaceFluidMode mode, int x, int z, int fromY, int toY) {
+        return surfaceView.findSurfaceLevel(mode, x, z, fromY, toY);
+    }
+
+    /**
+     * Gets the surface view of this mega chunk, which changes with the mega chunk. Must only be used on the server
+     * thread.
+     * @return The surface view.
+     */
+    public SurfaceView getSurfaceView() {
+        return surfaceView;
+    }
+
+    /**
+     * Copies the surface index state of this mega chunk. The copy is not affected by later block changes or scans and
+     * can be read from any thread.
+     * @return The copy.
+     */
+    public SurfaceView copySurfaceView() {
+        return new SurfaceView(lowerTip, surfaceView.surfaceIndex, (BitSet) surfaceView.dirtyColumns.clone());
+    }
+
+    /**
+     * Determines whether all sections of this mega chunk have been handed to a {@link Scan}.
+     * @return True if no further scans have to be started for this mega chunk.
+     */
+    public boolean isSnapshotted() {
+        return snapshottedSections >= SECTION_COUNT;
+    }
+
+    /**
+     * Determines whether the scan of this mega chunk is complete.
+     * @return True if all sections of this mega chunk have been scanned.
+     */
+    public boolean isScanned() {
+        return scannedSections >= SECTION_COUNT;
+    }
+
+    /**
+     * Gets the progress of the scan of this mega chunk.
+     * @return The number of chunk sections of this mega chunk that have been scanned.
+     */
+    public int getScannedSections() {
+        return scannedSections;
+    }
+
+    /**
+     * Computes a key that identifies the mega chunk containing a position.
+     * @param x The x coordinate of the position.
+     * @param y The y coordinate of the position.
+     * @param z The z coordinate of the position.
+     * @return The key of the mega chunk containing the position.
+     */
+    public static long getKey(int x, int y, int z) {
+        return BlockPos.asLong(
+                Math.floorDiv(x, LENGTH),
+                Math.floorDiv(y, LENGTH),
+                Math.floorDiv(z, LENGTH)
+        );
+    }
+
+    public long getKey() {
+        return getKey(lowerTip.getX(), lowerTip.getY(), lowerTip.getZ());
+    }
+
     public BlockPos getLowerTip() {
         return lowerTip;
     }
@@ -91,6 +266,12 @@ public class MegaChunk {
     public MegaChunk(@NotNull NbtCompound nbt) {
         elementID = nbt.getLong("id");
         lowerTip = NbtUtils.blockPosFromNbt(nbt.getCompound("lowerTip"));
+        // Mega chunks saved before scanning was resumable have always been scanned entirely.
+        scannedSections = nbt.contains("scannedSections") ? nbt.getInt("scannedSections") : SECTION_COUNT;
+        // All sections are scanned again for the surface index; scans that had not been applied when saving are
+        // repeated completely.
+        snapshottedSections = 0;
+        surfaceView = new SurfaceView(lowerTip);
     }
 
     /**
@@ -101,6 +282,165 @@ public class MegaChunk {
         NbtCompound nbt = new NbtCompound();
         nbt.putLong("id", elementID);
         nbt.put("lowerTip", NbtUtils.blockPosToNbt(lowerTip));
+        nbt.putInt("scannedSections", scannedSections);
         return nbt;
     }
+
+    /**
+     * The surface index of a mega chunk together with the columns that may no longer match it. The mega chunk updates
+     * its own view; copies (see {@link MegaChunk#copySurfaceView}) never change.
+     */
+    public static class SurfaceView {
+        private final BlockPos lowerTip;
+        private @Nullable SurfaceIndex surfaceIndex;
+        private final BitSet dirtyColumns; // Columns whose surface levels may have changed.
+
+        private SurfaceView(BlockPos lowerTip) {
+            this(lowerTip, null, new BitSet(LENGTH*LENGTH));
+        }
+
+        private SurfaceView(BlockPos lowerTip, @Nullable SurfaceIndex surfaceIndex, BitSet dirtyColumns) {
+            this.lowerTip = lowerTip;
+            this.surfaceIndex = surfaceIndex;
+            this.dirtyColumns = dirtyColumns;
+        }
+
+        /**
+         * See {@link MegaChunk#hasSurfaceIndexFor}.
+         */
+        public boolean hasSurfaceIndexFor(int x, int z) {
+            return surfaceIndex != null && !dirtyColumns.get((x-lowerTip.getX())*LENGTH + z-lowerTip.getZ());
+        }
+
+        /**
+         * See {@link MegaChunk#findSurfaceLevel}.
+         */
+        public int findSurfaceLevel(ServerVillage.SurfaceFluidMode mode, int x, int z, int fromY, int toY) {
+            int level;
+            if (toY <= fromY) {
+                level = surfaceIndex.getHighestLevel(mode, x-lowerTip.getX(), z-lowerTip.getZ(),
+                        Math.max(0, toY-lowerTip.getY()), Math.min(LENGTH-1, fromY-lowerTip.getY()));
+            } else {
+                level = surfaceIndex.getLowestLevel(mode, x-lowerTip.getX(), z-lowerTip.getZ(),
+                        Math.max(0, fromY-lowerTip.getY()), Math.min(LENGTH-1, toY-lowerTip.getY()));
+            }
+            return level == SurfaceIndex.NO_LEVEL ? level : lowerTip.getY() + level;
+        }
+    }
+
+    /**
+     * The counted block types and the found blocks to mine of a batch of chunk sections.
+     */
+    public static class ScanResult {
+        private final HashMap<Identifier, Integer> blockCounts = new HashMap<>();
+        private final @Nullable ArrayList<BlockPos> treeBlocks;
+        private final short[][][] surfaceMasks; // Per section of the scan
+
+        private ScanResult(boolean searchTreeBlocks, int sectionCount) {
+            treeBlocks = searchTreeBlocks ? new ArrayList<>() : null;
+            surfaceMasks = new short[sectionCount][][];
+        }
+    }
+
+    /**
+     * A batch of chunk sections of a {@link MegaChunk} that is being scanned on the {@link VillageWorkers}.
+     */
+    public static class Scan {
+        private final MegaChunk megaChunk;
+        private final int firstSection;
+        private final int sectionCount;
+        private final boolean countBlocks;
+        private final CompletableFuture<ScanResult> future;
+        // Block changes in the scanned sections that happened after the snapshots were taken.
+        private final HashMap<Identifier, Integer> blockCountChanges = new HashMap<>();
+
+        private Scan(MegaChunk megaChunk, int sectionCount, boolean countBlocks, CompletableFuture<ScanResult> future) {
+            this.megaChunk = megaChunk;
+            this.firstSection = megaChunk.snapshottedSections - sectionCount;
+            this.sectionCount = sectionCount;
+            this.countBlocks = countBlocks;
+            this.future = future;
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Applies the result of this scan: The counted block types are added to {@code blockCounts}, blocks to mine
+         * that are still present are removed and the scan progress of the mega chunk is advanced. Must be called on
+         * the server thread after {@link Scan#isDone()} returned true.
+         * @param world The world the mega chunk exists in.
+         * @param blockCounts The map that the block type counts will be added to.
+         */
+        public void apply(World world, HashMap<Identifier, Integer> blockCounts) {
+            megaChunk.runningScans.remove(this);
+            if (countBlocks) {
+                megaChunk.scannedSections += sectionCount;
+            }
+            ScanResult result;
+            try {
+                result = future.join();
+            } catch (CompletionException | CancellationException e) {
+                // Skip the sections of a failed scan instead of retrying them forever.
+                VerdantVillagers.LOGGER.error("Error occurred while scanning mega chunk " + megaChunk.elementID, e);
+                result = null;
+            }
+            addToSurfaceIndex(result);
+            if (result == null || !countBlocks) {
+                return;
+            }
+            for (Map.Entry<Identifier, Integer> entry : result.blockCounts.entrySet()) {
+                blockCounts.put(entry.getKey(), blockCounts.getOrDefault(entry.getKey(), 0)+entry.getValue());
+            }
+            for (Map.Entry<Identifier, Integer> entry : blockCountChanges.entrySet()) {
+                blockCounts.put(entry.getKey(), blockCounts.getOrDefault(entry.getKey(), 0)+entry.getValue());
+            }
+            if (result.treeBlocks != null) {
+                // The world may have changed since the snapshot was taken. Removals are counted by the
+                // VillageBlockTracker, since the sections now count as scanned.
+                for (BlockPos removePos : result.treeBlocks) {
+                    if (BlockStateClassification.isVillageTree(world.getBlockState(removePos))) {
+                        world.removeBlock(removePos, false);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the surface levels of the scanned sections to the surface index builder and builds the index once all
+         * sections have been added.
+         * @param result The result of this scan or null if the scan failed.
+         */
+        private void addToSurfaceIndex(@Nullable ScanResult result) {
+            if (megaChunk.surfaceIndexBuilder == null) {
+                megaChunk.surfaceIndexBuilder = new SurfaceIndex.Builder();
+            }
+            int section;
+            int sectionX;
+            int sectionY;
+            int sectionZ;
+            for (int i=0; i<sectionCount; i++) {
+                section = firstSection + i;
+                sectionX = section/(SECTIONS_PER_SIDE*SECTIONS_PER_SIDE);
+                sectionY = section/SECTIONS_PER_SIDE%SECTIONS_PER_SIDE;
+                sectionZ = section%SECTIONS_PER_SIDE;
+                if (result != null) {
+                    megaChunk.surfaceIndexBuilder.addSection(sectionX, sectionY, sectionZ, result.surfaceMasks[i]);
+                } else {
+                    // The surface levels of the section are unknown.
+                    for (int x=0; x<SECTION_LENGTH; x++) {
+                        for (int z=0; z<SECTION_LENGTH; z++) {
+                            megaChunk.surfaceView.dirtyColumns.set((sectionX*SECTION_LENGTH+x)*LENGTH + sectionZ*SECTION_LENGTH+z);
+                        }
+                    }
+                }
+            }
+            megaChunk.indexedSections += sectionCount;
+            if (megaChunk.indexedSections >= SECTION_COUNT) {
+                megaChunk.surfaceView.surfaceIndex = megaChunk.surfaceIndexBuilder.build();
+                megaChunk.surfaceIndexBuilder = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,164 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+
+/**
+ * A read-only copy of the terrain of a village that planning can run against on the {@link VillageWorkers}. It consists
+ * of copies of the surface views of the village's mega chunks (see {@link MegaChunk#copySurfaceView}) and of the
+ * {@link ChunkSectionSnapshot}s that the village has taken for planning so far. Reads of sections that are not part
+ * of the snapshot return void air and are recorded as missing; the results of planning against a snapshot with missing
+ * sections must be discarded. A snapshot must only be used by one thread at a time; threads that read the same
+ * snapshot concurrently each use their own fork (see {@link PlanningSnapshot#fork()}).
+ */
+public class PlanningSnapshot {
+
+    private final Long2ObjectOpenHashMap<MegaChunk.SurfaceView> surfaceViews; // By MegaChunk.getKey()
+    private final Long2ObjectOpenHashMap<ChunkSectionSnapshot> sections; // By PlanningSnapshot.getSectionKey()
+    private final LongOpenHashSet missingSections = new LongOpenHashSet();
+    private final VillageBlockReader blockReader;
+    private final TerrainTypeCache terrainTypeCache;
+
+    /**
+     * Takes a snapshot. Must be called on the server thread.
+     * @param world The world of the village.
+     * @param megaChunks The mega chunks of the village.
+     * @param sections The section snapshots taken for planning so far, by {@link PlanningSnapshot#getSectionKey}. The
+     *                 map is copied.
+     */
+    public PlanningSnapshot(World world, Collection<MegaChunk> megaChunks, Long2ObjectOpenHashMap<ChunkSectionSnapshot> sections) {
+        surfaceViews = new Long2ObjectOpenHashMap<>();
+        for (MegaChunk megaChunk : megaChunks) {
+            surfaceViews.put(megaChunk.getKey(), megaChunk.copySurfaceView());
+        }
+        this.sections = new Long2ObjectOpenHashMap<>(sections);
+        blockReader = new SnapshotBlockReader(world);
+        // The snapshot never changes, so all queries can be cached.
+        terrainTypeCache = new TerrainTypeCache(blockReader, key -> true);
+    }
+
+    /**
+     * Creates a fork that shares the surface views and sections of another snapshot, but has its own block reader,
+     * terrain type cache and missing sections.
+     */
+    private PlanningSnapshot(PlanningSnapshot parent) {
+        surfaceViews = parent.surfaceViews;
+        sections = parent.sections;
+        blockReader = new SnapshotBlockReader(parent.blockReader.getWorld());
+        terrainTypeCache = new TerrainTypeCache(blockReader, key -> true);
+    }
+
+    /**
+     * Creates a fork of this snapshot for reading it on another thread. Since the surface views and sections are never
+     * changed, forks of the same snapshot can be read concurrently. The sections that a fork was missing must be added
+     * to this snapshot afterwards (see {@link PlanningSnapshot#join}).
+     * @return The fork.
+     */
+    public PlanningSnapshot fork() {
+        return new PlanningSnapshot(this);
+    }
+
+    /**
+     * Adds the sections that a fork of this snapshot was missing to the missing sections of this snapshot. Must be
+     * called on the thread using this snapshot after the fork has been read.
+     * @param fork The fork.
+     */
+    public void join(PlanningSnapshot fork) {
+        missingSections.addAll(fork.missingSections);
+    }
+
+    /**
+     * Computes the key of the chunk section containing a position.
+     * @param x The x coordinate of the position.
+     * @param y The y coordinate of the position.
+     * @param z The z coordinate of the position.
+     * @return The key of the section.
+     */
+    public static long getSectionKey(int x, int y, int z) {
+        return ChunkSectionPos.asLong(
+                ChunkSectionPos.getSectionCoord(x),
+                ChunkSectionPos.getSectionCoord(y),
+                ChunkSectionPos.getSectionCoord(z)
+        );
+    }
+
+    /**
+     * Gets a block reader that reads the sections of this snapshot.
+     * @return The block reader.
+     */
+    public VillageBlockReader getBlockReader() {
+        return blockReader;
+    }
+
+    /**
+     * Gets a terrain type cache that reads the sections of this snapshot.
+     * @return The terrain type cache.
+     */
+    public TerrainTypeCache getTerrainTypeCache() {
+        return terrainTypeCache;
+    }
+
+    /**
+     * Gets the copied surface view of a mega chunk.
+     * @param megaChunkKey The key of the mega chunk (see {@link MegaChunk#getKey}).
+     * @return The surface view or null if the village has no such mega chunk.
+     */
+    public @Nullable MegaChunk.SurfaceView getSurfaceView(long megaChunkKey) {
+        return surfaceViews.get(megaChunkKey);
+    }
+
+    public boolean hasMissingSections() {
+        return !missingSections.isEmpty();
+    }
+
+    /**
+     * Gets the sections that were read but are not part of this snapshot.
+     * @return The keys of the missing sections (see {@link PlanningSnapshot#getSectionKey}).
+     */
+    public LongSet getMissingSections() {
+        return missingSections;
+    }
+
+    /**
+     * Reads block states from the section snapshots instead of the world. The world is only used for its height limits.
+     */
+    private class SnapshotBlockReader extends VillageBlockReader {
+
+        private @Nullable ChunkSectionSnapshot cachedSnapshot = null;
+        private long cachedSnapshotKey;
+
+        private SnapshotBlockReader(World world) {
+            super(world);
+        }
+
+        @Override
+        public BlockState getBlockState(int x, int y, int z) {
+            if (getWorld().isOutOfHeightLimit(y)) {
+                return Blocks.VOID_AIR.getDefaultState();
+            }
+            long sectionKey = getSectionKey(x, y, z);
+            if (cachedSnapshot == null || sectionKey != cachedSnapshotKey) {
+                cachedSnapshot = sections.get(sectionKey);
+                cachedSnapshotKey = sectionKey;
+                if (cachedSnapshot == null) {
+                    missingSections.add(sectionKey);
+                    return Blocks.VOID_AIR.getDefaultState();
+                }
+            }
+            return cachedSnapshot.getBlockState(x & 15, y & 15, z & 15);
+        }
+
+        @Override
+        public void invalidate() {
+            cachedSnapshot = null;
+        }
+    }
+}
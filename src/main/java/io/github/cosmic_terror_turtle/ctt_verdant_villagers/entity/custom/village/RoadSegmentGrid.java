@@ -0,0 +1,201 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.RoadEdge;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.RoadJunction;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.RoadPolyline;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.MathHelper;
+
+import java.util.ArrayList;
+
+/**
+ * Indexes the segments of the {@link RoadPolyline}s of a village's road edges in a grid of cells on the x-z-plane, so
+ * that road edge candidates can be tested against the existing edges before they are rasterized. A segment is listed in
+ * every cell that its bounds touch.
+ */
+public class RoadSegmentGrid {
+
+    private static final int CELL_LENGTH = 16;
+
+    private final Long2ObjectOpenHashMap<ArrayList<Segment>> cells = new Long2ObjectOpenHashMap<>();
+    private final double[] closestParameters = new double[2]; // Reused by getSquaredDistance
+
+    /**
+     * Adds the segments of a rasterized edge (see {@link RoadPolyline#ofRoadDots}).
+     * @param edge The edge.
+     */
+    public void add(RoadEdge edge) {
+        RoadPolyline polyline = RoadPolyline.ofRoadDots(edge);
+        Segment segment;
+        for (int i=1; i<polyline.size(); i++) {
+            segment = new Segment(polyline, i-1);
+            for (int cellX=getCell(segment.getXMin()); cellX<=getCell(segment.getXMax()); cellX++) {
+                for (int cellZ=getCell(segment.getZMin()); cellZ<=getCell(segment.getZMax()); cellZ++) {
+                    cells.computeIfAbsent(getCellKey(cellX, cellZ), key -> new ArrayList<>()).add(segment);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+    }
+
+    /**
+     * Tests if the polyline of a candidate edge crosses an indexed edge at grade, that is if both centerlines come
+     * closer than {@code maxDistance} on the x-z-plane with a height difference smaller than {@code clearance} there.
+     * Crossings within the same height radius of a junction that both edges share are ignored, like in
+     * {@link io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureCollision#edgesOverlap}.
+     * @param candidateLine The polyline of the candidate edge.
+     * @param maxDistance The distance on the x-z-plane below which centerlines are considered crossing.
+     * @param clearance The height difference below which crossing edges collide.
+     * @return True if a crossing at grade was found.
+     */
+    public boolean crossesAtGrade(RoadPolyline candidateLine, double maxDistance, double clearance) {
+        if (cells.isEmpty()) {
+            return false;
+        }
+        RoadEdge candidate = candidateLine.edge;
+        Segment candidateSegment;
+        ArrayList<Segment> cell;
+        double x, y, z;
+        for (int i=1; i<candidateLine.size(); i++) {
+            candidateSegment = new Segment(candidateLine, i-1);
+            for (int cellX=getCell(candidateSegment.getXMin()-maxDistance); cellX<=getCell(candidateSegment.getXMax()+maxDistance); cellX++) {
+                for (int cellZ=getCell(candidateSegment.getZMin()-maxDistance); cellZ<=getCell(candidateSegment.getZMax()+maxDistance); cellZ++) {
+                    cell = cells.get(getCellKey(cellX, cellZ));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Segment segment : cell) {
+                        if (getSquaredDistance(candidateSegment, segment) > maxDistance*maxDistance) {
+                            continue;
+                        }
+                        // Compare the heights at the closest points and ignore crossings near shared junctions.
+                        y = segment.getY(closestParameters[1]);
+                        if (Math.abs(candidateSegment.getY(closestParameters[0]) - y) >= clearance) {
+                            continue;
+                        }
+                        x = segment.getX(closestParameters[1]);
+                        z = segment.getZ(closestParameters[1]);
+                        if (isInSharedSameHeightRadius(candidate, segment.polyline.edge, x, z)) {
+                            continue;
+                        }
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInSharedSameHeightRadius(RoadEdge candidate, RoadEdge edge, double x, double z) {
+        return isSharedAndInSameHeightRadius(candidate.from, edge, x, z)
+                || isSharedAndInSameHeightRadius(candidate.to, edge, x, z);
+    }
+
+    private static boolean isSharedAndInSameHeightRadius(RoadJunction junction, RoadEdge edge, double x, double z) {
+        if (junction.elementID != edge.from.elementID && junction.elementID != edge.to.elementID) {
+            return false;
+        }
+        // Polyline coordinates are offset by half a block (see RoadPolyline).
+        return MathHelper.square(MathHelper.floor(x)-junction.pos.getX()) + MathHelper.square(MathHelper.floor(z)-junction.pos.getZ())
+                <= junction.sameHeightRadius*junction.sameHeightRadius;
+    }
+
+    /**
+     * Calculates the squared distance between two segments on the x-z-plane and stores the parameters of the closest
+     * points of both segments in {@link RoadSegmentGrid#closestParameters}.
+     */
+    private double getSquaredDistance(Segment segment1, Segment segment2) {
+        double d1x = segment1.x1 - segment1.x0;
+        double d1z = segment1.z1 - segment1.z0;
+        double d2x = segment2.x1 - segment2.x0;
+        double d2z = segment2.z1 - segment2.z0;
+        double rx = segment1.x0 - segment2.x0;
+        double rz = segment1.z0 - segment2.z0;
+        double a = d1x*d1x + d1z*d1z;
+        double e = d2x*d2x + d2z*d2z;
+        double f = d2x*rx + d2z*rz;
+        double s, t;
+        if (a <= 1e-9 && e <= 1e-9) {
+            s = 0;
+            t = 0;
+        } else if (a <= 1e-9) {
+            s = 0;
+            t = MathHelper.clamp(f / e, 0, 1);
+        } else {
+            double c = d1x*rx + d1z*rz;
+            if (e <= 1e-9) {
+                t = 0;
+                s = MathHelper.clamp(-c / a, 0, 1);
+            } else {
+                double b = d1x*d2x + d1z*d2z;
+                double denominator = a*e - b*b;
+                s = denominator != 0 ? MathHelper.clamp((b*f - c*e) / denominator, 0, 1) : 0;
+                t = (b*s + f) / e;
+                if (t < 0) {
+                    t = 0;
+                    s = MathHelper.clamp(-c / a, 0, 1);
+                } else if (t > 1) {
+                    t = 1;
+                    s = MathHelper.clamp((b - c) / a, 0, 1);
+                }
+            }
+        }
+        closestParameters[0] = s;
+        closestParameters[1] = t;
+        return MathHelper.square(segment1.getX(s) - segment2.getX(t)) + MathHelper.square(segment1.getZ(s) - segment2.getZ(t));
+    }
+
+    private static int getCell(double coordinate) {
+        return Math.floorDiv(MathHelper.floor(coordinate), CELL_LENGTH);
+    }
+
+    private static long getCellKey(int cellX, int cellZ) {
+        return (long) cellX & 0xFFFFFFFFL | ((long) cellZ & 0xFFFFFFFFL) << 32;
+    }
+
+    private static class Segment {
+        private final RoadPolyline polyline;
+        private final double x0, y0, z0, x1, y1, z1;
+
+        private Segment(RoadPolyline polyline, int index) {
+            this.polyline = polyline;
+            x0 = polyline.getX(index);
+            y0 = polyline.getY(index);
+            z0 = polyline.getZ(index);
+            x1 = polyline.getX(index+1);
+            y1 = polyline.getY(index+1);
+            z1 = polyline.getZ(index+1);
+        }
+
+        private double getX(double t) {
+            return x0 + t*(x1-x0);
+        }
+
+        private double getY(double t) {
+            return y0 + t*(y1-y0);
+        }
+
+        private double getZ(double t) {
+            return z0 + t*(z1-z0);
+        }
+
+        private double getXMin() {
+            return Math.min(x0, x1);
+        }
+
+        private double getXMax() {
+            return Math.max(x0, x1);
+        }
+
+        private double getZMin() {
+            return Math.min(z0, z1);
+        }
+
+        private double getZMax() {
+            return Math.max(z0, z1);
+        }
+    }
+}
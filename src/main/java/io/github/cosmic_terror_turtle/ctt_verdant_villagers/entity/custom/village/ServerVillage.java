@@ -1,14 +1,22 @@
 package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
 
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.VerdantVillagers;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.data.village.*;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.VillageHeartEntity;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeature;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBit;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBits;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureCollision;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.*;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.structure.*;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.ModTags;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.SplitMixRandom;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
@@ -28,12 +36,18 @@ import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Box;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.world.World;
 import net.minecraft.world.biome.Biome;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
 
 public class ServerVillage extends Village {
 
@@ -41,6 +55,11 @@ public class ServerVillage extends Village {
      * The different phases that the village cycles through when updating.
      */
     private enum UpdateCyclePhase {PAUSE, STRUCTURES, TREE_FARMS, ROADS, VILLAGERS}
+    /**
+     * The phases of the initialization of a new village, one of which is executed per tick. The village does not
+     * update before it is {@link InitPhase#READY}.
+     */
+    private enum InitPhase {ANALYZING, TYPING, PALETTES, SCANNING, READY}
     /**
      * Used for defining what block positions are valid ground positions. {@link SurfaceFluidMode#NONE} is for normal
      * positions on land, {@link SurfaceFluidMode#AS_GROUND} is for positions on land and on the fluid surface, and
@@ -96,6 +115,20 @@ public class ServerVillage extends Village {
      * The maximum slope angle that a road edge can have.
      */
     public static final double ROAD_EDGE_MAX_Y_SLOPE = 0.39;
+    /**
+     * If true, the planned centerlines of road edge candidates are tested against the centerlines of existing edges
+     * before the candidates get rasterized (see {@link RoadSegmentGrid}). The terrain adjustment of a candidate is
+     * computed first, so its centerline has the heights of the rasterized edge up to rounding.
+     */
+    public static boolean roadEdgePolylineBroadphase = true;
+    /**
+     * The distance between the centerlines of two road edges on the x-z-plane below which they are considered crossing.
+     */
+    private static final double ROAD_EDGE_CROSSING_DISTANCE = 0.5;
+    /**
+     * The height difference below which crossing road edges collide.
+     */
+    private static final double ROAD_EDGE_CROSSING_CLEARANCE = 4.0;
     /**
      * The basic maximum length that an access path can have.
      */
@@ -105,38 +138,111 @@ public class ServerVillage extends Village {
      * The percentage of major roads that will become bridges over fluid surfaces for coastal villages.
      */
     private static final double ROAD_EDGE_COASTAL_BRIDGES_CHANCE = 0.7;
+    /**
+     * The number of times a planning step runs against a snapshot before it counts as failed. Runs are repeated if
+     * their snapshot was missing sections or if the world has changed where they planned features.
+     */
+    private static final int MAX_PLANNING_ATTEMPTS = 4;
+    /**
+     * The number of chunk section snapshots kept for planning after which all of them are dropped.
+     */
+    private static final int MAX_PLANNING_SECTIONS = 1 << 13;
 
     /**
      * If true, the villagers get counted normally. If false, the count is incremented every {@link ServerVillage#update()}
      * call and can be manually adjusted by the player.
      */
     public static boolean countVillagers = false;
+    /**
+     * The time in microseconds that a village may spend taking snapshots of its mega chunks per tick.
+     */
+    public static int megaChunkScanBudgetMicros = 2000;
+    /**
+     * If true, the planning steps of the update cycle run on the {@link VillageWorkers} against a
+     * {@link PlanningSnapshot}, and the planned features are committed on the server thread in a later tick (see
+     * {@link ServerVillage#advancePlanning()}).
+     */
+    public static boolean asyncPlanning = false;
+    /**
+     * The time in microseconds that a village may spend per tick taking snapshots of the chunk sections that a
+     * planning step was missing.
+     */
+    public static int planningSnapshotBudgetMicros = 2000;
+    /**
+     * The time in microseconds that a planning step of the update cycle may search per tick unless
+     * {@link ServerVillage#asyncPlanning} is enabled. Searches that take longer continue in the following ticks. If
+     * zero or less, every search runs to completion at once.
+     */
+    public static int planningBudgetMicros = 2000;
+    /**
+     * If true, structure searches that run against a {@link PlanningSnapshot} test the positions of each search circle
+     * in parallel (see {@link VillageWorkers#getCandidatePool()}).
+     */
+    public static boolean parallelCandidateEvaluation = true;
+
+    private static final ArrayList<ServerVillage> villages = new ArrayList<>(); // All villages that have not been removed
+
+    /**
+     * Abandons the planning steps of all villages. Steps running on the {@link VillageWorkers} are cancelled and
+     * waited for, since they read the {@link DataRegistry} and the templates of the providers. Must be called on the
+     * server thread before the data is reloaded.
+     */
+    public static void cancelPlanning() {
+        villages.forEach(ServerVillage::abandonPlanning);
+    }
+
+    /**
+     * Gets all villages that have not been removed.
+     * @return A copy of the list of villages.
+     */
+    public static List<ServerVillage> getVillages() {
+        return new ArrayList<>(villages);
+    }
 
 
     // Fields deleted when the entity gets unloaded.
     private int ticksSinceLastUpdate = 0;
     private final World world;
+    private final VillageBlockReader blockReader;
+    private final TerrainTypeCache terrainTypeCache;
+    private final VillageWorkers.Lane workerLane; // All work of this village on the VillageWorkers is submitted here.
     private BlockPos pos;
-    public final Random random;
+    public final SplitMixRandom random; // Restarted with a new stream for every update step and planning step.
     public final RoadTypeProvider roadTypeProvider;
     public final StructureProvider structureProvider;
     private UpdateCyclePhase cyclePhase = UpdateCyclePhase.PAUSE;
     private RoadType roadType = null;
     private double needForRoads = 0;
-    private final ArrayList<RoadEdge> accessPathsToPlace = new ArrayList<>();
+    private final VillageOccupancyIndex occupancyIndex = new VillageOccupancyIndex(); // Positions of all planned features
+    private final RoadSegmentGrid roadSegmentGrid = new RoadSegmentGrid(); // Centerlines of all road edges
+    private final ArrayDeque<MegaChunk> megaChunksToScan = new ArrayDeque<>(); // Mega chunks that still have sections to snapshot.
+    private final ArrayDeque<MegaChunk.Scan> runningScans = new ArrayDeque<>(); // Scans whose results have not been applied yet.
+    private final Long2ObjectOpenHashMap<ChunkSectionSnapshot> planningSections = new Long2ObjectOpenHashMap<>(); // Section snapshots for planning by PlanningSnapshot.getSectionKey()
+    private final LongArrayFIFOQueue sectionsToSnapshot = new LongArrayFIFOQueue(); // Sections that the current planning run was missing.
+    private final LongOpenHashSet sectionsChangedWhilePlanning = new LongOpenHashSet();
+    private final ConcurrentLinkedQueue<PlanningRun> finishedPlanningRuns = new ConcurrentLinkedQueue<>(); // Filled by the workers.
+    private @Nullable PlanningRun planningRun = null; // The planning step that is running or waiting for sections.
+    private @Nullable PlanningSnapshot planningSnapshot = null; // While set, planning reads the terrain from this snapshot.
+    private @Nullable PlanningSearch planningSearch = null; // The search of the planning step that runs on the server thread.
+    private boolean planningSearchFailureRaisesNeedForRoads = false;
 
     // Fields persistent when the entity gets unloaded.
     private long nextElementID; // The unique id that is given next to a new feature. Always post-increment when assigning the next id.
+    private long seed; // The seed from which all random streams of this village are derived.
+    private long randomStreams; // The number of random streams that have been started so far.
+    private InitPhase initPhase;
     // Village type parameters
-    private final float landAbove;
-    private final float landBelow;
-    private final float airAbove;
-    private final float airBelow;
-    private final float fluidAbove;
-    private final float fluidBelow;
+    private float landAbove;
+    private float landBelow;
+    private float airAbove;
+    private float airBelow;
+    private float fluidAbove;
+    private float fluidBelow;
+    private float terrainCategoryConfidence; // The probability that the terrain category matches the exact terrain ratios.
     private String villageType;
     public final HashMap<Identifier, Integer> blockCounts; // Map that holds the number of blocks contained in the mega chunks for each type.
     private final ArrayList<MegaChunk> megaChunks;
+    private final Long2ObjectOpenHashMap<MegaChunk> megaChunksByKey = new Long2ObjectOpenHashMap<>(); // Mega chunks by MegaChunk.getKey()
     private final HashMap<String, ArrayList<BlockPalette>> blockPalettes; // Map between block palette type and the list of palettes this village uses for that type.
     private final ArrayList<RoadJunction> roadJunctions;
     private final ArrayList<RoadEdge> roadEdges;
@@ -152,163 +258,39 @@ public class ServerVillage extends Village {
         super(villageHeart);
 
         world = villageHeart.world;
+        blockReader = new VillageBlockReader(world);
+        terrainTypeCache = new TerrainTypeCache(blockReader, megaChunksByKey::containsKey);
+        workerLane = new VillageWorkers.Lane(() -> villageHeart.getName().getString() + " at " + villageHeart.getBlockPos().toShortString());
         pos = villageHeart.getBlockPos();
-        random = new Random();
+        seed = createSeed(world, pos);
+        randomStreams = 0;
+        random = new SplitMixRandom(seed);
         roadTypeProvider = new RoadTypeProvider(this);
         structureProvider = new StructureProvider(this);
+        villages.add(this);
 
         // Initialize persistent fields
 
         // Misc values
         nextElementID = 0;
-        villageHeart.setCustomName(Text.literal(DataRegistry.getRandomVillageName()));
+        villageHeart.setCustomName(Text.literal(DataRegistry.getRandomVillageName(random)));
         villagerCount = 0;
 
-        // Analyze terrain
-        int xzTerrainRadius = 64;
-        int yTerrainRadius = 25;
-        BlockPos testPos;
-        // Start total at 1 to avoid zero division
-        int totalA = 1;
-        int totalB = 1;
-        int landA = 0;
-        int airA = 0;
-        int fluidA = 0;
-        int landB = 0;
-        int airB = 0;
-        int fluidB = 0;
-        for (int i=-xzTerrainRadius; i<xzTerrainRadius; i++) {
-            for (int j=-yTerrainRadius; j<yTerrainRadius; j++) {
-                for (int k=-xzTerrainRadius; k<xzTerrainRadius; k++) {
-                    testPos = pos.add(i, j, k);
-                    // Ignore positions outside the height limit
-                    if (world.getBlockState(testPos).isOf(Blocks.VOID_AIR)) {
-                        continue;
-                    }
-                    if (j<0) totalB++; else totalA++;
-                    if (world.getFluidState(testPos).isEmpty()) {
-                        if (world.getBlockState(testPos).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)) {
-                            // Ground
-                            if (j<0) landB++; else landA++;
-                        } else {
-                            // Neither ground nor fluid
-                            if (j<0) airB++; else airA++;
-                        }
-                    } else {
-                        // Fluid
-                        if (j<0) fluidB++; else fluidA++;
-                    }
-                }
-            }
-        }
-        landAbove = (float) landA / totalA;
-        landBelow = (float) landB / totalB;
-        airAbove = (float) airA / totalA;
-        airBelow = (float) airB / totalB;
-        fluidAbove = (float) fluidA / totalA;
-        fluidBelow = (float) fluidB / totalB;
-
-        // Determine terrain category
-        String terrainCategory;
-        if (airBelow > 0.7) {
-            terrainCategory = "sky";
-        } else if (landAbove > 0.55) {
-            terrainCategory = "under_ground";
-        } else if (fluidAbove > 0.30) {
-            terrainCategory = "under_fluid";
-        } else if (fluidBelow > 0.15) {
-            terrainCategory = "on_coast";
-        } else {
-            terrainCategory = "on_land";
-        }
-
-        // Determine village type
+        // Village type parameters are determined during initialization.
+        initPhase = InitPhase.ANALYZING;
         villageType = null;
-        ArrayList<String> villageTypes = new ArrayList<>(DataRegistry.getVillageTypes());
-        ArrayList<String> fittingVillageTypes = new ArrayList<>();
-        VillageTypeData data;
-        RegistryEntry<Biome> biomeEntry = world.getBiome(pos);
-        String biomeID = biomeEntry.getKey().get().getValue().toString();
-        boolean biomeOkay;
-        for (String vType : villageTypes) {
-            // Check if terrain category, dimension and biome of each village type are sufficient
-            data = DataRegistry.getVillageTypeData(vType);
-            if (!data.dimensions.isEmpty() && !data.dimensions.contains(world.getDimensionKey().getValue().toString())) {
-                continue;
-            }
-            if (!data.terrainCategory.equals(terrainCategory)) {
-                continue;
-            }
-
-            biomeOkay = false;
-            if (data.biomes.isEmpty()) {
-                biomeOkay = true;
-            } else {
-                for (String biome : data.biomes) {
-                    if (biome.startsWith("#")) {
-                        // Test biome tag
-                        if (biomeEntry.isIn(TagKey.of(RegistryKeys.BIOME, new Identifier(biome.substring(1))))) {
-                            biomeOkay = true;
-                            break;
-                        }
-                    } else {
-                        // Test biome
-                        if (biome.equals(biomeID)) {
-                            biomeOkay = true;
-                            break;
-                        }
-                    }
-                }
-            }
-            if (biomeOkay) {
-                // The village type fits.
-                fittingVillageTypes.add(vType);
-            }
-        }
-        if (fittingVillageTypes.isEmpty()) {
-            villageType = "default";
-        } else {
-            villageType = fittingVillageTypes.get(random.nextInt(fittingVillageTypes.size()));
-        }
-
-        // Maps, lists and block palettes
 
+        // Maps and lists
+        blockCounts = new HashMap<>();
+        megaChunks = new ArrayList<>();
         blockPalettes = new HashMap<>();
         for (String typeKey : DataRegistry.getBlockPaletteTypeKeys()) {
             blockPalettes.put(typeKey, new ArrayList<>());
         }
-        HashMap<Identifier, Integer> tmpBlockCounts = new HashMap<>(); // Map used for initial terrain scan close to the center
-        Identifier blockId;
-        int xzPaletteRadius = 80;
-        int yPaletteRadius = 15;
-        for (int i=-xzPaletteRadius; i<xzPaletteRadius; i++) {
-            for (int j=-yPaletteRadius; j<yPaletteRadius; j++) {
-                for (int k=-xzPaletteRadius; k<xzPaletteRadius; k++) {
-                    blockId = Registries.BLOCK.getId(world.getBlockState(pos.add(i, j, k)).getBlock());
-                    tmpBlockCounts.put(blockId, tmpBlockCounts.getOrDefault(blockId, 0)+1);
-                }
-            }
-        }
-        addBlockPalettesForAllTypes(tmpBlockCounts);
-        roadTypeProvider.resetTemplates();
-        structureProvider.resetTemplates();
-
-        blockCounts = new HashMap<>();
-        megaChunks = new ArrayList<>();
-        addMegaChunksAround(pos);
-
         roadJunctions = new ArrayList<>();
         roadEdges = new ArrayList<>();
         accessPaths = new ArrayList<>();
         structures = new ArrayList<>();
-
-        // output name, type and terrain stats for testing
-        for (PlayerEntity player : world.getPlayers()) {
-            player.sendMessage(Text.literal(villageHeart.getName().getString()+" ("+villageType+")"));
-            player.sendMessage(Text.literal(
-                    "A/B land: " + landAbove + "/" + landBelow + ", fluid: " + fluidAbove + "/" + fluidBelow + ", air: " + airAbove + "/" + airBelow
-            ));
-        }
     }
 
     // Serialize all data that needs to be persistent.
@@ -316,6 +298,8 @@ public class ServerVillage extends Village {
         NbtCompound nbt = new NbtCompound();
 
         nbt.putLong("nextElementID", nextElementID);
+        nbt.putLong("seed", seed);
+        nbt.putLong("randomStreams", randomStreams);
         nbt.putInt("villagerCount", villagerCount);
         nbt.putFloat("landAbove", landAbove);
         nbt.putFloat("landBelow", landBelow);
@@ -323,7 +307,11 @@ public class ServerVillage extends Village {
         nbt.putFloat("airBelow", airBelow);
         nbt.putFloat("fluidAbove", fluidAbove);
         nbt.putFloat("fluidBelow", fluidBelow);
-        nbt.putString("villageType", villageType);
+        nbt.putFloat("terrainCategoryConfidence", terrainCategoryConfidence);
+        nbt.putString("initPhase", initPhase.name());
+        if (villageType != null) {
+            nbt.putString("villageType", villageType);
+        }
 
         // Block counts
         NbtCompound blockCountsNbt = new NbtCompound();
@@ -393,10 +381,17 @@ public class ServerVillage extends Village {
         super(villageHeart);
 
         world = villageHeart.world;
+        blockReader = new VillageBlockReader(world);
+        terrainTypeCache = new TerrainTypeCache(blockReader, megaChunksByKey::containsKey);
+        workerLane = new VillageWorkers.Lane(() -> villageHeart.getName().getString() + " at " + villageHeart.getBlockPos().toShortString());
         pos = villageHeart.getBlockPos();
-        random = new Random();
+        // Villages saved before seeded randomness was introduced derive their seed like new villages.
+        seed = nbt.contains("seed") ? nbt.getLong("seed") : createSeed(world, pos);
+        randomStreams = nbt.getLong("randomStreams");
+        random = new SplitMixRandom(SplitMixRandom.mix(seed, randomStreams));
         roadTypeProvider = new RoadTypeProvider(this);
         structureProvider = new StructureProvider(this);
+        villages.add(this);
 
         // Read the village heart from the nbt tag.
 
@@ -408,7 +403,11 @@ public class ServerVillage extends Village {
         airBelow = nbt.getFloat("airBelow");
         fluidAbove = nbt.getFloat("fluidAbove");
         fluidBelow = nbt.getFloat("fluidBelow");
-        villageType = nbt.getString("villageType");
+        // Villages saved before terrain sampling was introduced were analyzed block by block.
+        terrainCategoryConfidence = nbt.contains("terrainCategoryConfidence") ? nbt.getFloat("terrainCategoryConfidence") : 1;
+        // Villages saved before initialization was split into phases are always ready.
+        initPhase = nbt.contains("initPhase") ? InitPhase.valueOf(nbt.getString("initPhase")) : InitPhase.READY;
+        villageType = nbt.contains("villageType") ? nbt.getString("villageType") : null;
 
         // Block counts
         NbtCompound blockCountsNbt = nbt.getCompound("blockCounts");
@@ -420,8 +419,14 @@ public class ServerVillage extends Village {
         // Mega chunks
         NbtCompound megaChunksNbt = nbt.getCompound("megaChunks");
         megaChunks = new ArrayList<>();
+        MegaChunk megaChunk;
         for (String key : megaChunksNbt.getKeys()) {
-            megaChunks.add(new MegaChunk(megaChunksNbt.getCompound(key)));
+            megaChunk = new MegaChunk(megaChunksNbt.getCompound(key));
+            megaChunks.add(megaChunk);
+            megaChunksByKey.put(megaChunk.getKey(), megaChunk);
+            VillageBlockTracker.register(world, this, megaChunk);
+            // Scanned mega chunks are scanned again to rebuild their surface index.
+            megaChunksToScan.add(megaChunk);
         }
 
         // Block palettes
@@ -437,8 +442,8 @@ public class ServerVillage extends Village {
                 for (int i=0; i<palettesPerTypeCount; i++) {
                     blockPalettes.get(typeKey).add(DataRegistry.getBlockPalette(typeKey, palettesForTypeNbt.getString(String.valueOf(i))));
                 }
-            } else {
-                addBlockPaletteFor(typeKey, blockCounts);
+            } else if (initPhase.compareTo(InitPhase.PALETTES) > 0) {
+                addBlockPaletteFor(typeKey, getExtrapolatedBlockCounts());
             }
         }
         roadTypeProvider.resetTemplates();
@@ -471,15 +476,86 @@ public class ServerVillage extends Village {
         for (String key : structuresNbt.getKeys()) {
             structures.add(new Structure(structuresNbt.getCompound(key)));
         }
+
+        // Occupancy index
+        for (RoadJunction junction : roadJunctions) {
+            occupancyIndex.add(junction, VillageOccupancyIndex.Layer.JUNCTION);
+        }
+        for (RoadEdge edge : roadEdges) {
+            occupancyIndex.add(edge, VillageOccupancyIndex.Layer.EDGE);
+            roadSegmentGrid.add(edge);
+        }
+        for (RoadEdge path : accessPaths) {
+            occupancyIndex.add(path, VillageOccupancyIndex.Layer.ACCESS_PATH);
+        }
+        for (Structure structure : structures) {
+            occupancyIndex.add(structure, VillageOccupancyIndex.Layer.STRUCTURE);
+        }
     }
 
     public World getWorld() {
         return world;
     }
 
+    public VillageBlockReader getBlockReader() {
+        return blockReader;
+    }
+
+    public TerrainTypeCache getTerrainTypeCache() {
+        return terrainTypeCache;
+    }
+
+    public VillageWorkers.Lane getWorkerLane() {
+        return workerLane;
+    }
+
+    /**
+     * Gets the terrain type cache that planning should use. This is the cache of the {@link PlanningSnapshot} while
+     * a planning step runs against one.
+     * @return The terrain type cache.
+     */
+    public TerrainTypeCache getPlanningTerrainTypeCache() {
+        return planningSnapshot == null ? terrainTypeCache : planningSnapshot.getTerrainTypeCache();
+    }
+
     public void remove() {
+        villages.remove(this);
+        // A running planning step is abandoned before anything it reads is cleared.
+        abandonPlanning();
         roadTypeProvider.remove();
         structureProvider.remove();
+        // Results of scans that are still running are discarded.
+        megaChunksToScan.clear();
+        runningScans.clear();
+        terrainTypeCache.clear();
+        occupancyIndex.clear();
+        roadSegmentGrid.clear();
+        workerLane.close();
+        finishedPlanningRuns.clear();
+        sectionsToSnapshot.clear();
+        planningSections.clear();
+        VillageBlockTracker.unregisterAll(world, this);
+    }
+
+    /**
+     * Called by the {@link VillageBlockTracker} after a block in one of the mega chunks of this village has changed.
+     * Drops the planning snapshots of the affected sections and remembers the section for revalidating the features
+     * of a running planning step.
+     * @param pos The position of the changed block.
+     */
+    public void onBlockChanged(BlockPos pos) {
+        if (planningSections.isEmpty() && planningRun == null) {
+            return;
+        }
+        long sectionKey = PlanningSnapshot.getSectionKey(pos.getX(), pos.getY(), pos.getZ());
+        planningSections.remove(sectionKey);
+        // Section snapshots contain the classes of the lowest layer of the section above.
+        if ((pos.getY() & 15) == 0) {
+            planningSections.remove(PlanningSnapshot.getSectionKey(pos.getX(), pos.getY()-1, pos.getZ()));
+        }
+        if (planningRun != null) {
+            sectionsChangedWhilePlanning.add(sectionKey);
+        }
     }
 
     public void changeVillagerCount(int amount) {
@@ -621,6 +697,14 @@ public class ServerVillage extends Village {
 
     @Override
     public void tick() {
+        // Chunks may have been unloaded since the last tick.
+        blockReader.invalidate();
+        if (initPhase != InitPhase.READY) {
+            advanceInitialization();
+            return;
+        }
+        scanMegaChunks();
+        advancePlanning();
         ticksSinceLastUpdate++;
         if (ticksSinceLastUpdate > getTicksBetweenUpdates()) {
             ticksSinceLastUpdate = 0;
@@ -628,10 +712,127 @@ public class ServerVillage extends Village {
         }
     }
 
+    /**
+     * Advances the initialization of a new village by one phase. Each phase is short enough to be executed within a
+     * single tick, and the phase is saved with the village, so initialization continues after reloading.
+     */
+    private void advanceInitialization() {
+        switch (initPhase) {
+            case ANALYZING -> {
+                analyzeTerrain();
+                initPhase = InitPhase.TYPING;
+            }
+            case TYPING -> {
+                determineVillageType();
+                initPhase = InitPhase.PALETTES;
+            }
+            case PALETTES -> {
+                // Estimate block counts close to the center for the initial palettes.
+                addBlockPalettesForAllTypes(TerrainProfile.sampleBlockCounts(world, pos, 80, 15, 32, random));
+                roadTypeProvider.resetTemplates();
+                structureProvider.resetTemplates();
+                addMegaChunksAround(pos);
+                initPhase = InitPhase.SCANNING;
+            }
+            case SCANNING -> {
+                scanMegaChunks();
+                if (megaChunksToScan.isEmpty() && runningScans.isEmpty()) {
+                    initPhase = InitPhase.READY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the land, air and fluid ratios around the village.
+     */
+    private void analyzeTerrain() {
+        TerrainProfile terrainProfile = TerrainProfile.sample(world, pos, random);
+        landAbove = terrainProfile.landAbove;
+        landBelow = terrainProfile.landBelow;
+        airAbove = terrainProfile.airAbove;
+        airBelow = terrainProfile.airBelow;
+        fluidAbove = terrainProfile.fluidAbove;
+        fluidBelow = terrainProfile.fluidBelow;
+        terrainCategoryConfidence = terrainProfile.getTerrainCategoryConfidence();
+
+        // output terrain stats for testing
+        for (PlayerEntity player : world.getPlayers()) {
+            player.sendMessage(Text.literal(
+                    "A/B land: " + landAbove + "/" + landBelow + ", fluid: " + fluidAbove + "/" + fluidBelow + ", air: " + airAbove + "/" + airBelow
+            ));
+        }
+        VerdantVillagers.LOGGER.debug("Terrain of village at " + pos + ": " + terrainProfile.getTerrainCategory()
+                + " (confidence " + terrainCategoryConfidence + ", ratio error bound " + terrainProfile.getErrorBound() + ")");
+    }
+
+    /**
+     * Chooses a village type that fits the terrain category, dimension and biome of the village.
+     */
+    private void determineVillageType() {
+        String terrainCategory = TerrainProfile.getTerrainCategory(landAbove, airBelow, fluidAbove, fluidBelow);
+        ArrayList<String> villageTypes = new ArrayList<>(DataRegistry.getVillageTypes());
+        ArrayList<String> fittingVillageTypes = new ArrayList<>();
+        VillageTypeData data;
+        RegistryEntry<Biome> biomeEntry = world.getBiome(pos);
+        String biomeID = biomeEntry.getKey().get().getValue().toString();
+        boolean biomeOkay;
+        for (String vType : villageTypes) {
+            // Check if terrain category, dimension and biome of each village type are sufficient
+            data = DataRegistry.getVillageTypeData(vType);
+            if (!data.dimensions.isEmpty() && !data.dimensions.contains(world.getDimensionKey().getValue().toString())) {
+                continue;
+            }
+            if (!data.terrainCategory.equals(terrainCategory)) {
+                continue;
+            }
+
+            biomeOkay = false;
+            if (data.biomes.isEmpty()) {
+                biomeOkay = true;
+            } else {
+                for (String biome : data.biomes) {
+                    if (biome.startsWith("#")) {
+                        // Test biome tag
+                        if (biomeEntry.isIn(TagKey.of(RegistryKeys.BIOME, new Identifier(biome.substring(1))))) {
+                            biomeOkay = true;
+                            break;
+                        }
+                    } else {
+                        // Test biome
+                        if (biome.equals(biomeID)) {
+                            biomeOkay = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (biomeOkay) {
+                // The village type fits.
+                fittingVillageTypes.add(vType);
+            }
+        }
+        if (fittingVillageTypes.isEmpty()) {
+            villageType = "default";
+        } else {
+            villageType = fittingVillageTypes.get(random.nextInt(fittingVillageTypes.size()));
+        }
+
+        // output name and type for testing
+        for (PlayerEntity player : world.getPlayers()) {
+            player.sendMessage(Text.literal(villageHeart.getName().getString()+" ("+villageType+")"));
+        }
+    }
+
     /**
      * Determines the need for more structures, roads etc. and updates the building plan of the village.
      */
     private void update() {
+        // The plan of the village must not change while a planning step is running, since its search reads it.
+        if (isPlanning()) {
+            return;
+        }
+        nextRandomStream();
         switch (cyclePhase) {
             case PAUSE -> {
                 // Reset variables
@@ -641,13 +842,13 @@ public class ServerVillage extends Village {
                 pos = villageHeart.getBlockPos();
 
                 // Update road type
-                roadType = roadTypeProvider.getRoadType(DataRegistry.getRandomRoadTypeFor(villageType, villagerCount));
+                roadType = roadTypeProvider.getRoadType(DataRegistry.getRandomRoadTypeFor(villageType, villagerCount, random));
 
                 // Add new block palettes if necessary.
                 int targetBlockPaletteLevel = getTargetBlockPaletteLevel();
                 for (String blockPaletteType : blockPalettes.keySet()) {
                     if (blockPalettes.get(blockPaletteType).size() < targetBlockPaletteLevel) {
-                        addBlockPaletteFor(blockPaletteType, blockCounts);
+                        addBlockPaletteFor(blockPaletteType, getExtrapolatedBlockCounts());
                     }
                 }
                 roadTypeProvider.resetTemplates();
@@ -692,9 +893,7 @@ public class ServerVillage extends Village {
                         selectedStructureType,
                         DataRegistry.getStructureTypeData(selectedStructureType).structureCheckMethod)
                 ) {
-                    if (!planSingleStructure(selectedStructureType, true)) {
-                        needForRoads++;
-                    }
+                    plan(() -> new StructureSearch(selectedStructureType, true), true);
                 }
                 cyclePhase = UpdateCyclePhase.TREE_FARMS;
             }
@@ -715,9 +914,7 @@ public class ServerVillage extends Village {
                         selectedTreeFarmStructureType,
                         DataRegistry.getTreeFarmStructureTypeData(selectedTreeFarmStructureType).structureCheckMethod)
                 ) {
-                    if (!planSingleStructure(selectedTreeFarmStructureType, false)) {
-                        needForRoads++;
-                    }
+                    plan(() -> new StructureSearch(selectedTreeFarmStructureType, false), true);
                 }
                 cyclePhase = UpdateCyclePhase.ROADS;
             }
@@ -820,15 +1017,65 @@ public class ServerVillage extends Village {
                         }
                     }
                     if (chunkIsNew) {
-                        // Add new chunk, count blocks and determine features to be removed.
+                        // Add new chunk, queue it for counting blocks and determining features to be removed and keep its
+                        // block counts up to date.
                         megaChunks.add(chunkCandidate);
-                        chunkCandidate.scanBlocks(world, blockCounts, true);
+                        megaChunksByKey.put(chunkCandidate.getKey(), chunkCandidate);
+                        megaChunksToScan.add(chunkCandidate);
+                        VillageBlockTracker.register(world, this, chunkCandidate);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Applies the results of finished mega chunk scans in the order the scans were started and then takes snapshots of
+     * the queued mega chunks until the scan budget of this tick ({@link ServerVillage#megaChunkScanBudgetMicros}) is
+     * used up. The snapshots are scanned on the {@link VillageWorkers}; their results are applied in a later tick.
+     */
+    private void scanMegaChunks() {
+        while (!runningScans.isEmpty() && runningScans.peek().isDone()) {
+            runningScans.poll().apply(world, blockCounts);
+        }
+        long deadline = System.nanoTime() + megaChunkScanBudgetMicros * 1000L;
+        MegaChunk.Scan scan;
+        while (!megaChunksToScan.isEmpty()) {
+            scan = megaChunksToScan.peek().startScan(world, true, deadline, workerLane);
+            if (scan != null) {
+                runningScans.add(scan);
+            }
+            if (megaChunksToScan.peek().isSnapshotted()) {
+                megaChunksToScan.poll();
+            }
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of {@link ServerVillage#blockCounts} that is scaled up as if all mega chunks had already been
+     * scanned. While scans are in progress, this keeps the counts comparable to those of fully scanned villages; once
+     * all scans are complete, the copy matches the actual counts.
+     * @return The extrapolated block counts.
+     */
+    private HashMap<Identifier, Integer> getExtrapolatedBlockCounts() {
+        long scannedSections = 0;
+        for (MegaChunk megaChunk : megaChunks) {
+            scannedSections += megaChunk.getScannedSections();
+        }
+        HashMap<Identifier, Integer> extrapolated = new HashMap<>();
+        if (scannedSections == 0) {
+            return extrapolated;
+        }
+        double factor = (double) megaChunks.size() * MegaChunk.SECTION_COUNT / scannedSections;
+        for (Map.Entry<Identifier, Integer> entry : blockCounts.entrySet()) {
+            extrapolated.put(entry.getKey(), (int) (entry.getValue() * factor));
+        }
+        return extrapolated;
+    }
+
     /**
      * Calculates an inflated villager count for future-safe village planning.
      * @param actualCount The actual villager count.
@@ -849,16 +1096,26 @@ public class ServerVillage extends Village {
      * @return The block position of the surface block or null if no surface block was found.
      */
     public BlockPos getSurfaceBlockForGeoFeature(BlockPos startPosition, int minY, int maxY) {
+        return getSurfaceBlockForGeoFeature(planningSnapshot, random, startPosition, minY, maxY);
+    }
+
+    /**
+     * Same as {@link ServerVillage#getSurfaceBlockForGeoFeature(BlockPos, int, int)}, but reads the terrain from the
+     * given snapshot and draws its random numbers from the given random number generator.
+     * @param snapshot The snapshot to read or null to read the world.
+     * @param random The random number generator to use.
+     */
+    private BlockPos getSurfaceBlockForGeoFeature(@Nullable PlanningSnapshot snapshot, Random random, BlockPos startPosition, int minY, int maxY) {
         // For underground or sky terrain categories, sometimes return random position in the given range.
         String terrainCategory = DataRegistry.getVillageTypeData(villageType).terrainCategory;
         if (random.nextDouble() < 0.5 && (
                 terrainCategory.equals("under_ground") || terrainCategory.equals("sky")
         )) {
             // Return a random position.
-            return startPosition.withY(MathUtils.nextInt(minY, maxY));
+            return startPosition.withY(MathUtils.nextInt(random, minY, maxY));
         } else {
             // Return normal surface positions.
-            return getSurfaceBlock(startPosition, minY, maxY, true);
+            return getSurfaceBlock(snapshot, random, startPosition, minY, maxY, getSurfaceFluidMode(true));
         }
     }
 
@@ -871,66 +1128,124 @@ public class ServerVillage extends Village {
      * @return The block position of the surface block or null if no surface block was found.
      */
     public BlockPos getSurfaceBlock(BlockPos startPosition, int minY, int maxY, boolean fluidIsSurfaceForCoasts) {
-        String terrainCategory = DataRegistry.getVillageTypeData(villageType).terrainCategory;
+        return getSurfaceBlock(planningSnapshot, random, startPosition, minY, maxY, getSurfaceFluidMode(fluidIsSurfaceForCoasts));
+    }
+
+    /**
+     * Determines the surface blocks closest to several positions. Same as calling
+     * {@link ServerVillage#getSurfaceBlock(BlockPos, int, int, boolean)} for each position in order, but the surface
+     * fluid mode is only determined once.
+     * @param startPositions The positions of the blocks from which the searches should start.
+     * @param minYs The minimum Y values checked for each position.
+     * @param maxYs The maximum Y values checked for each position.
+     * @param fluidIsSurfaceForCoasts If true, coastal villages will consider fluid blocks as solid ground.
+     * @return The block positions of the surface blocks, with null for positions where no surface block was found.
+     */
+    public BlockPos[] getSurfaceBlocks(BlockPos[] startPositions, int[] minYs, int[] maxYs, boolean fluidIsSurfaceForCoasts) {
+        SurfaceFluidMode surfaceFluidMode = getSurfaceFluidMode(fluidIsSurfaceForCoasts);
+        BlockPos[] surfaceBlocks = new BlockPos[startPositions.length];
+        for (int i=0; i<startPositions.length; i++) {
+            surfaceBlocks[i] = getSurfaceBlock(planningSnapshot, random, startPositions[i], minYs[i], maxYs[i], surfaceFluidMode);
+        }
+        return surfaceBlocks;
+    }
 
-        // Determine the surface fluid mode depending on the village's terrain category.
-        SurfaceFluidMode surfaceFluidMode = SurfaceFluidMode.NONE;
+    /**
+     * Determines the surface fluid mode depending on the village's terrain category.
+     */
+    private SurfaceFluidMode getSurfaceFluidMode(boolean fluidIsSurfaceForCoasts) {
+        String terrainCategory = DataRegistry.getVillageTypeData(villageType).terrainCategory;
         if (terrainCategory.equals("on_coast") && fluidIsSurfaceForCoasts) {
-            surfaceFluidMode = SurfaceFluidMode.AS_GROUND;
+            return SurfaceFluidMode.AS_GROUND;
         } else if (terrainCategory.equals("under_fluid")) {
-            surfaceFluidMode = SurfaceFluidMode.AS_AIR;
+            return SurfaceFluidMode.AS_AIR;
         }
+        return SurfaceFluidMode.NONE;
+    }
 
+    private BlockPos getSurfaceBlock(@Nullable PlanningSnapshot snapshot, Random random, BlockPos startPosition, int minY, int maxY, SurfaceFluidMode surfaceFluidMode) {
         // Randomly alter starting Y for accessing different heights.
-        startPosition = startPosition.withY(MathUtils.nextInt((minY+startPosition.getY())/2, (maxY+startPosition.getY())/2));
+        startPosition = startPosition.withY(MathUtils.nextInt(random, (minY+startPosition.getY())/2, (maxY+startPosition.getY())/2));
 
         // Locate surface block.
-        BlockPos result = null;
-        if (world != null) {
-            // Check blocks below.
-            for (int yCoord=startPosition.getY(); yCoord>=minY; yCoord--) {
-                if (positionIsValidSurfaceLevel(startPosition.withY(yCoord), surfaceFluidMode)) {
-                    result = startPosition.withY(yCoord);
-                    break;
-                }
-            }
-            // Check blocks above.
-            for (int yCoord=startPosition.getY(); yCoord<=maxY; yCoord++) {
-                if (positionIsValidSurfaceLevel(startPosition.withY(yCoord), surfaceFluidMode)) {
-                    if (result!=null && yCoord-startPosition.getY() > startPosition.getY()-result.getY()) {
-                        return result;
-                    } else {
-                        return startPosition.withY(yCoord);
+        if (world == null) {
+            return null;
+        }
+        int x = startPosition.getX();
+        int z = startPosition.getZ();
+        // Check blocks below and above.
+        int below = findSurfaceLevel(snapshot, x, z, startPosition.getY(), minY, surfaceFluidMode);
+        int above = findSurfaceLevel(snapshot, x, z, startPosition.getY(), maxY, surfaceFluidMode);
+        if (above != SurfaceIndex.NO_LEVEL) {
+            if (below != SurfaceIndex.NO_LEVEL && above-startPosition.getY() > startPosition.getY()-below) {
+                return startPosition.withY(below);
+            } else {
+                return startPosition.withY(above);
+            }
+        }
+        return below == SurfaceIndex.NO_LEVEL ? null : startPosition.withY(below);
+    }
+
+    /**
+     * Finds the surface level of a column closest to {@code fromY} between {@code fromY} and {@code toY}. The surface
+     * indices of the mega chunks are used where available; other parts of the column are scanned block by block.
+     * @param snapshot The {@link PlanningSnapshot} to take both from or null to use the mega chunks and the world.
+     * @param x The x coordinate of the column.
+     * @param z The z coordinate of the column.
+     * @param fromY The y coordinate from which the search starts.
+     * @param toY The y coordinate where the search ends. May be below or above {@code fromY}.
+     * @param surfaceFluidMode Whether the surface block, the block above it or none of them can have fluids.
+     * @return The y coordinate of the surface level or {@link SurfaceIndex#NO_LEVEL} if there is none.
+     */
+    private int findSurfaceLevel(@Nullable PlanningSnapshot snapshot, int x, int z, int fromY, int toY, SurfaceFluidMode surfaceFluidMode) {
+        int step = toY < fromY ? -1 : 1;
+        int y = fromY;
+        int segmentEnd;
+        int level;
+        MegaChunk.SurfaceView surfaceView;
+        MegaChunk megaChunk;
+        while (step < 0 ? y >= toY : y <= toY) {
+            // Search the part of the range that lies within the mega chunk of y.
+            if (snapshot != null) {
+                surfaceView = snapshot.getSurfaceView(MegaChunk.getKey(x, y, z));
+            } else {
+                megaChunk = megaChunksByKey.get(MegaChunk.getKey(x, y, z));
+                surfaceView = megaChunk == null ? null : megaChunk.getSurfaceView();
+            }
+            segmentEnd = MathUtils.getCubeCoordinate(MegaChunk.LENGTH, y) + (step < 0 ? 0 : MegaChunk.LENGTH-1);
+            segmentEnd = step < 0 ? Math.max(segmentEnd, toY) : Math.min(segmentEnd, toY);
+            if (surfaceView != null && surfaceView.hasSurfaceIndexFor(x, z)) {
+                level = surfaceView.findSurfaceLevel(surfaceFluidMode, x, z, y, segmentEnd);
+                if (level != SurfaceIndex.NO_LEVEL) {
+                    return level;
+                }
+            } else {
+                for (int yCoord=y; step < 0 ? yCoord >= segmentEnd : yCoord <= segmentEnd; yCoord+=step) {
+                    if (positionIsValidSurfaceLevel(snapshot, x, yCoord, z, surfaceFluidMode)) {
+                        return yCoord;
                     }
                 }
             }
+            y = segmentEnd + step;
         }
-        return result;
+        return SurfaceIndex.NO_LEVEL;
     }
 
     /**
      * Checks if a position is valid.
-     * @param position The position that should be checked.
+     * @param snapshot The {@link PlanningSnapshot} to read or null to read the world.
+     * @param x The x coordinate of the position that should be checked.
+     * @param y The y coordinate of the position that should be checked.
+     * @param z The z coordinate of the position that should be checked.
      * @param surfaceFluidMode Whether position, the block above it or none of them can have fluids.
      * @return True if the position is an (upwards) surface block.
      */
-    private boolean positionIsValidSurfaceLevel(BlockPos position, SurfaceFluidMode surfaceFluidMode) {
+    private boolean positionIsValidSurfaceLevel(@Nullable PlanningSnapshot snapshot, int x, int y, int z, SurfaceFluidMode surfaceFluidMode) {
         if (world == null) {
             return false;
         } else {
-            return switch (surfaceFluidMode) {
-                case NONE ->
-                        world.getBlockState(position).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)
-                        && !world.getBlockState(position.up()).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)
-                        && world.getFluidState(position.up()).isEmpty();
-                case AS_GROUND ->
-                        (world.getBlockState(position).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS) || !world.getFluidState(position).isEmpty())
-                        && !world.getBlockState(position.up()).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)
-                        && world.getFluidState(position.up()).isEmpty();
-                case AS_AIR ->
-                        world.getBlockState(position).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)
-                        && !world.getBlockState(position.up()).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS);
-            };
+            VillageBlockReader reader = snapshot == null ? blockReader : snapshot.getBlockReader();
+            return SurfaceIndex.isSurfaceLevel(surfaceFluidMode, reader.getClasses(x, y, z), reader.getClasses(x, y+1, z));
         }
     }
 
@@ -939,202 +1254,294 @@ public class ServerVillage extends Village {
      * @param needForRoads A number indicating the need for roads.
      */
     private void planNewRoads(double needForRoads) {
-        // Attempt to plan new roads if the village has not reached the maximum number of road junctions.
+        // Attempt to plan new roads if the village has not reached the maximum number of road junctions. Only one
+        // planning step can run at a time.
         int maxNewRoads = 1;
-        for (int i=0; i<needForRoads && i<maxNewRoads && roadJunctions.size() < JUNCTION_LIMIT; i++) {
-            planSingleJunctionWithEdges();
+        for (int i=0; i<needForRoads && i<maxNewRoads && roadJunctions.size() < JUNCTION_LIMIT && !isPlanning(); i++) {
+            plan(JunctionSearch::new, false);
         }
     }
 
     /**
-     * Attempts to add a single junction to the road network.
+     * Runs a planning step of the update cycle. If {@link ServerVillage#asyncPlanning} is enabled, the step is started
+     * on the {@link VillageWorkers}. Otherwise, its search is advanced on the server thread for
+     * {@link ServerVillage#planningBudgetMicros} per tick. In both cases, the features are committed by
+     * {@link ServerVillage#advancePlanning()} once the step has finished, and the update cycle pauses until then.
+     * @param searches Creates a new search for the features to add. Searches must not change the village plan.
+     * @param failureRaisesNeedForRoads Whether failing to plan features increases the need for roads.
      */
-    private void planSingleJunctionWithEdges() {
-        boolean withinBounds = true;
-        boolean foundPositionNearJunctions = true;
-        double startAngle;
+    private void plan(Supplier<PlanningSearch> searches, boolean failureRaisesNeedForRoads) {
+        long randomSeed = nextRandomStream();
+        if (asyncPlanning) {
+            planningRun = new PlanningRun(searches, failureRaisesNeedForRoads, randomSeed, nextElementID);
+            startPlanningRun();
+        } else if (planningBudgetMicros <= 0) {
+            finishPlanning(searches.get().complete(), failureRaisesNeedForRoads);
+        } else {
+            planningSearch = searches.get();
+            planningSearchFailureRaisesNeedForRoads = failureRaisesNeedForRoads;
+        }
+    }
 
-        BlockPos testPos;
-        int surfaceBlockMaxYOffset = (int)(50*roadType.scale);
-        MegaChunk testPosMegaChunk;
-        RoadJunction newJunction;
-        boolean fluidIsSurfaceForCoasts;
-        RoadEdge testEdge;
-        ArrayList<RoadEdge> newEdges = new ArrayList<>();
-        double testSquaredDist;
-
-        // Loop through different search radii.
-        for (double searchRadius = random.nextDouble(SEARCH_DISTANCE_ROAD);
-             withinBounds && foundPositionNearJunctions;
-             searchRadius += SEARCH_DISTANCE_ROAD
-        ) {
-            withinBounds = false;
-            foundPositionNearJunctions = false;
-            startAngle = random.nextDouble(2*Math.PI);
-
-            // Loop through different points on the circle.
-            angleFor: for (double addAngle = 0;
-                 addAngle < 2*Math.PI;
-                 addAngle += SEARCH_DISTANCE_ROAD/searchRadius
-            ) {
-                // Determine the test position.
-                testPos = pos.add((int) (searchRadius*Math.cos(startAngle+addAngle)), 0, (int) (searchRadius*Math.sin(startAngle+addAngle)));
-                testPos = getSurfaceBlockForGeoFeature(testPos, testPos.getY()-surfaceBlockMaxYOffset, testPos.getY()+surfaceBlockMaxYOffset);
-                if (testPos == null) {
-                    continue;
-                }
-                // Find the mega chunk that this position is a part of.
-                testPosMegaChunk = null;
-                for (MegaChunk megaChunk : megaChunks) {
-                    if (MathUtils.posIsInChunklikeCube(testPos, MegaChunk.LENGTH, megaChunk.getLowerTip())) {
-                        testPosMegaChunk = megaChunk;
-                        withinBounds = true;
+    /**
+     * Restarts {@link ServerVillage#random} with the next stream of this village. Since every stream is derived from the
+     * seed of the village and its index, the village makes the same random decisions every time it is planned with the
+     * same seed, no matter on which thread or in how many ticks its planning steps run.
+     * @return The seed of the new stream.
+     */
+    private long nextRandomStream() {
+        long streamSeed = SplitMixRandom.mix(seed, ++randomStreams);
+        random.setSeed(streamSeed);
+        return streamSeed;
+    }
+
+    /**
+     * Derives the seed of a new village from the seed of the world and the position of its village heart.
+     */
+    private static long createSeed(World world, BlockPos pos) {
+        long worldSeed = world instanceof ServerWorld serverWorld ? serverWorld.getSeed() : 0;
+        return SplitMixRandom.mix(worldSeed, pos.asLong());
+    }
+
+    /**
+     * Determines whether a planning step is running, either on the workers or on the server thread.
+     * @return True if the update cycle has to wait for a planning step.
+     */
+    private boolean isPlanning() {
+        return planningRun != null || planningSearch != null;
+    }
+
+    /**
+     * Finds the mega chunk that a position is a part of.
+     * @param pos The position.
+     * @return The mega chunk or null if the position is outside the village.
+     */
+    private @Nullable MegaChunk findMegaChunkOf(BlockPos pos) {
+        for (MegaChunk megaChunk : megaChunks) {
+            if (MathUtils.posIsInChunklikeCube(pos, MegaChunk.LENGTH, megaChunk.getLowerTip())) {
+                return megaChunk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Commits the result of a planning step.
+     * @param plan The planned features or null if the step failed.
+     * @param failureRaisesNeedForRoads Whether failing to plan features increases the need for roads.
+     */
+    private void finishPlanning(@Nullable Plan plan, boolean failureRaisesNeedForRoads) {
+        if (plan != null) {
+            plan.commit();
+        } else if (failureRaisesNeedForRoads) {
+            needForRoads++;
+        }
+    }
+
+    /**
+     * Takes a new {@link PlanningSnapshot} and runs the current planning step against it on the {@link VillageWorkers}.
+     * The finished run is put into {@link ServerVillage#finishedPlanningRuns}. Since the update cycle pauses while a
+     * planning step is running, the features of the village are not changed while the worker reads them. Every
+     * attempt starts with the same random stream and element IDs, so repeated attempts plan like the first one would
+     * have with the complete terrain.
+     */
+    private void startPlanningRun() {
+        PlanningRun run = planningRun;
+        run.attempts++;
+        run.plan = null;
+        random.setSeed(run.randomSeed);
+        nextElementID = run.firstElementID;
+        planningSnapshot = new PlanningSnapshot(world, megaChunks, planningSections);
+        sectionsChangedWhilePlanning.clear();
+        BlockPos villagePos = pos;
+        CountDownLatch finished = new CountDownLatch(1);
+        run.finished = finished;
+        workerLane.execute(() -> {
+            try {
+                // The search is stepped until it finishes or the run is cancelled.
+                PlanningSearch search = run.searches.get();
+                while (!run.cancelled) {
+                    if (search.step()) {
+                        run.plan = search.getResult();
                         break;
                     }
                 }
-                if (testPosMegaChunk == null) {
-                    continue;
-                }
-                // Is the test position close enough to existing junctions? (Relevant for outer loop)
-                if (!foundPositionNearJunctions) {
-                    for (RoadJunction junction : roadJunctions) {
-                        if (testPos.getSquaredDistance(junction.pos) < Math.pow(ROAD_EDGE_BASE_MAX_LENGTH*roadType.scale, 2)) {
-                            foundPositionNearJunctions = true;
-                            break;
-                        }
-                    }
-                }
-                // Is the test position too close to existing junctions?
-                for (RoadJunction junction : roadJunctions) {
-                    if (testPos.getSquaredDistance(junction.pos) < Math.pow(ROAD_JUNCTION_BASE_SPACE*roadType.scale, 2)) {
-                        continue angleFor;
-                    }
+            } catch (RuntimeException e) {
+                if (!run.cancelled) {
+                    VerdantVillagers.LOGGER.error("Error occurred while planning village at " + villagePos, e);
                 }
+                run.failed = true;
+            } finally {
+                // The run is queued before the latch is released, so that abandonPlanning() can discard it.
+                finishedPlanningRuns.add(run);
+                finished.countDown();
+            }
+        });
+    }
 
-                // Create new junction.
-                newJunction = new RoadJunction(nextElementID++, world, testPos, roadType);
-                // Does the new junction collide with any existing structures, edges or access paths?
-                for (Structure structure : structures) {
-                    if (GeoFeatureCollision.featuresOverlap(newJunction, structure)) {
-                        continue angleFor;
-                    }
-                }
-                for (RoadEdge edge : roadEdges) {
-                    if (GeoFeatureCollision.featuresOverlap(newJunction, edge)) {
-                        continue angleFor;
-                    }
+    /**
+     * Abandons the current planning step without committing its features. If the step is running on the
+     * {@link VillageWorkers}, it is cancelled and this method waits until the worker has stopped reading the village.
+     */
+    private void abandonPlanning() {
+        planningSearch = null;
+        PlanningRun run = planningRun;
+        if (run == null) {
+            return;
+        }
+        run.cancelled = true;
+        planningRun = null;
+        planningSnapshot = null;
+        sectionsToSnapshot.clear();
+        sectionsChangedWhilePlanning.clear();
+        if (run.finished != null) {
+            try {
+                run.finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        finishedPlanningRuns.clear();
+    }
+
+    /**
+     * Advances the current planning step. A search on the server thread is continued until the budget of this tick
+     * ({@link ServerVillage#planningBudgetMicros}) is used up. For a step on the workers, snapshots of the sections
+     * that its last run was missing are taken (within {@link ServerVillage#planningSnapshotBudgetMicros}) and the
+     * step is restarted once all of them are available. Runs that were missing sections or whose features lie in
+     * sections that have changed since the snapshot was taken are repeated up to
+     * {@link ServerVillage#MAX_PLANNING_ATTEMPTS} times. The features of a step are committed once it has finished.
+     */
+    private void advancePlanning() {
+        if (planningSearch != null) {
+            if (planningSearch.advance(System.nanoTime() + planningBudgetMicros * 1000L)) {
+                Plan plan = planningSearch.getResult();
+                planningSearch = null;
+                finishPlanning(plan, planningSearchFailureRaisesNeedForRoads);
+            }
+            return;
+        }
+        if (planningRun == null) {
+            return;
+        }
+        if (!sectionsToSnapshot.isEmpty()) {
+            snapshotPlanningSections();
+            if (sectionsToSnapshot.isEmpty()) {
+                startPlanningRun();
+            }
+            return;
+        }
+        // Runs of abandoned planning steps are dropped.
+        PlanningRun run;
+        do {
+            run = finishedPlanningRuns.poll();
+            if (run == null) {
+                return;
+            }
+        } while (run != planningRun || run.cancelled);
+        PlanningSnapshot snapshot = planningSnapshot;
+        planningSnapshot = null;
+        if (!run.failed && (snapshot.hasMissingSections() || run.plan != null && isOutdated(run.plan))) {
+            if (run.attempts < MAX_PLANNING_ATTEMPTS) {
+                LongIterator iterator = snapshot.getMissingSections().iterator();
+                while (iterator.hasNext()) {
+                    sectionsToSnapshot.enqueue(iterator.nextLong());
                 }
-                for (RoadEdge edge : accessPaths) {
-                    if (GeoFeatureCollision.featuresOverlap(newJunction, edge)) {
-                        continue angleFor;
-                    }
+                if (sectionsToSnapshot.isEmpty()) {
+                    startPlanningRun();
                 }
+                return;
+            }
+            run.plan = null;
+        }
+        planningRun = null;
+        sectionsChangedWhilePlanning.clear();
+        // Sections outside the mega chunks are not updated by the VillageBlockTracker, so their snapshots are dropped.
+        LongIterator iterator = planningSections.keySet().iterator();
+        long sectionKey;
+        while (iterator.hasNext()) {
+            sectionKey = iterator.nextLong();
+            if (!megaChunksByKey.containsKey(MegaChunk.getKey(
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey)),
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey)),
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey))
+            ))) {
+                iterator.remove();
+            }
+        }
+        finishPlanning(run.plan, run.failureRaisesNeedForRoads);
+    }
 
-                // Create between one and two edges connecting the new junction to the road network. The first junction
-                // does not require any edges.
-                if (!roadJunctions.isEmpty()) {
-                    // Search for existing junctions to connect the new junction to.
-                    Collections.shuffle(roadJunctions);
-                    junctionCollisionFor: for (RoadJunction junction : roadJunctions) {
-                        // Will the test edge's length be okay?
-                        testSquaredDist = Math.pow(newJunction.pos.getX()-junction.pos.getX(), 2)
-                                + Math.pow(newJunction.pos.getZ()-junction.pos.getZ(), 2);
-                        if (testSquaredDist < Math.pow(ROAD_EDGE_BASE_MIN_LENGTH*roadType.scale, 2)
-                                || testSquaredDist > Math.pow(ROAD_EDGE_BASE_MAX_LENGTH*roadType.scale, 2)) {
-                            continue;
-                        }
-                        // Create new road edge.
-                        fluidIsSurfaceForCoasts = random.nextDouble() >= ROAD_EDGE_COASTAL_BRIDGES_CHANCE;
-                        testEdge = new RoadEdge(
-                                nextElementID++,
-                                this,
-                                newJunction,
-                                junction,
-                                true,
-                                roadType,
-                                false,
-                                false,
-                                fluidIsSurfaceForCoasts
-                        );
-                        // Is the edge's Y-slope okay?
-                        if (Math.abs(testEdge.getYSlope()) > ROAD_EDGE_MAX_Y_SLOPE) {
-                            // Sometimes recreate the test edge with spiral ramp mode enabled, if the number of spirals
-                            // will not be larger than the allowed amount.
-                            if (Math.abs((junction.pos.getY()-newJunction.pos.getY())/(RoadEdge.SPIRAL_BASE_Y_DIFF*roadType.scale)) <= RoadEdge.MAX_SPIRALS
-                                    && random.nextFloat() < 0.15) {
-                                testEdge = new RoadEdge(
-                                        nextElementID++,
-                                        this,
-                                        newJunction,
-                                        junction,
-                                        false,
-                                        roadType,
-                                        false,
-                                        true,
-                                        fluidIsSurfaceForCoasts
-                                );
-                            } else {
-                                continue;
-                            }
-                        }
-                        // Check if the test edge collides with any structures, other edges or junctions.
-                        for (Structure structure : structures) {
-                            if (GeoFeatureCollision.featuresOverlap(testEdge, structure)) {
-                                continue junctionCollisionFor;
-                            }
-                        }
-                        for (RoadJunction roadJunction : roadJunctions) {
-                            if (roadJunction != junction && GeoFeatureCollision.featuresOverlap(roadJunction, testEdge)) {
-                                continue junctionCollisionFor;
-                            }
-                        }
-                        for (RoadEdge edge : roadEdges) {
-                            if (GeoFeatureCollision.edgesOverlap(testEdge, edge)) {
-                                continue junctionCollisionFor;
-                            }
-                        }
-                        for (RoadEdge edge : newEdges) {
-                            if (GeoFeatureCollision.edgesOverlap(testEdge, edge)) {
-                                continue junctionCollisionFor;
-                            }
-                        }
-                        for (RoadEdge accessPath : accessPaths) {
-                            if (GeoFeatureCollision.featuresOverlap(testEdge, accessPath)) {
-                                continue junctionCollisionFor;
-                            }
-                        }
-
-                        // Add edge to accepted edges list.
-                        newEdges.add(testEdge);
-                        // Only add a maximum of two edges.
-                        if (newEdges.size() >= 2) {
-                            // Break the loop that searches for junctions to connect to, since the new junction
-                            // is already connected to a sufficient number.
-                            break;
-                        }
+    /**
+     * Takes snapshots of the queued sections until the budget of this tick is used up.
+     */
+    private void snapshotPlanningSections() {
+        long deadline = System.nanoTime() + planningSnapshotBudgetMicros * 1000L;
+        long sectionKey;
+        while (!sectionsToSnapshot.isEmpty()) {
+            sectionKey = sectionsToSnapshot.dequeueLong();
+            if (planningSections.containsKey(sectionKey)) {
+                continue;
+            }
+            if (planningSections.size() >= MAX_PLANNING_SECTIONS) {
+                planningSections.clear();
+            }
+            planningSections.put(sectionKey, ChunkSectionSnapshot.of(
+                    world,
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey)),
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey)),
+                    ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey))
+            ));
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+        }
+    }
 
-                    }
-                    // Has at least one edge been created to connect the new junction to the road network?
-                    if (newEdges.isEmpty()) {
-                        continue ;
-                    }
+    /**
+     * Determines whether the world has changed since the snapshot of the current planning run was taken in a section
+     * that contains blocks of the planned features.
+     * @param plan The features planned by the run.
+     * @return True if the features should be planned again.
+     */
+    private boolean isOutdated(Plan plan) {
+        if (sectionsChangedWhilePlanning.isEmpty()) {
+            return false;
+        }
+        GeoFeatureBits bits;
+        for (GeoFeature feature : plan.getFeatures()) {
+            bits = feature.getBits();
+            for (int i=0; i<bits.size(); i++) {
+                if (sectionsChangedWhilePlanning.contains(PlanningSnapshot.getSectionKey(bits.getX(i), bits.getY(i), bits.getZ(i)))) {
+                    return true;
                 }
+            }
+        }
+        return false;
+    }
 
-                // Add the new junction and edges to the network.
-                roadJunctions.add(newJunction);
-                roadEdges.addAll(newEdges);
-                // Extend pillars to the ground.
-                extendPillars(newJunction, newEdges);
-                // Add new chunks around the added junction.
-                addMegaChunksAround(testPosMegaChunk.getLowerTip());
-                // Place the junction and its edges into the world.
-                if (PLACE_BLOCKS_DIRECTLY) {
-                    attemptToPlace(newJunction);
-                    for (RoadEdge edge : newEdges) {
-                        attemptToPlace(edge);
-                    }
-                }
-                return;
+    /**
+     * Adds a planned junction and its edges to the road network and places them.
+     * @param plan The planned junction and edges.
+     */
+    private void commitJunction(JunctionPlan plan) {
+        // Add the new junction and edges to the network.
+        roadJunctions.add(plan.junction);
+        roadEdges.addAll(plan.edges);
+        occupancyIndex.add(plan.junction, VillageOccupancyIndex.Layer.JUNCTION);
+        for (RoadEdge edge : plan.edges) {
+            occupancyIndex.add(edge, VillageOccupancyIndex.Layer.EDGE);
+            roadSegmentGrid.add(edge);
+        }
+        // Extend pillars to the ground.
+        extendPillars(plan.junction, plan.edges);
+        // Add new chunks around the added junction.
+        addMegaChunksAround(plan.megaChunk.getLowerTip());
+        // Place the junction and its edges into the world.
+        if (PLACE_BLOCKS_DIRECTLY) {
+            attemptToPlace(plan.junction);
+            for (RoadEdge edge : plan.edges) {
+                attemptToPlace(edge);
             }
         }
     }
@@ -1157,191 +1564,57 @@ public class ServerVillage extends Village {
             for (GeoFeatureBit startBit : feature.pillarStartBits) {
                 for (int i=1; i<ROAD_PILLAR_EXTENSION_LENGTH; i++) {
                     testPos = startBit.blockPos.down(i);
-                    if (posIsPartOfFeature(testPos) || (i>1 && world.getBlockState(testPos.up()).isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS))) {
+                    if (posIsPartOfFeature(testPos) || (i>1 && (blockReader.getClasses(testPos.getX(), testPos.getY()+1, testPos.getZ()) & BlockStateClassification.NATURAL_GROUND) != 0)) {
                         break;
                     }
                     pillarBits.add(new GeoFeatureBit(startBit.blockState, testPos));
                 }
             }
             feature.addBits(pillarBits);
+            occupancyIndex.addBits(feature, pillarBits);
         }
     }
 
     /**
-     * Scans the entire village for features which overlap a position.
+     * Checks if any planned feature of the village overlaps a position.
      * @param testPos The block position to check.
      * @return True when there is an overlap, false otherwise.
      */
     private boolean posIsPartOfFeature(BlockPos testPos) {
-        for (RoadJunction junction : roadJunctions) {
-            if (junction.bitsCollideWith(testPos)) {
-                return true;
-            }
-        }
-        for (RoadEdge edge : roadEdges) {
-            if (edge.bitsCollideWith(testPos)) {
-                return true;
-            }
-        }
-        for (RoadEdge path : accessPaths) {
-            if (path.bitsCollideWith(testPos)) {
-                return true;
-            }
-        }
-        for (Structure structure : structures) {
-            if (structure.bitsCollideWith(testPos)) {
-                return true;
-            }
-        }
-        return false;
+        return occupancyIndex.isOccupied(testPos);
     }
 
     /**
-     * Attempts to add a single structure.
-     * @param structureType The structure type to use.
-     * @param isRegularStructure Set to true if the type is for a regular structure, false if it is for a tree farm
-     *                           structure.
-     * @return True if the attempt was successful.
+     * Adds a planned structure and its access paths to the village plan and places them.
+     * @param plan The planned structure and access paths.
      */
-    private boolean planSingleStructure(String structureType, boolean isRegularStructure) {
-        // Randomly select the structure template for this attempt.
-        RawStructureTemplate rawTemplate = DataRegistry.getRandomTemplateFor(villageType, structureType, villagerCount, blockPalettes);
-        if (rawTemplate == null) {
-            return false;
+    private void commitStructure(StructurePlan plan) {
+        // Add the new access paths to the network.
+        accessPaths.addAll(plan.accessPaths);
+        for (RoadEdge path : plan.accessPaths) {
+            occupancyIndex.add(path, VillageOccupancyIndex.Layer.ACCESS_PATH);
         }
-        // Set parameter specific to the structure type.
-        StructureTypeData structureTypeData = isRegularStructure ?
-                DataRegistry.getStructureTypeData(structureType)
-                : DataRegistry.getTreeFarmStructureTypeData(structureType);
-        double searchDistance = structureTypeData.searchDistanceMultiplier*SEARCH_DISTANCE_STRUCTURE;
-
-        boolean withinBounds = true;
-        boolean foundPositionNearJunctions = true;
-
-        int junctionCount;
-        double startAngle;
-        BlockPos testPos;
-        int surfaceBlockMaxYOffset = (int)(50*roadType.scale);
-        String terrainTypeAbove;
-        String terrainTypeBelow;
-        MegaChunk testPosMegaChunk;
-        Structure newStructure;
-
-        // Loop through different search radii.
-        for (double searchRadius = random.nextDouble(searchDistance);
-             withinBounds && foundPositionNearJunctions;
-             searchRadius += searchDistance
-        ) {
-            withinBounds = false;
-            foundPositionNearJunctions = false;
-            startAngle = random.nextDouble(2*Math.PI);
-
-            // Loop through different points on the circle.
-            angleFor: for (double addAngle = 0;
-                 addAngle < 2*Math.PI;
-                 addAngle += searchDistance /searchRadius
-            ) {
-                // Determine the test position.
-                testPos = pos.add((int) (searchRadius*Math.cos(startAngle+addAngle)), 0, (int) (searchRadius*Math.sin(startAngle+addAngle)));
-                testPos = getSurfaceBlockForGeoFeature(testPos, testPos.getY()-surfaceBlockMaxYOffset, testPos.getY()+surfaceBlockMaxYOffset);
-                if (testPos == null) {
-                    continue;
-                }
-                // Test if the terrain at the test position matches the constraints of the structure template.
-                terrainTypeAbove = TerrainTypeUtils.getTerrainType(true, world, testPos, 5);
-                terrainTypeBelow = TerrainTypeUtils.getTerrainType(false, world, testPos, 5);
-                if (
-                        !rawTemplate.availableForTerrainTypesAbove.isEmpty()
-                                && !rawTemplate.availableForTerrainTypesAbove.contains(terrainTypeAbove)
-                        || !rawTemplate.availableForTerrainTypesBelow.isEmpty()
-                                && !rawTemplate.availableForTerrainTypesBelow.contains(terrainTypeBelow)
-                ) {
-                    continue;
-                }
-                // Find the mega chunk that this position is a part of.
-                testPosMegaChunk = null;
-                for (MegaChunk megaChunk : megaChunks) {
-                    if (MathUtils.posIsInChunklikeCube(testPos, MegaChunk.LENGTH, megaChunk.getLowerTip())) {
-                        testPosMegaChunk = megaChunk;
-                        withinBounds = true;
-                        break;
-                    }
-                }
-                if (testPosMegaChunk == null) {
-                    continue;
-                }
-                // Test if enough road junctions are nearby.
-                junctionCount = 0;
-                for (RoadJunction junction : roadJunctions) {
-                    if (junction.pos.isWithinDistance(testPos, roadType.scale * POSITIONS_ARE_CLOSE_DISTANCE)) {
-                        junctionCount++;
-                        if (junctionCount >= MIN_NEAR_ROAD_JUNCTIONS) {
-                            break;
-                        }
-                    }
-                }
-                if (junctionCount < MIN_NEAR_ROAD_JUNCTIONS) {
-                    continue ;
-                }
-                foundPositionNearJunctions = true;
-
-                // Create new structure.
-                newStructure = structureProvider.getStructure(nextElementID++, testPos, rawTemplate);
-                if (newStructure == null) {
-                    return false;
-                }
-                // Test if the structure collides with any existing features.
-                for (Structure structure : structures) {
-                    if (GeoFeatureCollision.featuresOverlap(newStructure, structure)) {
-                        continue angleFor;
-                    }
-                }
-                for (RoadEdge edge : roadEdges) {
-                    if (GeoFeatureCollision.featuresOverlap(newStructure, edge)) {
-                        continue angleFor;
-                    }
-                }
-                for (RoadEdge accessPath : accessPaths) {
-                    if (GeoFeatureCollision.featuresOverlap(newStructure, accessPath)) {
-                        continue angleFor;
-                    }
-                }
-                for (RoadJunction junction : roadJunctions) {
-                    if (GeoFeatureCollision.featuresOverlap(newStructure, junction)) {
-                        continue angleFor;
-                    }
-                }
-                // Try to connect all access points.
-                accessPathsToPlace.clear();
-                if (!connectAccessPoints(newStructure)) {
-                    continue;
-                }
-
-                // Add the new structure.
-                structures.add(newStructure);
-                // Add new chunks around the added structure.
-                addMegaChunksAround(testPosMegaChunk.getLowerTip());
-                // Place the structure and the access paths in the world.
-                if (PLACE_BLOCKS_DIRECTLY) {
-                    attemptToPlace(newStructure);
-                    for (RoadEdge approvedPath : accessPathsToPlace) {
-                        attemptToPlace(approvedPath);
-                    }
-                }
-                accessPathsToPlace.clear();
-                return true;
+        // Add the new structure.
+        structures.add(plan.structure);
+        occupancyIndex.add(plan.structure, VillageOccupancyIndex.Layer.STRUCTURE);
+        // Add new chunks around the added structure.
+        addMegaChunksAround(plan.megaChunk.getLowerTip());
+        // Place the structure and the access paths in the world.
+        if (PLACE_BLOCKS_DIRECTLY) {
+            attemptToPlace(plan.structure);
+            for (RoadEdge approvedPath : plan.accessPaths) {
+                attemptToPlace(approvedPath);
             }
         }
-        return false;
     }
 
     /**
-     * Attempts to connect all access points of a structure and adds the resulting paths to the village plan
-     * (call this method as the last step before adding the structure to the village plan).
+     * Attempts to connect all access points of a structure (call this method as the last step before adding the
+     * structure to the village plan).
      * @param structure The structure that is getting planned.
-     * @return True if all access points have been connected.
+     * @return The paths connecting the access points or null if not all access points could be connected.
      */
-    private boolean connectAccessPoints(Structure structure) {
+    private @Nullable ArrayList<RoadEdge> connectAccessPoints(Structure structure) {
         ArrayList<RoadEdge> approvedPaths = new ArrayList<>();
 
         boolean pointApproved;
@@ -1384,8 +1657,8 @@ public class ServerVillage extends Village {
                 testEdge = new RoadEdge(
                         nextElementID++,
                         this,
-                        new RoadJunction(nextElementID++, world, accessPoint.pos, 0.6),
-                        new RoadJunction(nextElementID++, world, roadDot.pos, 2.5*roadDot.edge.radius),
+                        new RoadJunction(nextElementID++, getPlanningTerrainTypeCache(), accessPoint.pos, 0.6),
+                        new RoadJunction(nextElementID++, getPlanningTerrainTypeCache(), roadDot.pos, 2.5*roadDot.edge.radius),
                         true,
                         roadTypeProvider.getRoadType(DataRegistry.getAccessPathRoadType(accessPoint.accessPathRoadType)),
                         true,
@@ -1396,6 +1669,7 @@ public class ServerVillage extends Village {
                 if (Math.abs(testEdge.getYSlope()) > ROAD_EDGE_MAX_Y_SLOPE) {
                     continue;
                 }
+                testEdge.rasterize(this);
                 // Check if the test edge collides with the road edge it is trying to connect to.
                 if (GeoFeatureCollision.accessPathCollidesWithEdge(testEdge, roadDot)) {
                     continue;
@@ -1404,48 +1678,25 @@ public class ServerVillage extends Village {
                 if (GeoFeatureCollision.accessPathCollidesWithItsStructure(structure, accessPoint, testEdge)) {
                     continue;
                 }
-                for (Structure collisionTestStructure : structures) {
-                    if (GeoFeatureCollision.featuresOverlap(testEdge, collisionTestStructure)) {
-                        continue connectDotFor;
-                    }
-                }
-                // Check if the test edge collides with any road edges.
-                for (RoadEdge edge : roadEdges) {
-                    if (!roadDot.edge.equals(edge) && GeoFeatureCollision.featuresOverlap(testEdge, edge)) {
-                        continue connectDotFor;
-                    }
-                }
-                // Check if the test edge collides with any other paths.
-                for (RoadEdge path : accessPaths) {
-                    if (GeoFeatureCollision.featuresOverlap(testEdge, path)) {
-                        continue connectDotFor;
-                    }
+                // Check if the test edge collides with any other structures, road edges, paths or junctions.
+                if (occupancyIndex.overlaps(testEdge, VillageOccupancyIndex.ALL_LAYERS, roadDot.edge.elementID)) {
+                    continue;
                 }
                 for (RoadEdge path : approvedPaths) {
                     if (GeoFeatureCollision.featuresOverlap(testEdge, path)) {
                         continue connectDotFor;
                     }
                 }
-                // Check if the test edge collides with any junctions.
-                for (RoadJunction junction : roadJunctions) {
-                    if (GeoFeatureCollision.featuresOverlap(testEdge, junction)) {
-                        continue connectDotFor;
-                    }
-                }
                 // Access point successfully connected, no more attempts necessary.
                 approvedPaths.add(testEdge);
                 pointApproved = true;
                 break;
             }
             if (!pointApproved) {
-                return false;
+                return null;
             }
         }
-
-        // Add the new access paths to the network.
-        accessPaths.addAll(approvedPaths);
-        accessPathsToPlace.addAll(approvedPaths);
-        return true;
+        return approvedPaths;
     }
 
     /**
@@ -1454,8 +1705,15 @@ public class ServerVillage extends Village {
      * @param feature The feature that should be placed.
      */
     private void attemptToPlace(GeoFeature feature) {
-        for (GeoFeatureBit bit: feature.getBits()) {
-            attemptToPlace(bit);
+        if (world == null) {
+            return;
+        }
+        GeoFeatureBits bits = feature.getBits();
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+        for (int i=0; i<bits.size(); i++) {
+            if (bits.hasBlockState(i) && !BlockStateClassification.isVillageUntouched(blockReader.getBlockState(bits.getX(i), bits.getY(i), bits.getZ(i)))) {
+                world.setBlockState(pos.set(bits.getPos(i)), bits.getBlockState(i));
+            }
         }
     }
     /**
@@ -1464,8 +1722,641 @@ public class ServerVillage extends Village {
      * @param bit The bit that should be placed.
      */
     private void attemptToPlace(GeoFeatureBit bit) {
-        if (world != null && bit.blockState != null && !world.getBlockState(bit.blockPos).isIn(ModTags.Blocks.VILLAGE_UNTOUCHED_BLOCKS)) {
+        if (world != null && bit.blockState != null && !BlockStateClassification.isVillageUntouched(blockReader.getBlockState(bit.blockPos.getX(), bit.blockPos.getY(), bit.blockPos.getZ()))) {
             world.setBlockState(bit.blockPos, bit.blockState);
         }
     }
+
+    /**
+     * Features that were found by a planning step but have not been added to the village yet.
+     */
+    private abstract class Plan {
+        protected final MegaChunk megaChunk; // The mega chunk of the position the features were planned at.
+
+        private Plan(MegaChunk megaChunk) {
+            this.megaChunk = megaChunk;
+        }
+
+        /**
+         * Gets all features of this plan.
+         * @return The features.
+         */
+        protected abstract List<GeoFeature> getFeatures();
+
+        /**
+         * Adds the features to the village and places them. Must be called on the server thread.
+         */
+        protected abstract void commit();
+    }
+
+    private class JunctionPlan extends Plan {
+        private final RoadJunction junction;
+        private final ArrayList<RoadEdge> edges;
+
+        private JunctionPlan(MegaChunk megaChunk, RoadJunction junction, ArrayList<RoadEdge> edges) {
+            super(megaChunk);
+            this.junction = junction;
+            this.edges = edges;
+        }
+
+        @Override
+        protected List<GeoFeature> getFeatures() {
+            ArrayList<GeoFeature> features = new ArrayList<>(edges);
+            features.add(junction);
+            return features;
+        }
+
+        @Override
+        protected void commit() {
+            commitJunction(this);
+        }
+    }
+
+    private class StructurePlan extends Plan {
+        private final Structure structure;
+        private final ArrayList<RoadEdge> accessPaths;
+
+        private StructurePlan(MegaChunk megaChunk, Structure structure, ArrayList<RoadEdge> accessPaths) {
+            super(megaChunk);
+            this.structure = structure;
+            this.accessPaths = accessPaths;
+        }
+
+        @Override
+        protected List<GeoFeature> getFeatures() {
+            ArrayList<GeoFeature> features = new ArrayList<>(accessPaths);
+            features.add(structure);
+            return features;
+        }
+
+        @Override
+        protected void commit() {
+            commitStructure(this);
+        }
+    }
+
+    /**
+     * A search for features to add to the village that can be interrupted and resumed in a later tick (see
+     * {@link ServerVillage#advancePlanning()}). The search tests positions on circles around the village, starting at
+     * a random radius and growing the radius as long as the last circle had positions within the mega chunks and near
+     * road junctions. Every step of the search is short and tests at most one position or feature.
+     */
+    private abstract class PlanningSearch {
+        private boolean started = false;
+        private boolean onCircle = false;
+        private double searchRadius;
+        private double startAngle;
+        private double addAngle;
+        protected boolean withinBounds = true; // Whether the current circle had a position within the mega chunks
+        protected boolean foundPositionNearJunctions = true; // Whether the current circle had a position near junctions
+        private @Nullable Plan result = null;
+
+        /**
+         * Gets the distance between two circles and between two positions on a circle.
+         * @return The search distance.
+         */
+        protected abstract double getSearchDistance();
+
+        /**
+         * Advances the search by one step.
+         * @return True if the search has finished (see {@link PlanningSearch#finish}).
+         */
+        protected abstract boolean step();
+
+        /**
+         * Ends the search.
+         * @param plan The planned features or null if the search failed.
+         * @return True.
+         */
+        protected boolean finish(@Nullable Plan plan) {
+            result = plan;
+            return true;
+        }
+
+        /**
+         * Moves on to the next position on the current circle, or to the next circle if the current one is complete.
+         * @return The test position (at the height of the village) or null if the search area is exhausted.
+         */
+        protected @Nullable BlockPos nextTestPosition() {
+            double searchDistance = getSearchDistance();
+            if (!started) {
+                started = true;
+                searchRadius = random.nextDouble(searchDistance);
+            } else {
+                addAngle += searchDistance/searchRadius;
+                if (addAngle >= 2*Math.PI) {
+                    onCircle = false;
+                    searchRadius += searchDistance;
+                }
+            }
+            if (!onCircle) {
+                if (!withinBounds || !foundPositionNearJunctions) {
+                    return null;
+                }
+                withinBounds = false;
+                foundPositionNearJunctions = false;
+                startAngle = random.nextDouble(2*Math.PI);
+                addAngle = 0;
+                onCircle = true;
+            }
+            return pos.add((int) (searchRadius*Math.cos(startAngle+addAngle)), 0, (int) (searchRadius*Math.sin(startAngle+addAngle)));
+        }
+
+        /**
+         * Moves on to the end of the current circle, or of the next circle if the current one is complete.
+         * @return The test positions passed (see {@link PlanningSearch#nextTestPosition}) or null if the search area is
+         * exhausted.
+         */
+        protected @Nullable ArrayList<BlockPos> nextCircle() {
+            BlockPos testPos = nextTestPosition();
+            if (testPos == null) {
+                return null;
+            }
+            ArrayList<BlockPos> positions = new ArrayList<>();
+            positions.add(testPos);
+            while (addAngle + getSearchDistance()/searchRadius < 2*Math.PI) {
+                positions.add(nextTestPosition());
+            }
+            return positions;
+        }
+
+        /**
+         * Finds the mega chunk that a test position is a part of and marks the current circle as within bounds if
+         * there is one.
+         * @param testPos The test position.
+         * @return The mega chunk or null if the position is outside the village.
+         */
+        protected @Nullable MegaChunk getMegaChunkOf(BlockPos testPos) {
+            MegaChunk megaChunk = findMegaChunkOf(testPos);
+            if (megaChunk != null) {
+                withinBounds = true;
+            }
+            return megaChunk;
+        }
+
+        /**
+         * Advances the search until it has finished or the deadline has passed. At least one step is taken.
+         * @param deadline The deadline in {@link System#nanoTime()}.
+         * @return True if the search has finished.
+         */
+        private boolean advance(long deadline) {
+            do {
+                if (step()) {
+                    return true;
+                }
+            } while (System.nanoTime() <= deadline);
+            return false;
+        }
+
+        /**
+         * Runs the search to its end.
+         * @return The planned features or null if the search failed.
+         */
+        private @Nullable Plan complete() {
+            while (!step()) {
+                // Keep searching.
+            }
+            return result;
+        }
+
+        private @Nullable Plan getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * Searches for a single junction that can be added to the road network, together with the edges connecting it.
+     * Once a junction position has been accepted, each step tests one of the existing junctions it could be connected
+     * to.
+     */
+    private class JunctionSearch extends PlanningSearch {
+        private final int surfaceBlockMaxYOffset = (int)(50*roadType.scale);
+        private MegaChunk testPosMegaChunk = null;
+        private @Nullable RoadJunction newJunction = null; // Set while the connections of a new junction are tested
+        private ArrayList<RoadJunction> shuffledJunctions = null;
+        private int junctionIndex;
+        private final ArrayList<RoadEdge> newEdges = new ArrayList<>();
+
+        @Override
+        protected double getSearchDistance() {
+            return SEARCH_DISTANCE_ROAD;
+        }
+
+        @Override
+        protected boolean step() {
+            if (newJunction != null) {
+                // Only add a maximum of two edges.
+                if (junctionIndex < shuffledJunctions.size() && newEdges.size() < 2) {
+                    testEdgeTo(shuffledJunctions.get(junctionIndex++));
+                    return false;
+                }
+                // Has at least one edge been created to connect the new junction to the road network?
+                if (!newEdges.isEmpty()) {
+                    return finish(new JunctionPlan(testPosMegaChunk, newJunction, newEdges));
+                }
+                newJunction = null;
+                return false;
+            }
+
+            // Determine the test position.
+            BlockPos testPos = nextTestPosition();
+            if (testPos == null) {
+                return finish(null);
+            }
+            testPos = getSurfaceBlockForGeoFeature(testPos, testPos.getY()-surfaceBlockMaxYOffset, testPos.getY()+surfaceBlockMaxYOffset);
+            if (testPos == null) {
+                return false;
+            }
+            // Find the mega chunk that this position is a part of.
+            testPosMegaChunk = getMegaChunkOf(testPos);
+            if (testPosMegaChunk == null) {
+                return false;
+            }
+            // Is the test position close enough to existing junctions? (Relevant for the search radius)
+            if (!foundPositionNearJunctions) {
+                for (RoadJunction junction : roadJunctions) {
+                    if (testPos.getSquaredDistance(junction.pos) < Math.pow(ROAD_EDGE_BASE_MAX_LENGTH*roadType.scale, 2)) {
+                        foundPositionNearJunctions = true;
+                        break;
+                    }
+                }
+            }
+            // Is the test position too close to existing junctions?
+            for (RoadJunction junction : roadJunctions) {
+                if (testPos.getSquaredDistance(junction.pos) < Math.pow(ROAD_JUNCTION_BASE_SPACE*roadType.scale, 2)) {
+                    return false;
+                }
+            }
+
+            // Create new junction.
+            RoadJunction junction = new RoadJunction(random, nextElementID++, getPlanningTerrainTypeCache(), testPos, roadType);
+            // Does the new junction collide with any existing structures, edges or access paths?
+            if (occupancyIndex.overlaps(junction, EnumSet.of(VillageOccupancyIndex.Layer.STRUCTURE,
+                    VillageOccupancyIndex.Layer.EDGE, VillageOccupancyIndex.Layer.ACCESS_PATH))) {
+                return false;
+            }
+            // The first junction does not require any edges.
+            if (roadJunctions.isEmpty()) {
+                return finish(new JunctionPlan(testPosMegaChunk, junction, newEdges));
+            }
+            // Create between one and two edges connecting the new junction to the road network in the next steps.
+            newJunction = junction;
+            shuffledJunctions = new ArrayList<>(roadJunctions);
+            Collections.shuffle(shuffledJunctions, random);
+            junctionIndex = 0;
+            return false;
+        }
+
+        /**
+         * Tests an edge from the new junction to an existing junction and adds it to the new edges if it fits.
+         * @param junction The existing junction.
+         */
+        private void testEdgeTo(RoadJunction junction) {
+            // Will the test edge's length be okay?
+            double testSquaredDist = Math.pow(newJunction.pos.getX()-junction.pos.getX(), 2)
+                    + Math.pow(newJunction.pos.getZ()-junction.pos.getZ(), 2);
+            if (testSquaredDist < Math.pow(ROAD_EDGE_BASE_MIN_LENGTH*roadType.scale, 2)
+                    || testSquaredDist > Math.pow(ROAD_EDGE_BASE_MAX_LENGTH*roadType.scale, 2)) {
+                return;
+            }
+            // Create new road edge.
+            boolean fluidIsSurfaceForCoasts = random.nextDouble() >= ROAD_EDGE_COASTAL_BRIDGES_CHANCE;
+            RoadEdge testEdge = new RoadEdge(
+                    nextElementID++,
+                    ServerVillage.this,
+                    newJunction,
+                    junction,
+                    true,
+                    roadType,
+                    false,
+                    false,
+                    fluidIsSurfaceForCoasts
+            );
+            // Is the edge's Y-slope okay?
+            if (Math.abs(testEdge.getYSlope()) > ROAD_EDGE_MAX_Y_SLOPE) {
+                // Sometimes recreate the test edge with spiral ramp mode enabled, if the number of spirals
+                // will not be larger than the allowed amount.
+                if (Math.abs((junction.pos.getY()-newJunction.pos.getY())/(RoadEdge.SPIRAL_BASE_Y_DIFF*roadType.scale)) <= RoadEdge.MAX_SPIRALS
+                        && random.nextFloat() < 0.15) {
+                    testEdge = new RoadEdge(
+                            nextElementID++,
+                            ServerVillage.this,
+                            newJunction,
+                            junction,
+                            false,
+                            roadType,
+                            false,
+                            true,
+                            fluidIsSurfaceForCoasts
+                    );
+                } else {
+                    return;
+                }
+            }
+            // Does the centerline of the test edge cross an existing edge? This is tested before
+            // rasterizing, since most rejected edges cross other edges.
+            if (roadEdgePolylineBroadphase) {
+                // The terrain adjustment is reused when rasterizing. The rasterized heights are rounded to blocks, so
+                // the clearance is reduced by the rounding.
+                testEdge.prepareTerrainAdjustment(ServerVillage.this);
+                RoadPolyline testLine = testEdge.getPlannedPolyline(1.0);
+                if (testLine != null && roadSegmentGrid.crossesAtGrade(testLine, ROAD_EDGE_CROSSING_DISTANCE,
+                        ROAD_EDGE_CROSSING_CLEARANCE - RoadEdge.ROUNDING_OFFSET)) {
+                    return;
+                }
+            }
+            // Only rasterize edges that passed the checks of their planning stage.
+            testEdge.rasterize(ServerVillage.this);
+            // Check if the test edge collides with any structures, other edges or junctions.
+            if (occupancyIndex.overlaps(testEdge, EnumSet.of(VillageOccupancyIndex.Layer.STRUCTURE))
+                    || occupancyIndex.overlaps(testEdge, EnumSet.of(VillageOccupancyIndex.Layer.JUNCTION), junction.elementID)) {
+                return;
+            }
+            // Overlaps with edges may be allowed near shared junctions (and are then removed from the
+            // test edge), so only the overlapping edges are tested in detail.
+            for (GeoFeature edge : occupancyIndex.getOverlappingFeatures(testEdge, VillageOccupancyIndex.Layer.EDGE)) {
+                if (GeoFeatureCollision.edgesOverlap(testEdge, (RoadEdge) edge)) {
+                    return;
+                }
+            }
+            for (RoadEdge edge : newEdges) {
+                if (GeoFeatureCollision.edgesOverlap(testEdge, edge)) {
+                    return;
+                }
+            }
+            if (occupancyIndex.overlaps(testEdge, EnumSet.of(VillageOccupancyIndex.Layer.ACCESS_PATH))) {
+                return;
+            }
+            // Add edge to accepted edges list.
+            newEdges.add(testEdge);
+        }
+    }
+
+    /**
+     * Searches for a single structure that can be added, together with the access paths connecting it. Each step
+     * tests one position. Searches that run against a {@link PlanningSnapshot} may instead test a whole circle per
+     * step (see {@link ServerVillage#parallelCandidateEvaluation}). The terrain test of every position draws from a
+     * random stream of its own, so that both ways of testing make the same random decisions.
+     */
+    private class StructureSearch extends PlanningSearch {
+        private final @Nullable RawStructureTemplate rawTemplate;
+        private final double searchDistance;
+        private final int surfaceBlockMaxYOffset = (int)(50*roadType.scale);
+        private final long candidateSeed; // The seed from which the random streams of the test positions are derived.
+        private long testedPositions = 0;
+
+        /**
+         * @param structureType The structure type to use.
+         * @param isRegularStructure Set to true if the type is for a regular structure, false if it is for a tree farm
+         *                           structure.
+         */
+        private StructureSearch(String structureType, boolean isRegularStructure) {
+            // Randomly select the structure template for this search.
+            rawTemplate = DataRegistry.getRandomTemplateFor(villageType, structureType, villagerCount, blockPalettes, random);
+            candidateSeed = random.nextLong();
+            // Set parameter specific to the structure type.
+            StructureTypeData structureTypeData = isRegularStructure ?
+                    DataRegistry.getStructureTypeData(structureType)
+                    : DataRegistry.getTreeFarmStructureTypeData(structureType);
+            searchDistance = structureTypeData.searchDistanceMultiplier*SEARCH_DISTANCE_STRUCTURE;
+        }
+
+        @Override
+        protected double getSearchDistance() {
+            return searchDistance;
+        }
+
+        @Override
+        protected boolean step() {
+            if (rawTemplate == null) {
+                return finish(null);
+            }
+            PlanningSnapshot snapshot = planningSnapshot;
+            if (snapshot != null && parallelCandidateEvaluation) {
+                return stepCircle(snapshot);
+            }
+            // Determine the test position.
+            BlockPos testPos = nextTestPosition();
+            if (testPos == null) {
+                return finish(null);
+            }
+            testPos = testTerrainAt(snapshot, getCandidateRandom(testedPositions++), testPos);
+            if (testPos == null) {
+                return false;
+            }
+            // Find the mega chunk that this position is a part of.
+            MegaChunk testPosMegaChunk = getMegaChunkOf(testPos);
+            if (testPosMegaChunk == null) {
+                return false;
+            }
+            if (!hasNearJunctions(testPos)) {
+                return false;
+            }
+            foundPositionNearJunctions = true;
+            return testStructureAt(testPos, testPosMegaChunk);
+        }
+
+        /**
+         * Tests all remaining positions of the current or next circle at once. The terrain and the nearby junctions of
+         * the positions are tested in parallel on the candidate pool of the {@link VillageWorkers}, against forks of
+         * the snapshot. The structures are then created and tested in the order of the positions, so that the first
+         * fitting position wins as in the sequential search.
+         * @param snapshot The snapshot that the search runs against.
+         * @return True if the search has finished.
+         */
+        private boolean stepCircle(PlanningSnapshot snapshot) {
+            ArrayList<BlockPos> positions = nextCircle();
+            if (positions == null) {
+                return finish(null);
+            }
+            int count = positions.size();
+            BlockPos[] surfacePositions = new BlockPos[count];
+            MegaChunk[] testPosMegaChunks = new MegaChunk[count];
+            boolean[] nearJunctions = new boolean[count];
+            PlanningSnapshot[] forks = new PlanningSnapshot[count]; // By the first index of each task
+            VillageWorkers.getCandidatePool().invoke(new CandidateEvaluation(
+                    snapshot, positions, testedPositions, surfacePositions, testPosMegaChunks, nearJunctions, forks, 0, count));
+            testedPositions += count;
+            for (PlanningSnapshot fork : forks) {
+                if (fork != null) {
+                    snapshot.join(fork);
+                }
+            }
+            for (int i=0; i<count; i++) {
+                if (testPosMegaChunks[i] != null) {
+                    withinBounds = true;
+                }
+                if (!nearJunctions[i]) {
+                    continue;
+                }
+                foundPositionNearJunctions = true;
+                if (testStructureAt(surfacePositions[i], testPosMegaChunks[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Creates the random number generator for the terrain test of a test position.
+         * @param index The index of the test position within this search.
+         * @return A random number generator that only depends on the village's random stream and the index.
+         */
+        private Random getCandidateRandom(long index) {
+            return new SplitMixRandom(SplitMixRandom.mix(candidateSeed, index));
+        }
+
+        /**
+         * Determines the surface position for a test position and tests if the terrain there matches the constraints
+         * of the structure template. Does not change the search.
+         * @param snapshot The snapshot to read or null to read the world.
+         * @param random The random number generator of the test position (see {@link StructureSearch#getCandidateRandom}).
+         * @param testPos The test position.
+         * @return The surface position or null if there is none or the terrain does not match.
+         */
+        private @Nullable BlockPos testTerrainAt(@Nullable PlanningSnapshot snapshot, Random random, BlockPos testPos) {
+            testPos = getSurfaceBlockForGeoFeature(snapshot, random, testPos, testPos.getY()-surfaceBlockMaxYOffset, testPos.getY()+surfaceBlockMaxYOffset);
+            if (testPos == null) {
+                return null;
+            }
+            // Test if the terrain at the test position matches the constraints of the structure template.
+            TerrainTypeCache cache = snapshot == null ? terrainTypeCache : snapshot.getTerrainTypeCache();
+            String terrainTypeAbove = cache.getTerrainType(true, testPos, 5);
+            String terrainTypeBelow = cache.getTerrainType(false, testPos, 5);
+            if (
+                    !rawTemplate.availableForTerrainTypesAbove.isEmpty()
+                            && !rawTemplate.availableForTerrainTypesAbove.contains(terrainTypeAbove)
+                    || !rawTemplate.availableForTerrainTypesBelow.isEmpty()
+                            && !rawTemplate.availableForTerrainTypesBelow.contains(terrainTypeBelow)
+            ) {
+                return null;
+            }
+            return testPos;
+        }
+
+        /**
+         * Tests if enough road junctions are near a position.
+         * @param testPos The position.
+         * @return True if there are at least {@link ServerVillage#MIN_NEAR_ROAD_JUNCTIONS} junctions nearby.
+         */
+        private boolean hasNearJunctions(BlockPos testPos) {
+            int junctionCount = 0;
+            for (RoadJunction junction : roadJunctions) {
+                if (junction.pos.isWithinDistance(testPos, roadType.scale * POSITIONS_ARE_CLOSE_DISTANCE)) {
+                    junctionCount++;
+                    if (junctionCount >= MIN_NEAR_ROAD_JUNCTIONS) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Creates the structure at a position that passed all other tests and tries to connect it.
+         * @param testPos The surface position.
+         * @param testPosMegaChunk The mega chunk of the position.
+         * @return True if the search has finished.
+         */
+        private boolean testStructureAt(BlockPos testPos, MegaChunk testPosMegaChunk) {
+            // Create new structure.
+            Structure newStructure = structureProvider.getStructure(nextElementID++, testPos, rawTemplate);
+            if (newStructure == null) {
+                return finish(null);
+            }
+            // Test if the structure collides with any existing features.
+            if (occupancyIndex.overlaps(newStructure, VillageOccupancyIndex.ALL_LAYERS)) {
+                return false;
+            }
+            // Try to connect all access points.
+            ArrayList<RoadEdge> newAccessPaths = connectAccessPoints(newStructure);
+            if (newAccessPaths == null) {
+                return false;
+            }
+            return finish(new StructurePlan(testPosMegaChunk, newStructure, newAccessPaths));
+        }
+
+        /**
+         * Tests the terrain and the nearby junctions of a range of test positions, splitting the range until it holds
+         * at most {@link CandidateEvaluation#CANDIDATES_PER_TASK} positions. Each task reads its own fork of the
+         * snapshot.
+         */
+        private class CandidateEvaluation extends RecursiveAction {
+            private static final int CANDIDATES_PER_TASK = 2;
+
+            private final PlanningSnapshot snapshot;
+            private final ArrayList<BlockPos> positions;
+            private final long firstIndex; // The index of the first position of the circle within the search
+            private final BlockPos[] surfacePositions;
+            private final MegaChunk[] testPosMegaChunks;
+            private final boolean[] nearJunctions;
+            private final PlanningSnapshot[] forks;
+            private final int from;
+            private final int to;
+
+            private CandidateEvaluation(PlanningSnapshot snapshot, ArrayList<BlockPos> positions, long firstIndex,
+                                        BlockPos[] surfacePositions, MegaChunk[] testPosMegaChunks,
+                                        boolean[] nearJunctions, PlanningSnapshot[] forks, int from, int to) {
+                this.snapshot = snapshot;
+                this.positions = positions;
+                this.firstIndex = firstIndex;
+                this.surfacePositions = surfacePositions;
+                this.testPosMegaChunks = testPosMegaChunks;
+                this.nearJunctions = nearJunctions;
+                this.forks = forks;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to-from > CANDIDATES_PER_TASK) {
+                    int middle = (from+to) >>> 1;
+                    invokeAll(
+                            new CandidateEvaluation(snapshot, positions, firstIndex, surfacePositions, testPosMegaChunks, nearJunctions, forks, from, middle),
+                            new CandidateEvaluation(snapshot, positions, firstIndex, surfacePositions, testPosMegaChunks, nearJunctions, forks, middle, to)
+                    );
+                    return;
+                }
+                PlanningSnapshot fork = snapshot.fork();
+                forks[from] = fork;
+                BlockPos testPos;
+                for (int i=from; i<to; i++) {
+                    testPos = testTerrainAt(fork, getCandidateRandom(firstIndex+i), positions.get(i));
+                    if (testPos == null) {
+                        continue;
+                    }
+                    surfacePositions[i] = testPos;
+                    testPosMegaChunks[i] = findMegaChunkOf(testPos);
+                    if (testPosMegaChunks[i] != null) {
+                        nearJunctions[i] = hasNearJunctions(testPos);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A planning step that runs on the {@link VillageWorkers} (see {@link ServerVillage#plan}). The fields set by the
+     * worker are read on the server thread after the run has been taken from
+     * {@link ServerVillage#finishedPlanningRuns}.
+     */
+    private static class PlanningRun {
+        private final Supplier<PlanningSearch> searches;
+        private final boolean failureRaisesNeedForRoads;
+        private final long randomSeed; // The seed of the random stream that every attempt starts with
+        private final long firstElementID; // The element ID that every attempt starts with
+        private int attempts = 0;
+        private @Nullable Plan plan = null; // Set by the worker
+        private boolean failed = false; // Set by the worker if planning threw an exception
+        private volatile boolean cancelled = false; // Set if the village has been removed or its planning abandoned
+        private @Nullable CountDownLatch finished = null; // Counted down when the worker of the latest attempt has stopped
+
+        private PlanningRun(Supplier<PlanningSearch> searches, boolean failureRaisesNeedForRoads, long randomSeed, long firstElementID) {
+            this.searches = searches;
+            this.failureRaisesNeedForRoads = failureRaisesNeedForRoads;
+            this.randomSeed = randomSeed;
+            this.firstElementID = firstElementID;
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+
+/**
+ * Holds all valid surface levels (see {@link SurfaceIndex#isSurfaceLevel}) of the columns of a {@link MegaChunk} for
+ * each {@link ServerVillage.SurfaceFluidMode}. The levels of each mode are stored in compressed rows: The levels of
+ * column c are {@code levels[offsets[c]]} to {@code levels[offsets[c+1]-1]} in ascending order. Levels are relative to
+ * the lower tip of the mega chunk and columns are indexed by {@code x*LENGTH+z} (also relative to the lower tip).
+ */
+public class SurfaceIndex {
+
+    /**
+     * Returned by queries if there is no surface level in the given range.
+     */
+    public static final int NO_LEVEL = Integer.MIN_VALUE;
+
+    private static final int LENGTH = MegaChunk.LENGTH;
+    private static final int COLUMNS = LENGTH*LENGTH;
+    private static final int SECTIONS_PER_COLUMN = LENGTH / ChunkSectionSnapshot.LENGTH;
+    private static final int MODES = ServerVillage.SurfaceFluidMode.values().length;
+
+    private final int[][] offsets; // Per mode
+    private final short[][] levels; // Per mode
+
+    private SurfaceIndex(int[][] offsets, short[][] levels) {
+        this.offsets = offsets;
+        this.levels = levels;
+    }
+
+    /**
+     * Determines whether a block is a surface block.
+     * @param mode Whether the block, the block above it or none of them can have fluids.
+     * @param classes The {@link BlockStateClassification} classes of the block.
+     * @param classesAbove The {@link BlockStateClassification} classes of the block above.
+     * @return True if the block is an (upwards) surface block.
+     */
+    public static boolean isSurfaceLevel(ServerVillage.SurfaceFluidMode mode, byte classes, byte classesAbove) {
+        return switch (mode) {
+            case NONE ->
+                    (classes & BlockStateClassification.NATURAL_GROUND) != 0
+                    && (classesAbove & (BlockStateClassification.NATURAL_GROUND | BlockStateClassification.FLUID)) == 0;
+            case AS_GROUND ->
+                    (classes & (BlockStateClassification.NATURAL_GROUND | BlockStateClassification.FLUID)) != 0
+                    && (classesAbove & (BlockStateClassification.NATURAL_GROUND | BlockStateClassification.FLUID)) == 0;
+            case AS_AIR ->
+                    (classes & BlockStateClassification.NATURAL_GROUND) != 0
+                    && (classesAbove & BlockStateClassification.NATURAL_GROUND) == 0;
+        };
+    }
+
+    /**
+     * Finds the highest surface level of a column within a range.
+     * @param mode The surface fluid mode.
+     * @param x The x coordinate of the column relative to the mega chunk.
+     * @param z The z coordinate of the column relative to the mega chunk.
+     * @param minLevel The lowest level that can be returned (relative to the mega chunk).
+     * @param maxLevel The highest level that can be returned (relative to the mega chunk).
+     * @return The highest surface level within the range or {@link SurfaceIndex#NO_LEVEL}.
+     */
+    public int getHighestLevel(ServerVillage.SurfaceFluidMode mode, int x, int z, int minLevel, int maxLevel) {
+        short[] modeLevels = levels[mode.ordinal()];
+        int[] modeOffsets = offsets[mode.ordinal()];
+        int column = x*LENGTH+z;
+        // Find the first level above maxLevel; the level before it is the candidate.
+        int index = upperBound(modeLevels, modeOffsets[column], modeOffsets[column+1], maxLevel) - 1;
+        if (index >= modeOffsets[column] && modeLevels[index] >= minLevel) {
+            return modeLevels[index];
+        }
+        return NO_LEVEL;
+    }
+
+    /**
+     * Finds the lowest surface level of a column within a range.
+     * @param mode The surface fluid mode.
+     * @param x The x coordinate of the column relative to the mega chunk.
+     * @param z The z coordinate of the column relative to the mega chunk.
+     * @param minLevel The lowest level that can be returned (relative to the mega chunk).
+     * @param maxLevel The highest level that can be returned (relative to the mega chunk).
+     * @return The lowest surface level within the range or {@link SurfaceIndex#NO_LEVEL}.
+     */
+    public int getLowestLevel(ServerVillage.SurfaceFluidMode mode, int x, int z, int minLevel, int maxLevel) {
+        short[] modeLevels = levels[mode.ordinal()];
+        int[] modeOffsets = offsets[mode.ordinal()];
+        int column = x*LENGTH+z;
+        int index = upperBound(modeLevels, modeOffsets[column], modeOffsets[column+1], minLevel-1);
+        if (index < modeOffsets[column+1] && modeLevels[index] <= maxLevel) {
+            return modeLevels[index];
+        }
+        return NO_LEVEL;
+    }
+
+    /**
+     * Binary search for the first index in a sorted range whose value is greater than the given value.
+     */
+    private static int upperBound(short[] values, int from, int to, int value) {
+        int low = from;
+        int high = to;
+        int mid;
+        while (low < high) {
+            mid = (low + high) >>> 1;
+            if (values[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Collects the surface masks of the sections of a mega chunk and compresses them into a {@link SurfaceIndex} once
+     * all sections have been added.
+     */
+    public static class Builder {
+        // Per mode: one bit mask of surface levels per section of each column, indexed by column*SECTIONS_PER_COLUMN+sectionY.
+        private final short[][] masks = new short[MODES][COLUMNS*SECTIONS_PER_COLUMN];
+
+        /**
+         * Adds the surface masks of a section.
+         * @param sectionX The x index of the section within the mega chunk.
+         * @param sectionY The y index of the section within the mega chunk.
+         * @param sectionZ The z index of the section within the mega chunk.
+         * @param sectionMasks The masks as computed by {@link ChunkSectionSnapshot#computeSurfaceMasks}.
+         */
+        public void addSection(int sectionX, int sectionY, int sectionZ, short[][] sectionMasks) {
+            int sectionLength = ChunkSectionSnapshot.LENGTH;
+            int column;
+            for (int mode=0; mode<MODES; mode++) {
+                for (int i=0; i<sectionLength; i++) {
+                    for (int k=0; k<sectionLength; k++) {
+                        column = (sectionX*sectionLength+i)*LENGTH + sectionZ*sectionLength+k;
+                        masks[mode][column*SECTIONS_PER_COLUMN+sectionY] = sectionMasks[mode][i*sectionLength+k];
+                    }
+                }
+            }
+        }
+
+        public SurfaceIndex build() {
+            int[][] offsets = new int[MODES][COLUMNS+1];
+            short[][] levels = new short[MODES][];
+            int count;
+            int mask;
+            for (int mode=0; mode<MODES; mode++) {
+                count = 0;
+                for (int column=0; column<COLUMNS; column++) {
+                    offsets[mode][column] = count;
+                    for (int sectionY=0; sectionY<SECTIONS_PER_COLUMN; sectionY++) {
+                        count += Integer.bitCount(masks[mode][column*SECTIONS_PER_COLUMN+sectionY] & 0xFFFF);
+                    }
+                }
+                offsets[mode][COLUMNS] = count;
+                levels[mode] = new short[count];
+                count = 0;
+                for (int column=0; column<COLUMNS; column++) {
+                    for (int sectionY=0; sectionY<SECTIONS_PER_COLUMN; sectionY++) {
+                        mask = masks[mode][column*SECTIONS_PER_COLUMN+sectionY] & 0xFFFF;
+                        while (mask != 0) {
+                            levels[mode][count++] = (short) (sectionY*ChunkSectionSnapshot.LENGTH + Integer.numberOfTrailingZeros(mask));
+                            mask &= mask - 1;
+                        }
+                    }
+                }
+            }
+            return new SurfaceIndex(offsets, levels);
+        }
+    }
+}
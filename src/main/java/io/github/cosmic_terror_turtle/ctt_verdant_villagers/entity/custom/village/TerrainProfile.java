@@ -0,0 +1,257 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.registry.Registries;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.World;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Estimates the composition of the terrain around a position from a stratified random sample instead of reading every
+ * block. The area is divided into strata (cells of 16x16 columns times a few height layers) and each stratum is
+ * sampled a fixed number of times. The {@link Heightmap.Type#WORLD_SURFACE} heightmap answers many samples without
+ * reading a block state, since samples at or above it are air. Other samples are classified with a single
+ * {@link BlockStateClassification} lookup.
+ */
+public class TerrainProfile {
+
+    /**
+     * The horizontal radius of the area that is analyzed for land, air and fluid ratios.
+     */
+    public static final int XZ_RADIUS = 64;
+    /**
+     * The vertical radius of the area that is analyzed for land, air and fluid ratios.
+     */
+    public static final int Y_RADIUS = 25;
+    private static final int STRATUM_LENGTH = 16;
+    private static final int HEIGHT_LAYERS = 4; // The number of strata along the y-axis above and below the center each.
+    private static final int SAMPLES_PER_STRATUM = 4;
+    /**
+     * The z value of the two-sided 95% confidence interval.
+     */
+    private static final double Z_95 = 1.96;
+
+    public final float landAbove;
+    public final float landBelow;
+    public final float airAbove;
+    public final float airBelow;
+    public final float fluidAbove;
+    public final float fluidBelow;
+    private final int samplesAbove;
+    private final int samplesBelow;
+
+    private TerrainProfile(float landAbove, float landBelow, float airAbove, float airBelow, float fluidAbove,
+                           float fluidBelow, int samplesAbove, int samplesBelow) {
+        this.landAbove = landAbove;
+        this.landBelow = landBelow;
+        this.airAbove = airAbove;
+        this.airBelow = airBelow;
+        this.fluidAbove = fluidAbove;
+        this.fluidBelow = fluidBelow;
+        this.samplesAbove = samplesAbove;
+        this.samplesBelow = samplesBelow;
+    }
+
+    /**
+     * Estimates the land, air and fluid ratios above and below a position.
+     * @param world The world to analyze.
+     * @param center The center of the analyzed area.
+     * @param random The random number generator used for choosing samples.
+     * @return The estimated terrain profile.
+     */
+    public static TerrainProfile sample(World world, BlockPos center, Random random) {
+        // Weighted sums, since height layers do not all have the same height.
+        double[] land = new double[2];
+        double[] air = new double[2];
+        double[] fluid = new double[2];
+        double[] total = new double[2];
+        int[] samples = new int[2];
+        int x, y, z, yMin, yMax, half;
+        double weight;
+        for (int cellX=-XZ_RADIUS; cellX<XZ_RADIUS; cellX+=STRATUM_LENGTH) {
+            for (int cellZ=-XZ_RADIUS; cellZ<XZ_RADIUS; cellZ+=STRATUM_LENGTH) {
+                for (int layer=0; layer<2*HEIGHT_LAYERS; layer++) {
+                    // Layers 0 to HEIGHT_LAYERS-1 are below the center, the others are above it.
+                    half = layer < HEIGHT_LAYERS ? 0 : 1;
+                    yMin = -Y_RADIUS + layer*2*Y_RADIUS/(2*HEIGHT_LAYERS);
+                    yMax = -Y_RADIUS + (layer+1)*2*Y_RADIUS/(2*HEIGHT_LAYERS);
+                    weight = (double) (yMax-yMin) / SAMPLES_PER_STRATUM;
+                    for (int n=0; n<SAMPLES_PER_STRATUM; n++) {
+                        x = center.getX() + cellX + random.nextInt(STRATUM_LENGTH);
+                        y = center.getY() + yMin + random.nextInt(yMax-yMin);
+                        z = center.getZ() + cellZ + random.nextInt(STRATUM_LENGTH);
+                        // Ignore positions outside the height limit
+                        if (world.isOutOfHeightLimit(y)) {
+                            continue;
+                        }
+                        samples[half]++;
+                        total[half] += weight;
+                        switch (classify(world, x, y, z)) {
+                            case LAND -> land[half] += weight;
+                            case AIR -> air[half] += weight;
+                            case FLUID -> fluid[half] += weight;
+                        }
+                    }
+                }
+            }
+        }
+        // Avoid zero division
+        for (half=0; half<2; half++) {
+            if (total[half] == 0) {
+                total[half] = 1;
+            }
+        }
+        return new TerrainProfile(
+                (float) (land[1]/total[1]), (float) (land[0]/total[0]),
+                (float) (air[1]/total[1]), (float) (air[0]/total[0]),
+                (float) (fluid[1]/total[1]), (float) (fluid[0]/total[0]),
+                samples[1], samples[0]
+        );
+    }
+
+    private enum SampleType {LAND, AIR, FLUID}
+
+    private static SampleType classify(World world, int x, int y, int z) {
+        if (y >= world.getTopY(Heightmap.Type.WORLD_SURFACE, x, z)) {
+            return SampleType.AIR;
+        }
+        byte classes = BlockStateClassification.getClasses(world.getBlockState(new BlockPos(x, y, z)));
+        if ((classes & BlockStateClassification.FLUID) != 0) {
+            return SampleType.FLUID;
+        }
+        return (classes & BlockStateClassification.NATURAL_GROUND) != 0 ? SampleType.LAND : SampleType.AIR;
+    }
+
+    /**
+     * Estimates the number of blocks of each type in a box around a position. Like {@link TerrainProfile#sample}, the
+     * box is divided into strata of 16x16 columns and height layers, and the counts of the samples are scaled up to the
+     * volume of the box.
+     * @param world The world to analyze.
+     * @param center The center of the box.
+     * @param xzRadius The horizontal radius of the box. Should be a multiple of 16.
+     * @param yRadius The vertical radius of the box.
+     * @param samplesPerStratum The number of samples per 16x16 cell and height half.
+     * @param random The random number generator used for choosing samples.
+     * @return The estimated block counts.
+     */
+    public static HashMap<Identifier, Integer> sampleBlockCounts(World world, BlockPos center, int xzRadius, int yRadius,
+                                                                 int samplesPerStratum, Random random) {
+        HashMap<Identifier, Double> weightedCounts = new HashMap<>();
+        int x, y, z, yMin;
+        double weight = (double) yRadius / samplesPerStratum * STRATUM_LENGTH * STRATUM_LENGTH;
+        BlockState state;
+        Identifier blockId;
+        for (int cellX=-xzRadius; cellX<xzRadius; cellX+=STRATUM_LENGTH) {
+            for (int cellZ=-xzRadius; cellZ<xzRadius; cellZ+=STRATUM_LENGTH) {
+                for (int half=0; half<2; half++) {
+                    yMin = half == 0 ? -yRadius : 0;
+                    for (int n=0; n<samplesPerStratum; n++) {
+                        x = center.getX() + cellX + random.nextInt(STRATUM_LENGTH);
+                        y = center.getY() + yMin + random.nextInt(yRadius);
+                        z = center.getZ() + cellZ + random.nextInt(STRATUM_LENGTH);
+                        if (world.isOutOfHeightLimit(y)) {
+                            state = Blocks.VOID_AIR.getDefaultState();
+                        } else if (y >= world.getTopY(Heightmap.Type.WORLD_SURFACE, x, z)) {
+                            state = Blocks.AIR.getDefaultState();
+                        } else {
+                            state = world.getBlockState(new BlockPos(x, y, z));
+                        }
+                        blockId = Registries.BLOCK.getId(state.getBlock());
+                        weightedCounts.put(blockId, weightedCounts.getOrDefault(blockId, 0.0)+weight);
+                    }
+                }
+            }
+        }
+        HashMap<Identifier, Integer> blockCounts = new HashMap<>();
+        weightedCounts.forEach((id, count) -> blockCounts.put(id, (int) Math.round(count)));
+        return blockCounts;
+    }
+
+    /**
+     * Determines the terrain category from the land, air and fluid ratios.
+     * @return The terrain category used to select a village type.
+     */
+    public String getTerrainCategory() {
+        return getTerrainCategory(landAbove, airBelow, fluidAbove, fluidBelow);
+    }
+
+    /**
+     * Determines the terrain category from land, air and fluid ratios.
+     * @param landAbove The ratio of land above the village center.
+     * @param airBelow The ratio of air below the village center.
+     * @param fluidAbove The ratio of fluid above the village center.
+     * @param fluidBelow The ratio of fluid below the village center.
+     * @return The terrain category used to select a village type.
+     */
+    public static String getTerrainCategory(float landAbove, float airBelow, float fluidAbove, float fluidBelow) {
+        if (airBelow > 0.7) {
+            return "sky";
+        } else if (landAbove > 0.55) {
+            return "under_ground";
+        } else if (fluidAbove > 0.30) {
+            return "under_fluid";
+        } else if (fluidBelow > 0.15) {
+            return "on_coast";
+        } else {
+            return "on_land";
+        }
+    }
+
+    /**
+     * Estimates the probability that the terrain category determined from the exact ratios would be the same as the one
+     * determined from the sampled ratios. Each threshold test of {@link TerrainProfile#getTerrainCategory()} that was
+     * evaluated is assumed to be decided correctly with the probability given by the normal approximation of its
+     * ratio; the tests are treated as independent.
+     * @return The confidence of the terrain category between 0.5^4 and 1.
+     */
+    public float getTerrainCategoryConfidence() {
+        double confidence = getTestConfidence(airBelow, 0.7, samplesBelow);
+        if (airBelow > 0.7) {
+            return (float) confidence;
+        }
+        confidence *= getTestConfidence(landAbove, 0.55, samplesAbove);
+        if (landAbove > 0.55) {
+            return (float) confidence;
+        }
+        confidence *= getTestConfidence(fluidAbove, 0.30, samplesAbove);
+        if (fluidAbove > 0.30) {
+            return (float) confidence;
+        }
+        return (float) (confidence * getTestConfidence(fluidBelow, 0.15, samplesBelow));
+    }
+
+    private static double getTestConfidence(double ratio, double threshold, int samples) {
+        if (samples == 0) {
+            return 1;
+        }
+        return MathUtils.normalCdf(Math.abs(ratio - threshold) / getStandardError(ratio, samples));
+    }
+
+    private static double getStandardError(double ratio, int samples) {
+        // Stratification never increases the variance over simple random sampling. The lower bound on the variance
+        // keeps ratios of 0 and 1 from appearing to be exact.
+        return Math.sqrt(Math.max(ratio * (1 - ratio), 1.0 / samples) / samples);
+    }
+
+    /**
+     * Gets the half-width of the 95% confidence interval that holds all ratios of this profile.
+     * @return The maximum error of the ratios at 95% confidence.
+     */
+    public float getErrorBound() {
+        double bound = 0;
+        for (float ratio : new float[] {landAbove, airAbove, fluidAbove}) {
+            bound = Math.max(bound, Z_95 * getStandardError(ratio, Math.max(1, samplesAbove)));
+        }
+        for (float ratio : new float[] {landBelow, airBelow, fluidBelow}) {
+            bound = Math.max(bound, Z_95 * getStandardError(ratio, Math.max(1, samplesBelow)));
+        }
+        return (float) bound;
+    }
+}
@@ -0,0 +1,161 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.function.LongPredicate;
+
+/**
+ * Memoizes the results of {@link TerrainTypeUtils#getTerrainType} for a village. Results are stored per exact query
+ * (position, top or bottom and radius) and grouped into cubes of 16x16x16 query positions, so that a block change only
+ * has to drop the cubes whose queries may have read the changed block. Only queries with a radius up to
+ * {@link TerrainTypeCache#MAX_CACHED_RADIUS} and positions inside the village's mega chunks are cached. Must only be
+ * used on the server thread, except for the caches of {@link PlanningSnapshot}s, which belong to the thread planning
+ * against the snapshot.
+ */
+public class TerrainTypeCache {
+
+    /**
+     * The largest radius of queries that are cached. Queries with larger radii are always computed.
+     */
+    public static final int MAX_CACHED_RADIUS = 16;
+    /**
+     * The number of blocks above a query position that top queries read (see {@link TerrainTypeUtils}).
+     */
+    public static final int TOP_SCAN_HEIGHT = 10;
+    /**
+     * The number of blocks below a query position that bottom queries read (see {@link TerrainTypeUtils}).
+     */
+    public static final int BOTTOM_SCAN_DEPTH = ServerVillage.ROAD_PILLAR_EXTENSION_LENGTH - 1;
+    /**
+     * The number of cached results after which the cache is cleared completely.
+     */
+    private static final int MAX_ENTRIES = 1 << 16;
+    private static final int CUBE_LENGTH = 16;
+
+    private final VillageBlockReader blockReader;
+    private final LongPredicate isCacheable; // Tests if queries inside a mega chunk (given by MegaChunk.getKey()) may be cached.
+    private final Long2ObjectOpenHashMap<Int2ObjectOpenHashMap<String>> cubes = new Long2ObjectOpenHashMap<>();
+    private int entryCount = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidatedEntries = 0;
+
+    /**
+     * Creates a new cache.
+     * @param blockReader The block reader used for computing terrain types.
+     * @param isCacheable Tests if the results of queries inside a mega chunk (given by {@link MegaChunk#getKey}) may
+     *                    be cached. Only mega chunks for which nearby block changes are reported to
+     *                    {@link TerrainTypeCache#invalidate} should be cacheable.
+     */
+    public TerrainTypeCache(VillageBlockReader blockReader, LongPredicate isCacheable) {
+        this.blockReader = blockReader;
+        this.isCacheable = isCacheable;
+    }
+
+    public VillageBlockReader getBlockReader() {
+        return blockReader;
+    }
+
+    /**
+     * Determines the terrain type used for geo features at the given position. Same as
+     * {@link TerrainTypeUtils#getTerrainType}, but repeated queries are answered from the cache.
+     * @param top If true, the terrain above {@code pos} will be analyzed, otherwise the terrain below.
+     * @param startPos The position from which the terrain scan should start.
+     * @param radius The maximum x- or z-distance the scanned blocks will have to {@code startPos}.
+     * @return A String representing the terrain type.
+     */
+    public String getTerrainType(boolean top, BlockPos startPos, int radius) {
+        if (radius < 0 || radius > MAX_CACHED_RADIUS || !isCacheable.test(MegaChunk.getKey(startPos.getX(), startPos.getY(), startPos.getZ()))) {
+            return TerrainTypeUtils.getTerrainType(top, blockReader, startPos, radius);
+        }
+        long cubeKey = getCubeKey(startPos.getX(), startPos.getY(), startPos.getZ());
+        int entryKey = (startPos.getX() & 15) << 14 | (startPos.getY() & 15) << 10 | (startPos.getZ() & 15) << 6
+                | (top ? 1 : 0) << 5 | radius;
+        Int2ObjectOpenHashMap<String> cube = cubes.get(cubeKey);
+        String terrainType = cube == null ? null : cube.get(entryKey);
+        if (terrainType != null) {
+            hits++;
+            return terrainType;
+        }
+        misses++;
+        terrainType = TerrainTypeUtils.getTerrainType(top, blockReader, startPos, radius);
+        if (entryCount >= MAX_ENTRIES) {
+            clear();
+        }
+        if (cube == null) {
+            cube = new Int2ObjectOpenHashMap<>();
+            cubes.put(cubeKey, cube);
+        }
+        cube.put(entryKey, terrainType);
+        entryCount++;
+        return terrainType;
+    }
+
+    /**
+     * Drops all cached results that may depend on a changed block.
+     * @param pos The position of the changed block.
+     */
+    public void invalidate(BlockPos pos) {
+        if (cubes.isEmpty()) {
+            return;
+        }
+        // Top queries read up to TOP_SCAN_HEIGHT blocks above their position, bottom queries up to BOTTOM_SCAN_DEPTH
+        // blocks below their position.
+        int minCubeX = Math.floorDiv(pos.getX() - MAX_CACHED_RADIUS, CUBE_LENGTH);
+        int maxCubeX = Math.floorDiv(pos.getX() + MAX_CACHED_RADIUS, CUBE_LENGTH);
+        int minCubeY = Math.floorDiv(pos.getY() - TOP_SCAN_HEIGHT, CUBE_LENGTH);
+        int maxCubeY = Math.floorDiv(pos.getY() + BOTTOM_SCAN_DEPTH, CUBE_LENGTH);
+        int minCubeZ = Math.floorDiv(pos.getZ() - MAX_CACHED_RADIUS, CUBE_LENGTH);
+        int maxCubeZ = Math.floorDiv(pos.getZ() + MAX_CACHED_RADIUS, CUBE_LENGTH);
+        Int2ObjectOpenHashMap<String> removed;
+        for (int cubeX=minCubeX; cubeX<=maxCubeX; cubeX++) {
+            for (int cubeY=minCubeY; cubeY<=maxCubeY; cubeY++) {
+                for (int cubeZ=minCubeZ; cubeZ<=maxCubeZ; cubeZ++) {
+                    removed = cubes.remove(BlockPos.asLong(cubeX, cubeY, cubeZ));
+                    if (removed != null) {
+                        entryCount -= removed.size();
+                        invalidatedEntries += removed.size();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    public void clear() {
+        cubes.clear();
+        entryCount = 0;
+    }
+
+    private static long getCubeKey(int x, int y, int z) {
+        return BlockPos.asLong(Math.floorDiv(x, CUBE_LENGTH), Math.floorDiv(y, CUBE_LENGTH), Math.floorDiv(z, CUBE_LENGTH));
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of cached results that have been dropped because of block changes.
+     * @return The number of invalidated results.
+     */
+    public long getInvalidatedEntries() {
+        return invalidatedEntries;
+    }
+
+    /**
+     * Gets the share of cacheable queries that were answered from the cache.
+     * @return The hit rate between 0 and 1 (0 if there were no queries).
+     */
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -0,0 +1,101 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads block states for village planning. Consecutive reads usually hit the same chunk section (for example when
+ * scanning a column for the surface), so the reader keeps the last chunk and section and only repeats the chunk lookup
+ * when a read leaves them. Coordinates are passed as ints to avoid allocating {@link net.minecraft.util.math.BlockPos}
+ * objects. A reader must only be used on the server thread (except for the readers of {@link PlanningSnapshot}s), and
+ * {@link VillageBlockReader#invalidate()} should be called every tick, since chunks may be unloaded between ticks.
+ */
+public class VillageBlockReader {
+
+    private final World world;
+    private @Nullable Chunk cachedChunk = null;
+    private int cachedChunkX;
+    private int cachedChunkZ;
+    private @Nullable ChunkSection cachedSection = null;
+    private int cachedSectionIndex;
+    private long hits = 0;
+    private long misses = 0;
+
+    public VillageBlockReader(World world) {
+        this.world = world;
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Gets a block state. Behaves like {@link World#getBlockState}, including the loading of chunks.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The block state at the given position.
+     */
+    public BlockState getBlockState(int x, int y, int z) {
+        if (world.isOutOfHeightLimit(y)) {
+            return Blocks.VOID_AIR.getDefaultState();
+        }
+        int chunkX = ChunkSectionPos.getSectionCoord(x);
+        int chunkZ = ChunkSectionPos.getSectionCoord(z);
+        int sectionIndex = world.getSectionIndex(y);
+        if (cachedSection == null || chunkX != cachedChunkX || chunkZ != cachedChunkZ || sectionIndex != cachedSectionIndex) {
+            misses++;
+            if (cachedChunk == null || chunkX != cachedChunkX || chunkZ != cachedChunkZ) {
+                cachedChunk = world.getChunk(chunkX, chunkZ);
+                cachedChunkX = chunkX;
+                cachedChunkZ = chunkZ;
+            }
+            cachedSection = cachedChunk.getSection(sectionIndex);
+            cachedSectionIndex = sectionIndex;
+        } else {
+            hits++;
+        }
+        return cachedSection.getBlockState(x & 15, y & 15, z & 15);
+    }
+
+    /**
+     * Gets the {@link BlockStateClassification} classes of a block state.
+     * @param x The x coordinate of the block.
+     * @param y The y coordinate of the block.
+     * @param z The z coordinate of the block.
+     * @return The class bits of the block state at the given position.
+     */
+    public byte getClasses(int x, int y, int z) {
+        return BlockStateClassification.getClasses(getBlockState(x, y, z));
+    }
+
+    /**
+     * Forgets the cached chunk and section.
+     */
+    public void invalidate() {
+        cachedChunk = null;
+        cachedSection = null;
+    }
+
+    /**
+     * Gets the number of reads that were answered from the cached section.
+     * @return The number of cache hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of reads that needed a chunk or section lookup.
+     * @return The number of cache misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+}
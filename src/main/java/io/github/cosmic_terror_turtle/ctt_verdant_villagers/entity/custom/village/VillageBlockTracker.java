@@ -0,0 +1,139 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.BlockStateClassification;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Forwards block changes inside mega chunks to the {@link ServerVillage}s that own them, so that the block counts of
+ * villages stay up to date without rescanning. Mega chunks are looked up by their packed coordinates. Changes of the
+ * terrain are also reported to the {@link TerrainTypeCache}s of villages with mega chunks near the change. All methods
+ * must be called on the server thread.
+ */
+public class VillageBlockTracker {
+
+    private static final IdentityHashMap<World, Long2ObjectOpenHashMap<ArrayList<TrackedMegaChunk>>> trackedMegaChunks = new IdentityHashMap<>();
+    private static final byte TERRAIN_CLASSES = BlockStateClassification.NATURAL_GROUND | BlockStateClassification.FLUID;
+    private static final ArrayList<ServerVillage> invalidatedVillages = new ArrayList<>(); // Reused by invalidateTerrainTypes
+
+    /**
+     * Clears all tracked mega chunks when the server stops.
+     */
+    public static void registerEvents() {
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> trackedMegaChunks.clear());
+    }
+
+    /**
+     * Starts forwarding block changes inside a mega chunk to a village.
+     * @param world The world the mega chunk exists in.
+     * @param village The village that owns the mega chunk.
+     * @param megaChunk The mega chunk.
+     */
+    public static void register(World world, ServerVillage village, MegaChunk megaChunk) {
+        trackedMegaChunks
+                .computeIfAbsent(world, key -> new Long2ObjectOpenHashMap<>())
+                .computeIfAbsent(megaChunk.getKey(), key -> new ArrayList<>())
+                .add(new TrackedMegaChunk(village, megaChunk));
+    }
+
+    /**
+     * Stops forwarding block changes to a village.
+     * @param world The world the village exists in.
+     * @param village The village.
+     */
+    public static void unregisterAll(World world, ServerVillage village) {
+        Long2ObjectOpenHashMap<ArrayList<TrackedMegaChunk>> megaChunks = trackedMegaChunks.get(world);
+        if (megaChunks == null) {
+            return;
+        }
+        megaChunks.values().removeIf(list -> {
+            list.removeIf(tracked -> tracked.village == village);
+            return list.isEmpty();
+        });
+        if (megaChunks.isEmpty()) {
+            trackedMegaChunks.remove(world);
+        }
+    }
+
+    /**
+     * Called whenever a block state in a loaded chunk has changed.
+     * @param world The world the block state has changed in.
+     * @param pos The position of the changed block state.
+     * @param oldState The previous block state.
+     * @param newState The new block state.
+     */
+    public static void onBlockChanged(World world, BlockPos pos, BlockState oldState, BlockState newState) {
+        Long2ObjectOpenHashMap<ArrayList<TrackedMegaChunk>> megaChunks = trackedMegaChunks.get(world);
+        if (megaChunks == null) {
+            return;
+        }
+        ArrayList<TrackedMegaChunk> list = megaChunks.get(MegaChunk.getKey(pos.getX(), pos.getY(), pos.getZ()));
+        if (list != null) {
+            for (TrackedMegaChunk tracked : list) {
+                tracked.megaChunk.onBlockChanged(pos, oldState, newState, tracked.village.blockCounts);
+                tracked.village.onBlockChanged(pos);
+            }
+        }
+        // Changes in the lowest layer of a mega chunk affect the surface levels of the mega chunk below.
+        if (Math.floorMod(pos.getY(), MegaChunk.LENGTH) == 0
+                && BlockStateClassification.getClasses(oldState) != BlockStateClassification.getClasses(newState)) {
+            list = megaChunks.get(MegaChunk.getKey(pos.getX(), pos.getY()-1, pos.getZ()));
+            if (list != null) {
+                for (TrackedMegaChunk tracked : list) {
+                    tracked.megaChunk.markSurfaceColumnDirty(pos.getX(), pos.getZ());
+                }
+            }
+        }
+        if (((BlockStateClassification.getClasses(oldState) ^ BlockStateClassification.getClasses(newState)) & TERRAIN_CLASSES) != 0) {
+            invalidateTerrainTypes(megaChunks, pos);
+        }
+    }
+
+    /**
+     * Invalidates the cached terrain types of all villages owning a mega chunk that may contain queries which read the
+     * given position.
+     */
+    private static void invalidateTerrainTypes(Long2ObjectOpenHashMap<ArrayList<TrackedMegaChunk>> megaChunks, BlockPos pos) {
+        int radius = TerrainTypeCache.MAX_CACHED_RADIUS;
+        int minX = Math.floorDiv(pos.getX() - radius, MegaChunk.LENGTH);
+        int maxX = Math.floorDiv(pos.getX() + radius, MegaChunk.LENGTH);
+        int minY = Math.floorDiv(pos.getY() - TerrainTypeCache.TOP_SCAN_HEIGHT, MegaChunk.LENGTH);
+        int maxY = Math.floorDiv(pos.getY() + TerrainTypeCache.BOTTOM_SCAN_DEPTH, MegaChunk.LENGTH);
+        int minZ = Math.floorDiv(pos.getZ() - radius, MegaChunk.LENGTH);
+        int maxZ = Math.floorDiv(pos.getZ() + radius, MegaChunk.LENGTH);
+        ArrayList<TrackedMegaChunk> list;
+        for (int x=minX; x<=maxX; x++) {
+            for (int y=minY; y<=maxY; y++) {
+                for (int z=minZ; z<=maxZ; z++) {
+                    list = megaChunks.get(BlockPos.asLong(x, y, z));
+                    if (list == null) {
+                        continue;
+                    }
+                    for (TrackedMegaChunk tracked : list) {
+                        if (!invalidatedVillages.contains(tracked.village)) {
+                            invalidatedVillages.add(tracked.village);
+                            tracked.village.getTerrainTypeCache().invalidate(pos);
+                        }
+                    }
+                }
+            }
+        }
+        invalidatedVillages.clear();
+    }
+
+    private static class TrackedMegaChunk {
+        private final ServerVillage village;
+        private final MegaChunk megaChunk;
+
+        private TrackedMegaChunk(ServerVillage village, MegaChunk megaChunk) {
+            this.village = village;
+            this.megaChunk = megaChunk;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeature;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBit;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBits;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Maps every position occupied by a planned feature of a village to the element IDs of the features occupying it, so
+ * that a candidate feature can be tested against all planned features with one pass over its own bits. Positions are
+ * grouped into bricks of 16x16x16 blocks. Each brick holds an occupancy bitmap and a primary owner that owns all
+ * occupied positions of the brick, except those listed in the brick's overflow map (positions with other or several
+ * owners). The bounds of all features are kept in a {@link FeatureBoundsTree}, which serves as a broadphase: the bits of
+ * a candidate are only looked up if its bounds collide with the bounds of a relevant feature.
+ */
+public class VillageOccupancyIndex {
+
+    /**
+     * The kind of feature that owns positions.
+     */
+    public enum Layer {JUNCTION, EDGE, ACCESS_PATH, STRUCTURE}
+
+    public static final EnumSet<Layer> ALL_LAYERS = EnumSet.allOf(Layer.class);
+    /**
+     * An element ID that no feature has. Used if no owner should be ignored.
+     */
+    public static final long NO_ID = Long.MIN_VALUE;
+
+    private static final int BRICK_LENGTH = 16;
+
+    private final Long2ObjectOpenHashMap<Brick> bricks = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<Entry> features = new Long2ObjectOpenHashMap<>(); // Indexed features by element ID
+    private final FeatureBoundsTree bounds = new FeatureBoundsTree();
+    // The brick of the last lookup. Consecutive lookups mostly hit the same brick, since bits are spatially coherent.
+    private long lastBrickKey;
+    private @Nullable Brick lastBrick = null;
+
+    /**
+     * Adds all bits of a feature to the index.
+     * @param feature The feature. Must not be indexed already.
+     * @param layer The kind of the feature.
+     */
+    public void add(GeoFeature feature, Layer layer) {
+        features.put(feature.elementID, new Entry(feature, layer));
+        GeoFeatureBits bits = feature.getBits();
+        Brick brick;
+        for (int i=0; i<bits.size(); i++) {
+            brick = getBrick(bits.getX(i), bits.getY(i), bits.getZ(i), true);
+            brick.add(getLocalIndex(bits.getX(i), bits.getY(i), bits.getZ(i)), feature.elementID);
+        }
+        bounds.insert(feature);
+    }
+
+    /**
+     * Adds bits that have been added to an indexed feature.
+     * @param feature The indexed feature.
+     * @param bits The new bits of the feature.
+     */
+    public void addBits(GeoFeature feature, List<GeoFeatureBit> bits) {
+        Brick brick;
+        for (GeoFeatureBit bit : bits) {
+            brick = getBrick(bit.blockPos.getX(), bit.blockPos.getY(), bit.blockPos.getZ(), true);
+            brick.add(getLocalIndex(bit.blockPos.getX(), bit.blockPos.getY(), bit.blockPos.getZ()), feature.elementID);
+        }
+        bounds.update(feature);
+    }
+
+    /**
+     * Removes a feature from the index. A feature that gets trimmed after being indexed should be removed before and
+     * added again after trimming.
+     * @param feature The indexed feature.
+     */
+    public void remove(GeoFeature feature) {
+        if (features.remove(feature.elementID) == null) {
+            return;
+        }
+        bounds.remove(feature);
+        GeoFeatureBits bits = feature.getBits();
+        Brick brick;
+        int x, y, z;
+        for (int i=0; i<bits.size(); i++) {
+            x = bits.getX(i);
+            y = bits.getY(i);
+            z = bits.getZ(i);
+            brick = getBrick(x, y, z, false);
+            if (brick != null && brick.remove(getLocalIndex(x, y, z), feature.elementID) && brick.count == 0) {
+                bricks.remove(getBrickKey(x, y, z));
+                lastBrick = null;
+            }
+        }
+    }
+
+    /**
+     * Removes all features from the index.
+     */
+    public void clear() {
+        bricks.clear();
+        features.clear();
+        bounds.clear();
+        lastBrick = null;
+    }
+
+    /**
+     * Tests if any indexed feature occupies a position.
+     * @param pos The position.
+     * @return True if the position is occupied.
+     */
+    public boolean isOccupied(BlockPos pos) {
+        Brick brick = getBrick(pos.getX(), pos.getY(), pos.getZ(), false);
+        return brick != null && brick.isOccupied(getLocalIndex(pos.getX(), pos.getY(), pos.getZ()));
+    }
+
+    /**
+     * Tests if a candidate feature shares a position with an indexed feature.
+     * @param candidate The candidate feature.
+     * @param layers The kinds of features that are tested.
+     * @param ignoredID The element ID of a feature that is ignored or {@link VillageOccupancyIndex#NO_ID}.
+     * @return True if the candidate overlaps with one of the indexed features.
+     */
+    public boolean overlaps(GeoFeature candidate, EnumSet<Layer> layers, long ignoredID) {
+        if (!bounds.anyCollidesWith(candidate, feature -> isRelevantOwner(feature.elementID, layers, ignoredID))) {
+            return false;
+        }
+        Brick brick;
+        int localIndex;
+        long[] owners;
+        GeoFeatureBits bits = candidate.getBits();
+        int x, y, z;
+        for (int i=0; i<bits.size(); i++) {
+            x = bits.getX(i);
+            y = bits.getY(i);
+            z = bits.getZ(i);
+            brick = getBrick(x, y, z, false);
+            if (brick == null) {
+                continue;
+            }
+            localIndex = getLocalIndex(x, y, z);
+            if (!brick.isOccupied(localIndex)) {
+                continue;
+            }
+            owners = brick.overflow == null ? null : brick.overflow.get(localIndex);
+            if (owners == null) {
+                if (isRelevantOwner(brick.primaryOwner, layers, ignoredID)) {
+                    return true;
+                }
+            } else {
+                for (long owner : owners) {
+                    if (isRelevantOwner(owner, layers, ignoredID)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests if a candidate feature shares a position with an indexed feature of a specific kind.
+     * @param candidate The candidate feature.
+     * @param layers The kinds of features that are tested.
+     * @return True if the candidate overlaps with one of the indexed features.
+     */
+    public boolean overlaps(GeoFeature candidate, EnumSet<Layer> layers) {
+        return overlaps(candidate, layers, NO_ID);
+    }
+
+    /**
+     * Finds all indexed features of a specific kind that share a position with a candidate feature.
+     * @param candidate The candidate feature.
+     * @param layer The kind of features to find.
+     * @return The overlapping features in the order of their element IDs.
+     */
+    public ArrayList<GeoFeature> getOverlappingFeatures(GeoFeature candidate, Layer layer) {
+        ArrayList<GeoFeature> overlapping = new ArrayList<>();
+        if (!bounds.anyCollidesWith(candidate, feature -> features.get(feature.elementID).layer == layer)) {
+            return overlapping;
+        }
+        LongArrayList ids = new LongArrayList();
+        Brick brick;
+        int localIndex;
+        long[] owners;
+        GeoFeatureBits bits = candidate.getBits();
+        int x, y, z;
+        for (int i=0; i<bits.size(); i++) {
+            x = bits.getX(i);
+            y = bits.getY(i);
+            z = bits.getZ(i);
+            brick = getBrick(x, y, z, false);
+            if (brick == null) {
+                continue;
+            }
+            localIndex = getLocalIndex(x, y, z);
+            if (!brick.isOccupied(localIndex)) {
+                continue;
+            }
+            owners = brick.overflow == null ? null : brick.overflow.get(localIndex);
+            if (owners == null) {
+                addIfOfLayer(ids, brick.primaryOwner, layer);
+            } else {
+                for (long owner : owners) {
+                    addIfOfLayer(ids, owner, layer);
+                }
+            }
+        }
+        ids.sort(null);
+        for (int i=0; i<ids.size(); i++) {
+            if (i == 0 || ids.getLong(i) != ids.getLong(i-1)) {
+                overlapping.add(features.get(ids.getLong(i)).feature);
+            }
+        }
+        return overlapping;
+    }
+
+    private void addIfOfLayer(LongArrayList ids, long owner, Layer layer) {
+        Entry entry = features.get(owner);
+        if (entry != null && entry.layer == layer) {
+            ids.add(owner);
+        }
+    }
+
+    private boolean isRelevantOwner(long owner, EnumSet<Layer> layers, long ignoredID) {
+        if (owner == ignoredID) {
+            return false;
+        }
+        Entry entry = features.get(owner);
+        return entry != null && layers.contains(entry.layer);
+    }
+
+    private @Nullable Brick getBrick(int x, int y, int z, boolean create) {
+        long key = getBrickKey(x, y, z);
+        if (lastBrick != null && lastBrickKey == key) {
+            return lastBrick;
+        }
+        Brick brick = bricks.get(key);
+        if (brick == null) {
+            if (!create) {
+                return null;
+            }
+            brick = new Brick();
+            bricks.put(key, brick);
+        }
+        lastBrickKey = key;
+        lastBrick = brick;
+        return brick;
+    }
+
+    private static long getBrickKey(int x, int y, int z) {
+        return BlockPos.asLong(
+                Math.floorDiv(x, BRICK_LENGTH),
+                Math.floorDiv(y, BRICK_LENGTH),
+                Math.floorDiv(z, BRICK_LENGTH));
+    }
+
+    private static int getLocalIndex(int x, int y, int z) {
+        return (x & 15) << 8 | (y & 15) << 4 | (z & 15);
+    }
+
+    private static class Entry {
+        private final GeoFeature feature;
+        private final Layer layer;
+
+        private Entry(GeoFeature feature, Layer layer) {
+            this.feature = feature;
+            this.layer = layer;
+        }
+    }
+
+    private static class Brick {
+        private final long[] occupied = new long[BRICK_LENGTH*BRICK_LENGTH*BRICK_LENGTH/64];
+        private int count = 0; // The number of occupied positions
+        private long primaryOwner = NO_ID; // The first owner added to this brick
+        // All owners of positions that are not owned by the primary owner alone, by local index.
+        private @Nullable Int2ObjectOpenHashMap<long[]> overflow = null;
+
+        private boolean isOccupied(int localIndex) {
+            return (occupied[localIndex >>> 6] & 1L << localIndex) != 0;
+        }
+
+        private void add(int localIndex, long owner) {
+            if (primaryOwner == NO_ID) {
+                primaryOwner = owner;
+            }
+            if (!isOccupied(localIndex)) {
+                occupied[localIndex >>> 6] |= 1L << localIndex;
+                count++;
+                if (owner != primaryOwner) {
+                    setOwners(localIndex, new long[] {owner});
+                }
+                return;
+            }
+            long[] owners = getOwners(localIndex);
+            for (long existing : owners) {
+                if (existing == owner) {
+                    return;
+                }
+            }
+            long[] newOwners = new long[owners.length+1];
+            System.arraycopy(owners, 0, newOwners, 0, owners.length);
+            newOwners[owners.length] = owner;
+            setOwners(localIndex, newOwners);
+        }
+
+        /**
+         * Removes an owner from a position.
+         * @return True if the position was owned by the owner.
+         */
+        private boolean remove(int localIndex, long owner) {
+            if (!isOccupied(localIndex)) {
+                return false;
+            }
+            long[] owners = getOwners(localIndex);
+            int index = -1;
+            for (int i=0; i<owners.length; i++) {
+                if (owners[i] == owner) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) {
+                return false;
+            }
+            if (owners.length == 1) {
+                occupied[localIndex >>> 6] &= ~(1L << localIndex);
+                count--;
+                if (overflow != null) {
+                    overflow.remove(localIndex);
+                }
+                return true;
+            }
+            long[] newOwners = new long[owners.length-1];
+            System.arraycopy(owners, 0, newOwners, 0, index);
+            System.arraycopy(owners, index+1, newOwners, index, owners.length-index-1);
+            setOwners(localIndex, newOwners);
+            return true;
+        }
+
+        private long[] getOwners(int localIndex) {
+            long[] owners = overflow == null ? null : overflow.get(localIndex);
+            return owners == null ? new long[] {primaryOwner} : owners;
+        }
+
+        private void setOwners(int localIndex, long[] owners) {
+            if (owners.length == 1 && owners[0] == primaryOwner) {
+                if (overflow != null) {
+                    overflow.remove(localIndex);
+                }
+                return;
+            }
+            if (overflow == null) {
+                overflow = new Int2ObjectOpenHashMap<>();
+            }
+            overflow.put(localIndex, owners);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.VerdantVillagers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Holds the worker threads that villages use for work that does not need to happen on the server thread. Workers must
+ * never access the world; they only operate on data that was copied on the server thread beforehand (for example
+ * {@link ChunkSectionSnapshot}s).
+ * <p>
+ * Each village submits its work through its own {@link Lane}, which limits how many workers the village can occupy at
+ * once, so that villages are planned concurrently without one of them delaying the others. Only committing the
+ * results to the world happens on the server thread.
+ */
+public class VillageWorkers {
+
+    /**
+     * The number of worker threads shared by all villages.
+     */
+    public static final int THREAD_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    /**
+     * The parallelism of the pool that evaluates planning candidates. One core is left to the server thread.
+     */
+    public static final int CANDIDATE_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    /**
+     * The number of tasks of one lane that may run at the same time.
+     */
+    public static final int MAX_RUNNING_TASKS_PER_LANE = Math.max(1, THREAD_COUNT / 2);
+    /**
+     * The weight of a new latency in the moving averages of the lanes.
+     */
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT, runnable -> {
+        Thread thread = new Thread(runnable, VerdantVillagers.MOD_ID + "-worker-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+    private static final ForkJoinPool candidatePool = new ForkJoinPool(CANDIDATE_PARALLELISM, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName(VerdantVillagers.MOD_ID + "-candidates-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    }, null, false);
+    private static final ArrayList<Lane> lanes = new ArrayList<>();
+
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets the pool on which planning steps running on the workers evaluate their candidates in parallel. The same
+     * rules as for the workers apply to its tasks.
+     * @return The pool.
+     */
+    public static ForkJoinPool getCandidatePool() {
+        return candidatePool;
+    }
+
+    /**
+     * Gets all lanes that have not been closed.
+     * @return A copy of the list of lanes.
+     */
+    public static List<Lane> getLanes() {
+        synchronized (lanes) {
+            return new ArrayList<>(lanes);
+        }
+    }
+
+    /**
+     * The queue through which one village submits tasks to the workers. At most
+     * {@link VillageWorkers#MAX_RUNNING_TASKS_PER_LANE} tasks of a lane are handed to the workers at a time; the rest
+     * wait in the lane in the order they were submitted. Since every lane only has a few tasks in the queue of the
+     * workers, the workers alternate between villages. The lane keeps statistics about its tasks for sizing the pool.
+     */
+    public static class Lane implements Executor {
+        private final Supplier<String> name;
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+        private int runningTasks = 0;
+        private long completedTasks = 0;
+        private double meanWaitNanos = 0; // Between submitting a task and starting it
+        private double meanRunNanos = 0;
+        private long maxWaitNanos = 0;
+        private boolean closed = false;
+
+        /**
+         * Creates a new lane and registers it.
+         * @param name Supplies the name under which the lane is listed.
+         */
+        public Lane(Supplier<String> name) {
+            this.name = name;
+            synchronized (lanes) {
+                lanes.add(this);
+            }
+        }
+
+        /**
+         * Discards the tasks that have not been started yet and unregisters the lane. Tasks submitted afterwards are
+         * ignored.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+            }
+            synchronized (lanes) {
+                lanes.remove(this);
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                queue.add(new Task(command, System.nanoTime()));
+            }
+            dispatch();
+        }
+
+        /**
+         * Hands waiting tasks to the workers while the lane has fewer running tasks than allowed.
+         */
+        private void dispatch() {
+            Task task;
+            while (true) {
+                synchronized (this) {
+                    if (runningTasks >= MAX_RUNNING_TASKS_PER_LANE || queue.isEmpty()) {
+                        return;
+                    }
+                    task = queue.poll();
+                    runningTasks++;
+                }
+                Task dispatched = task;
+                executor.execute(() -> run(dispatched));
+            }
+        }
+
+        private void run(Task task) {
+            long start = System.nanoTime();
+            try {
+                task.command.run();
+            } finally {
+                long end = System.nanoTime();
+                synchronized (this) {
+                    runningTasks--;
+                    completedTasks++;
+                    long waitNanos = start - task.submitted;
+                    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+                    if (completedTasks == 1) {
+                        meanWaitNanos = waitNanos;
+                        meanRunNanos = end - start;
+                    } else {
+                        meanWaitNanos += LATENCY_SMOOTHING * (waitNanos - meanWaitNanos);
+                        meanRunNanos += LATENCY_SMOOTHING * (end - start - meanRunNanos);
+                    }
+                }
+                dispatch();
+            }
+        }
+
+        public String getName() {
+            return name.get();
+        }
+
+        /**
+         * Gets the number of tasks of this lane that have been submitted but not finished.
+         * @return The number of waiting and running tasks.
+         */
+        public synchronized int getQueueDepth() {
+            return queue.size() + runningTasks;
+        }
+
+        public synchronized int getRunningTasks() {
+            return runningTasks;
+        }
+
+        public synchronized long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        /**
+         * Gets the moving average of the time that tasks waited before a worker started them.
+         * @return The time in milliseconds.
+         */
+        public synchronized double getMeanWaitMillis() {
+            return meanWaitNanos / 1_000_000;
+        }
+
+        /**
+         * Gets the moving average of the time that tasks ran.
+         * @return The time in milliseconds.
+         */
+        public synchronized double getMeanRunMillis() {
+            return meanRunNanos / 1_000_000;
+        }
+
+        /**
+         * Gets the longest time that a task waited before a worker started it.
+         * @return The time in milliseconds.
+         */
+        public synchronized double getMaxWaitMillis() {
+            return maxWaitNanos / 1_000_000.0;
+        }
+
+        private static class Task {
+            private final Runnable command;
+            private final long submitted; // System.nanoTime() at submission
+
+            private Task(Runnable command, long submitted) {
+                this.command = command;
+                this.submitted = submitted;
+            }
+        }
+    }
+}
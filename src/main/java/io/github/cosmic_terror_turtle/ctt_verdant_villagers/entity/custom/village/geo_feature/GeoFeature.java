@@ -1,7 +1,7 @@
 package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature;
 
-import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.NbtUtils;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.block.BlockState;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.util.BlockRotation;
@@ -9,10 +9,9 @@ import net.minecraft.util.math.BlockPos;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
-import static io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils.getCubeCoordinate;
-
 /**
  * A feature that occupies a physical space.
  */
@@ -65,84 +64,112 @@ public class GeoFeature {
     private int zMin = 0;
     private int zMax = 0;
     /**
-     * A list of cubic chunks (16x16x16 blocks, represented by a BlockPos in the lower tip of the mega block).
+     * The cubic chunks (16x16x16 blocks) touched by this feature, represented by their packed cube coordinates (see
+     * {@link GeoFeature#getCubeKey}).
      */
-    private final ArrayList<BlockPos> boundingBoxChunks16 = new ArrayList<>();
+    private final LongOpenHashSet boundingBoxChunks16 = new LongOpenHashSet();
     /**
-     * A list of cubic chunks (4x4x4 blocks, represented by a BlockPos in the lower tip of the mega block).
+     * The cubic chunks (4x4x4 blocks) touched by this feature, represented by their packed cube coordinates (see
+     * {@link GeoFeature#getCubeKey}).
      */
-    private final ArrayList<BlockPos> boundingBoxChunks4 = new ArrayList<>();
-    protected final ArrayList<GeoFeatureBit> bits = new ArrayList<>();
+    private final LongOpenHashSet boundingBoxChunks4 = new LongOpenHashSet();
+    protected final GeoFeatureBits bits = new GeoFeatureBits();
 
     public GeoFeature(long elementID) {
         this.elementID = elementID;
     }
 
+    /**
+     * Packs the coordinates of the cubic chunk containing a position into a long.
+     * @param cubeSideLength The side length of the cubic chunk.
+     * @param pos The position.
+     * @return The packed cube coordinates.
+     */
+    public static long getCubeKey(int cubeSideLength, BlockPos pos) {
+        return getCubeKey(cubeSideLength, pos.getX(), pos.getY(), pos.getZ());
+    }
+    private static long getCubeKey(int cubeSideLength, int x, int y, int z) {
+        return BlockPos.asLong(
+                Math.floorDiv(x, cubeSideLength),
+                Math.floorDiv(y, cubeSideLength),
+                Math.floorDiv(z, cubeSideLength));
+    }
+
+    private static BlockPos getLowerTip(int cubeSideLength, long cubeKey) {
+        return new BlockPos(
+                BlockPos.unpackLongX(cubeKey)*cubeSideLength,
+                BlockPos.unpackLongY(cubeKey)*cubeSideLength,
+                BlockPos.unpackLongZ(cubeKey)*cubeSideLength);
+    }
+
     /**
      * Gets the cubic chunks with side length 16 defining the bounding box of this feature.
-     * @return The list of chunk-like cubes.
+     * @return The set of packed cube coordinates (see {@link GeoFeature#getCubeKey}).
      */
-    public ArrayList<BlockPos> getBoundingBoxChunks16() {
+    public LongOpenHashSet getBoundingBoxChunks16() {
         return boundingBoxChunks16;
     }
     /**
      * Gets the cubic chunks with side length 4 defining the bounding box of this feature.
-     * @return The list of chunk-like cubes.
+     * @return The set of packed cube coordinates (see {@link GeoFeature#getCubeKey}).
      */
-    public ArrayList<BlockPos> getBoundingBoxChunks4() {
+    public LongOpenHashSet getBoundingBoxChunks4() {
         return boundingBoxChunks4;
     }
 
-    public ArrayList<GeoFeatureBit> getBits() {
+    public GeoFeatureBits getBits() {
         return bits;
     }
 
+    public int getXMin() {
+        return xMin;
+    }
+    public int getXMax() {
+        return xMax;
+    }
+    public int getYMin() {
+        return yMin;
+    }
+    public int getYMax() {
+        return yMax;
+    }
+    public int getZMin() {
+        return zMin;
+    }
+    public int getZMax() {
+        return zMax;
+    }
+
+    /**
+     * Finds the bit of this feature at a position.
+     * @param packedPos The position packed with {@link BlockPos#asLong}.
+     * @return The index of the bit in {@link GeoFeature#getBits()} or -1 if this feature has no bit there.
+     */
+    public int indexOfBitAt(long packedPos) {
+        return bits.indexOf(packedPos);
+    }
+
     /**
-     * Updates the lists of touched cubic chunks of all side lengths.
+     * Rebuilds the touched cubic chunks of all side lengths. Must be called after {@link GeoFeature#bits} has been
+     * changed directly.
      */
     protected void updateBoundingBoxChunks() {
         boundingBoxChunks16.clear();
         boundingBoxChunks4.clear();
-        for (GeoFeatureBit bit : bits) {
-            addPosToBoundingBoxChunks(bit.blockPos);
+        for (int i=0; i<bits.size(); i++) {
+            addToBoundingBoxChunks(i);
         }
     }
     /**
-     * Attempts to add a cubic chunk to the lists defining the bounding box of this feature.
-     * @param pos The block position of the normal block (pos will be converted to a cubic chunk position in this method).
+     * Adds the cubic chunks of a bit to the sets defining the bounding box of this feature.
+     * @param index The index of the bit.
      */
-    private void addPosToBoundingBoxChunks(BlockPos pos) {
-        // 16
-        BlockPos newLowerTip = new BlockPos(
-                getCubeCoordinate(16, pos.getX()),
-                getCubeCoordinate(16, pos.getY()),
-                getCubeCoordinate(16, pos.getZ()));
-        boolean tipIsNew = true;
-        for (BlockPos oldLowerTip : boundingBoxChunks16) {
-            if (oldLowerTip.equals(newLowerTip)) {
-                tipIsNew = false;
-                break;
-            }
-        }
-        if (tipIsNew) {
-            boundingBoxChunks16.add(newLowerTip);
-        }
-        // 4
-        newLowerTip = new BlockPos(
-                getCubeCoordinate(4, pos.getX()),
-                getCubeCoordinate(4, pos.getY()),
-                getCubeCoordinate(4, pos.getZ()));
-        tipIsNew = true;
-        for (BlockPos oldLowerTip : boundingBoxChunks4) {
-            if (oldLowerTip.equals(newLowerTip)) {
-                tipIsNew = false;
-                break;
-            }
-        }
-        if (tipIsNew) {
-            boundingBoxChunks4.add(newLowerTip);
-        }
-
+    private void addToBoundingBoxChunks(int index) {
+        int x = bits.getX(index);
+        int y = bits.getY(index);
+        int z = bits.getZ(index);
+        boundingBoxChunks16.add(getCubeKey(16, x, y, z));
+        boundingBoxChunks4.add(getCubeKey(4, x, y, z));
     }
 
     /**
@@ -151,12 +178,14 @@ public class GeoFeature {
      * @param anchor The absolute position that the resulting bit positions will be relative to.
      * @param rotation The direction to rotate the template to.
      */
-    protected void setBits(ArrayList<GeoFeatureBit> relativeBits, BlockPos anchor, int rotation) {
+    protected void setBits(List<GeoFeatureBit> relativeBits, BlockPos anchor, int rotation) {
         bits.clear();
         boundingBoxChunks16.clear();
         boundingBoxChunks4.clear();
 
         BlockState rotatedState;
+        int relX, relZ;
+        long absPos;
         for (GeoFeatureBit bit : relativeBits) {
             if (bit.blockState == null) {
                 rotatedState = null;
@@ -168,10 +197,19 @@ public class GeoFeature {
                     case ROTATE_CLOCKWISE -> rotatedState = bit.blockState.rotate(BlockRotation.CLOCKWISE_90);
                 }
             }
-            bits.add(new GeoFeatureBit(rotatedState, rotate(anchor, bit.blockPos, rotation)));
+            // Same as rotate(anchor, bit.blockPos, rotation) without allocating positions.
+            relX = bit.blockPos.getX();
+            relZ = bit.blockPos.getZ();
+            absPos = switch (rotation) {
+                default -> BlockPos.asLong(anchor.getX()+relX, anchor.getY()+bit.blockPos.getY(), anchor.getZ()+relZ);
+                case ROTATE_COUNTER_CLOCKWISE -> BlockPos.asLong(anchor.getX()+relZ, anchor.getY()+bit.blockPos.getY(), anchor.getZ()-relX);
+                case ROTATE_OPPOSITE -> BlockPos.asLong(anchor.getX()-relX, anchor.getY()+bit.blockPos.getY(), anchor.getZ()-relZ);
+                case ROTATE_CLOCKWISE -> BlockPos.asLong(anchor.getX()-relZ, anchor.getY()+bit.blockPos.getY(), anchor.getZ()+relX);
+            };
+            bits.add(absPos, rotatedState);
         }
-        for (GeoFeatureBit bit : bits) {
-            addPosToBoundingBoxChunks(bit.blockPos);
+        for (int i=0; i<bits.size(); i++) {
+            addToBoundingBoxChunks(i);
         }
         updateBounds();
     }
@@ -183,7 +221,7 @@ public class GeoFeature {
     public void addBits(ArrayList<GeoFeatureBit> absoluteBits) {
         for (GeoFeatureBit bit : absoluteBits) {
             bits.add(bit);
-            addPosToBoundingBoxChunks(bit.blockPos);
+            addToBoundingBoxChunks(bits.size()-1);
         }
         updateBounds();
     }
@@ -193,13 +231,11 @@ public class GeoFeature {
      * @param absolutePositions The list of positions to be removed.
      */
     public void removeBits(ArrayList<BlockPos> absolutePositions) {
-        ArrayList<GeoFeatureBit> toBeRemoved = new ArrayList<>();
-        for (GeoFeatureBit bit : bits) {
-            if (absolutePositions.contains(bit.blockPos)) {
-                toBeRemoved.add(bit);
-            }
+        LongOpenHashSet toBeRemoved = new LongOpenHashSet(absolutePositions.size());
+        for (BlockPos pos : absolutePositions) {
+            toBeRemoved.add(pos.asLong());
         }
-        bits.removeAll(toBeRemoved);
+        bits.removeIf(toBeRemoved::contains);
         updateBounds();
         updateBoundingBoxChunks();
     }
@@ -211,25 +247,28 @@ public class GeoFeature {
         if (bits.isEmpty()) {
             return;
         }
-        GeoFeatureBit firstBit = bits.get(0);
-        xMin = xMax = firstBit.blockPos.getX();
-        yMin = yMax = firstBit.blockPos.getY();
-        zMin = zMax = firstBit.blockPos.getZ();
-        for (GeoFeatureBit bit : bits) {
-            if (bit.blockPos.getX() < xMin) {
-                xMin = bit.blockPos.getX();
-            } else if (bit.blockPos.getX() > xMax) {
-                xMax = bit.blockPos.getX();
+        xMin = xMax = bits.getX(0);
+        yMin = yMax = bits.getY(0);
+        zMin = zMax = bits.getZ(0);
+        int x, y, z;
+        for (int i=1; i<bits.size(); i++) {
+            x = bits.getX(i);
+            y = bits.getY(i);
+            z = bits.getZ(i);
+            if (x < xMin) {
+                xMin = x;
+            } else if (x > xMax) {
+                xMax = x;
             }
-            if (bit.blockPos.getY() < yMin) {
-                yMin = bit.blockPos.getY();
-            } else if (bit.blockPos.getY() > yMax) {
-                yMax = bit.blockPos.getY();
+            if (y < yMin) {
+                yMin = y;
+            } else if (y > yMax) {
+                yMax = y;
             }
-            if (bit.blockPos.getZ() < zMin) {
-                zMin = bit.blockPos.getZ();
-            } else if (bit.blockPos.getZ() > zMax) {
-                zMax = bit.blockPos.getZ();
+            if (z < zMin) {
+                zMin = z;
+            } else if (z > zMax) {
+                zMax = z;
             }
         }
     }
@@ -257,31 +296,7 @@ public class GeoFeature {
                 || testPos.getZ() < zMin || zMax < testPos.getZ()) {
             return false;
         }
-        // Test 16 chunks.
-        boolean posIsInChunks = false;
-        for (BlockPos lowerTip : boundingBoxChunks16) {
-            if (MathUtils.posIsInChunklikeCube(testPos, 16, lowerTip)) {
-                posIsInChunks = true;
-                break;
-            }
-        }
-        if (!posIsInChunks) return false;
-        // Test 4 chunks.
-        posIsInChunks = false;
-        for (BlockPos lowerTip : boundingBoxChunks4) {
-            if (MathUtils.posIsInChunklikeCube(testPos, 4, lowerTip)) {
-                posIsInChunks = true;
-                break;
-            }
-        }
-        if (!posIsInChunks) return false;
-        // Test bits.
-        for (GeoFeatureBit bit : bits) {
-            if (bit.blockPos.equals(testPos)) {
-                return true;
-            }
-        }
-        return false;
+        return bits.contains(testPos.asLong());
     }
 
     /**
@@ -290,19 +305,18 @@ public class GeoFeature {
      */
     public GeoFeature(@NotNull NbtCompound nbt) {
         elementID = nbt.getLong("id");
-        NbtCompound boundingBoxChunks16Nbt = nbt.getCompound("boundingBoxChunks16");
-        for (String key : boundingBoxChunks16Nbt.getKeys()) {
-            boundingBoxChunks16.add(NbtUtils.blockPosFromNbt(boundingBoxChunks16Nbt.getCompound(key)));
-        }
-        NbtCompound boundingBoxChunks4Nbt = nbt.getCompound("boundingBoxChunks4");
-        for (String key : boundingBoxChunks4Nbt.getKeys()) {
-            boundingBoxChunks4.add(NbtUtils.blockPosFromNbt(boundingBoxChunks4Nbt.getCompound(key)));
-        }
+        // The bounding box chunks are rebuilt from the bits instead of being read.
         NbtCompound bitsNbt = nbt.getCompound("bits");
+        NbtCompound bitNbt;
         for (String key : bitsNbt.getKeys()) {
-            bits.add(new GeoFeatureBit(bitsNbt.getCompound(key)));
+            // Same format as GeoFeatureBit.toNbt()
+            bitNbt = bitsNbt.getCompound(key);
+            bits.add(NbtUtils.blockPosFromNbt(bitNbt.getCompound("blockPos")).asLong(),
+                    NbtUtils.blockStateFromNbt(bitNbt.getCompound("blockState")));
         }
+        bits.trim();
 
+        updateBoundingBoxChunks();
         updateBounds();
     }
     /**
@@ -316,23 +330,26 @@ public class GeoFeature {
         nbt.putLong("id", elementID);
         NbtCompound boundingBoxChunks16Nbt = new NbtCompound();
         i=0;
-        for (BlockPos lowerTip : boundingBoxChunks16) {
-            boundingBoxChunks16Nbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(lowerTip));
+        for (long cubeKey : boundingBoxChunks16) {
+            boundingBoxChunks16Nbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(getLowerTip(16, cubeKey)));
             i++;
         }
         nbt.put("boundingBoxChunks16", boundingBoxChunks16Nbt);
         NbtCompound boundingBoxChunks4Nbt = new NbtCompound();
         i=0;
-        for (BlockPos lowerTip : boundingBoxChunks4) {
-            boundingBoxChunks4Nbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(lowerTip));
+        for (long cubeKey : boundingBoxChunks4) {
+            boundingBoxChunks4Nbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(getLowerTip(4, cubeKey)));
             i++;
         }
         nbt.put("boundingBoxChunks4", boundingBoxChunks4Nbt);
         NbtCompound bitsNbt = new NbtCompound();
-        i=0;
-        for (GeoFeatureBit bit : bits) {
-            bitsNbt.put(Integer.toString(i), bit.toNbt());
-            i++;
+        NbtCompound bitNbt;
+        for (i=0; i<bits.size(); i++) {
+            // Same format as GeoFeatureBit.toNbt()
+            bitNbt = new NbtCompound();
+            bitNbt.put("blockState", NbtUtils.blockStateToNbt(bits.getBlockState(i)));
+            bitNbt.put("blockPos", NbtUtils.blockPosToNbt(bits.getBlockPos(i)));
+            bitsNbt.put(Integer.toString(i), bitNbt);
         }
         nbt.put("bits", bitsNbt);
         return nbt;
@@ -8,26 +8,26 @@ import java.util.Random;
 
 public class GeoFeatureBitOption extends GeoFeatureBit {
 
-    private final Random random;
     private final BlockState[] options;
 
     /**
      * Creates a new GeoFeatureBitOption.
      *
+     * @param random The random number generator used to select the initial block state.
      * @param options The block state options of this bit.
      * @param blockPos   The position of this bit.
      */
     public GeoFeatureBitOption(Random random, BlockState[] options, BlockPos blockPos) {
         super(options[0], blockPos);
-        this.random = random;
         this.options = options;
-        randomize();
+        randomize(random);
     }
 
     /**
      * Randomizes the selected block state.
+     * @param random The random number generator to use.
      */
-    public void randomize() {
+    public void randomize(Random random) {
         blockState = options[random.nextInt(options.length)];
     }
 }
@@ -0,0 +1,161 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Compact storage for the bits of a {@link GeoFeature}. Instead of one {@link GeoFeatureBit} object (and its
+ * {@link BlockPos}) per bit, positions are stored as longs packed with {@link BlockPos#asLong} and block states as
+ * their raw ids in {@link Block#STATE_IDS} (-1 for bits without block state), each in a parallel array. Bits are
+ * accessed by index, so that iterating them does not allocate. An index from positions to bits is built on the first
+ * lookup and dropped when the bits change.
+ */
+public class GeoFeatureBits {
+
+    private static final int NO_STATE = -1;
+
+    private long[] positions = new long[0];
+    private int[] stateIds = new int[0];
+    private int size = 0;
+    private @Nullable Long2IntOpenHashMap indexByPos = null; // Built lazily; maps a position to its first bit.
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the position of a bit.
+     * @param index The index of the bit.
+     * @return The position packed with {@link BlockPos#asLong}.
+     */
+    public long getPos(int index) {
+        return positions[index];
+    }
+
+    public int getX(int index) {
+        return BlockPos.unpackLongX(positions[index]);
+    }
+
+    public int getY(int index) {
+        return BlockPos.unpackLongY(positions[index]);
+    }
+
+    public int getZ(int index) {
+        return BlockPos.unpackLongZ(positions[index]);
+    }
+
+    /**
+     * Gets the position of a bit as a new BlockPos. Prefer {@link GeoFeatureBits#getPos} in loops.
+     * @param index The index of the bit.
+     * @return The position of the bit.
+     */
+    public BlockPos getBlockPos(int index) {
+        return BlockPos.fromLong(positions[index]);
+    }
+
+    public boolean hasBlockState(int index) {
+        return stateIds[index] != NO_STATE;
+    }
+
+    public @Nullable BlockState getBlockState(int index) {
+        return stateIds[index] == NO_STATE ? null : Block.STATE_IDS.get(stateIds[index]);
+    }
+
+    /**
+     * Creates a {@link GeoFeatureBit} holding the data of a bit.
+     * @param index The index of the bit.
+     * @return A new bit object.
+     */
+    public GeoFeatureBit get(int index) {
+        return new GeoFeatureBit(getBlockState(index), getBlockPos(index));
+    }
+
+    /**
+     * Adds a bit.
+     * @param pos The position packed with {@link BlockPos#asLong}.
+     * @param state The block state of the bit.
+     */
+    public void add(long pos, @Nullable BlockState state) {
+        if (size == positions.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            positions = Arrays.copyOf(positions, capacity);
+            stateIds = Arrays.copyOf(stateIds, capacity);
+        }
+        positions[size] = pos;
+        stateIds[size] = state == null ? NO_STATE : Block.STATE_IDS.getRawId(state);
+        if (indexByPos != null) {
+            indexByPos.putIfAbsent(pos, size);
+        }
+        size++;
+    }
+
+    public void add(GeoFeatureBit bit) {
+        add(bit.blockPos.asLong(), bit.blockState);
+    }
+
+    /**
+     * Finds the first bit at a position.
+     * @param pos The position packed with {@link BlockPos#asLong}.
+     * @return The index of the bit or -1 if there is no bit at the position.
+     */
+    public int indexOf(long pos) {
+        if (indexByPos == null) {
+            indexByPos = new Long2IntOpenHashMap(size);
+            indexByPos.defaultReturnValue(-1);
+            for (int i=0; i<size; i++) {
+                indexByPos.putIfAbsent(positions[i], i);
+            }
+        }
+        return indexByPos.get(pos);
+    }
+
+    public boolean contains(long pos) {
+        return indexOf(pos) != -1;
+    }
+
+    /**
+     * Removes all bits whose position matches a predicate. Keeps the order of the remaining bits.
+     * @param filter Tests packed positions.
+     * @return The number of removed bits.
+     */
+    public int removeIf(LongPredicate filter) {
+        int newSize = 0;
+        for (int i=0; i<size; i++) {
+            if (!filter.test(positions[i])) {
+                positions[newSize] = positions[i];
+                stateIds[newSize] = stateIds[i];
+                newSize++;
+            }
+        }
+        int removed = size - newSize;
+        size = newSize;
+        if (removed > 0) {
+            indexByPos = null;
+        }
+        return removed;
+    }
+
+    public void clear() {
+        size = 0;
+        indexByPos = null;
+    }
+
+    /**
+     * Releases unused capacity and the position index, for example after a feature has been added to a village.
+     */
+    public void trim() {
+        positions = Arrays.copyOf(positions, size);
+        stateIds = Arrays.copyOf(stateIds, size);
+        indexByPos = null;
+    }
+}
@@ -5,6 +5,8 @@ import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.villag
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road.RoadJunction;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.structure.Structure;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.structure.StructureAccessPoint;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.block.Blocks;
 import net.minecraft.util.math.BlockPos;
 
@@ -23,34 +25,33 @@ public class GeoFeatureCollision {
         if (!feature1.boundsCollideWith(feature2)) {
             return false;
         }
-        // Check the bounding box chunks 16 for collision.
-        boolean chunksOverlap = false;
-        for (BlockPos feature1LowerTip : feature1.getBoundingBoxChunks16()) {
-            for (BlockPos feature2LowerTip : feature2.getBoundingBoxChunks16()) {
-                if (feature1LowerTip.equals(feature2LowerTip)) {
-                    chunksOverlap = true;
-                    break;
-                }
-            }
+        // Check the bounding box chunks for collision.
+        if (!setsIntersect(feature1.getBoundingBoxChunks16(), feature2.getBoundingBoxChunks16())
+                || !setsIntersect(feature1.getBoundingBoxChunks4(), feature2.getBoundingBoxChunks4())) {
+            return false;
         }
-        if (!chunksOverlap) return false;
-        // Check the bounding box chunks 4 for collision.
-        chunksOverlap = false;
-        for (BlockPos feature1LowerTip : feature1.getBoundingBoxChunks4()) {
-            for (BlockPos feature2LowerTip : feature2.getBoundingBoxChunks4()) {
-                if (feature1LowerTip.equals(feature2LowerTip)) {
-                    chunksOverlap = true;
-                    break;
-                }
+        // Check the bits for collision. Iterate the bits of the smaller feature and look them up in the larger one.
+        GeoFeature smaller = feature1.getBits().size() <= feature2.getBits().size() ? feature1 : feature2;
+        GeoFeature larger = smaller == feature1 ? feature2 : feature1;
+        GeoFeatureBits smallerBits = smaller.getBits();
+        for (int i=0; i<smallerBits.size(); i++) {
+            if (larger.indexOfBitAt(smallerBits.getPos(i)) != -1) {
+                return true;
             }
         }
-        if (!chunksOverlap) return false;
-        // Check the bits for collision.
-        for (GeoFeatureBit feature1Bit : feature1.getBits()) {
-            for (GeoFeatureBit feature2Bit : feature2.getBits()) {
-                if (feature1Bit.blockPos.equals(feature2Bit.blockPos)) {
-                    return true;
-                }
+        return false;
+    }
+
+    /**
+     * Determines if two sets share an element by looking up the elements of the smaller set in the larger one.
+     */
+    private static boolean setsIntersect(LongOpenHashSet set1, LongOpenHashSet set2) {
+        LongOpenHashSet smaller = set1.size() <= set2.size() ? set1 : set2;
+        LongOpenHashSet larger = smaller == set1 ? set2 : set1;
+        LongIterator iterator = smaller.iterator();
+        while (iterator.hasNext()) {
+            if (larger.contains(iterator.nextLong())) {
+                return true;
             }
         }
         return false;
@@ -78,15 +79,16 @@ public class GeoFeatureCollision {
         }
         // Check the bits for collision.
         ArrayList<BlockPos> toBeRemoved = new ArrayList<>();
-        for (GeoFeatureBit newBit : newEdge.getBits()) {
-            for (GeoFeatureBit oldBit : oldEdge.getBits()) {
-                // If the bits collide and their position is not close to one of the shared junctions, return true.
-                if (newBit.blockPos.equals(oldBit.blockPos)) {
-                    if (posIsInSameHeightRadii(newBit.blockPos, sharedJunctions)) {
-                        toBeRemoved.add(newBit.blockPos);
-                    } else {
-                        return true;
-                    }
+        GeoFeature smaller = newEdge.getBits().size() <= oldEdge.getBits().size() ? newEdge : oldEdge;
+        GeoFeature larger = smaller == newEdge ? oldEdge : newEdge;
+        GeoFeatureBits smallerBits = smaller.getBits();
+        for (int i=0; i<smallerBits.size(); i++) {
+            // If the bits collide and their position is not close to one of the shared junctions, return true.
+            if (larger.indexOfBitAt(smallerBits.getPos(i)) != -1) {
+                if (posIsInSameHeightRadii(smallerBits.getX(i), smallerBits.getZ(i), sharedJunctions)) {
+                    toBeRemoved.add(smallerBits.getBlockPos(i));
+                } else {
+                    return true;
                 }
             }
         }
@@ -94,16 +96,16 @@ public class GeoFeatureCollision {
         newEdge.removeBits(toBeRemoved);
         return false;
     }
-    private static boolean posIsInSameHeightRadii(BlockPos pos, ArrayList<RoadJunction> junctions) {
+    private static boolean posIsInSameHeightRadii(int x, int z, ArrayList<RoadJunction> junctions) {
         for (RoadJunction junction : junctions) {
-            if (posIsInSameHeightRadius(pos, junction)) {
+            if (posIsInSameHeightRadius(x, z, junction)) {
                 return true;
             }
         }
         return false;
     }
-    private static boolean posIsInSameHeightRadius(BlockPos pos, RoadJunction junction) {
-        return Math.pow(pos.getX()-junction.pos.getX(), 2) + Math.pow(pos.getZ()-junction.pos.getZ(), 2) <= junction.sameHeightRadius*junction.sameHeightRadius;
+    private static boolean posIsInSameHeightRadius(int x, int z, RoadJunction junction) {
+        return Math.pow(x-junction.pos.getX(), 2) + Math.pow(z-junction.pos.getZ(), 2) <= junction.sameHeightRadius*junction.sameHeightRadius;
     }
 
     /**
@@ -122,35 +124,43 @@ public class GeoFeatureCollision {
         // Check the bits for collision.
         int harmfulOverlappingBits = 0;
         ArrayList<BlockPos> toBeRemoved = new ArrayList<>();
-        double connectionPointRadiusSquared;
-        for (GeoFeatureBit accessPathBit : accessPath.getBits()) {
-            for (GeoFeatureBit edgeBit : edge.getBits()) {
-                if (accessPathBit.blockPos.equals(edgeBit.blockPos)
-                        && accessPathBit.blockState!=null && edgeBit.blockState!=null) {
-                    // If the position is not close to the road dot, a collision is detected.
-                    connectionPointRadiusSquared = Math.pow(2.0 + edge.radius + accessPath.radius, 2);
-                    if (dot.pos.getSquaredDistance(edgeBit.blockPos) > connectionPointRadiusSquared) {
-                        return true;
-                    }
-                    // Two bits close to the road to overlap. Remove the bit from the access path unless it should
-                    // override arch/sidewalk positions of the edge.
-                    if (!edge.archPositions.contains(edgeBit.blockPos)
-                            && (!edge.sidewalkPositions.contains(edgeBit.blockPos)
-                                || accessPath.archPositions.contains(edgeBit.blockPos))
-                    ) {
-                        toBeRemoved.add(edgeBit.blockPos);
-                        // If the overlapping bits are air and non-air, count it as a harmful collision. If the number
-                        // of those collisions is too high, return true. Sidewalk and arch bits get ignored for these
-                        // collision detections.
-                        if ((accessPathBit.blockState.isOf(Blocks.AIR) != edgeBit.blockState.isOf(Blocks.AIR))
-                                && !accessPath.sidewalkPositions.contains(accessPathBit.blockPos)
-                                && !accessPath.archPositions.contains(accessPathBit.blockPos)
-                                && !edge.sidewalkPositions.contains(edgeBit.blockPos)
-                                && !edge.archPositions.contains(edgeBit.blockPos)) {
-                            harmfulOverlappingBits++;
-                            if (harmfulOverlappingBits > 2) {
-                                return true;
-                            }
+        double connectionPointRadiusSquared = Math.pow(2.0 + edge.radius + accessPath.radius, 2);
+        GeoFeatureBits accessPathBits = accessPath.getBits();
+        GeoFeatureBits edgeBits = edge.getBits();
+        boolean iterateAccessPath = accessPathBits.size() <= edgeBits.size();
+        GeoFeatureBits iteratedBits = iterateAccessPath ? accessPathBits : edgeBits;
+        int accessPathIndex;
+        int edgeIndex;
+        long pos;
+        boolean accessPathBitIsAir;
+        for (int i=0; i<iteratedBits.size(); i++) {
+            pos = iteratedBits.getPos(i);
+            accessPathIndex = iterateAccessPath ? i : accessPath.indexOfBitAt(pos);
+            edgeIndex = iterateAccessPath ? edge.indexOfBitAt(pos) : i;
+            if (accessPathIndex != -1 && edgeIndex != -1 && accessPathBits.hasBlockState(accessPathIndex) && edgeBits.hasBlockState(edgeIndex)) {
+                // If the position is not close to the road dot, a collision is detected.
+                if (dot.pos.getSquaredDistance(BlockPos.unpackLongX(pos), BlockPos.unpackLongY(pos), BlockPos.unpackLongZ(pos)) > connectionPointRadiusSquared) {
+                    return true;
+                }
+                // Two bits close to the road to overlap. Remove the bit from the access path unless it should
+                // override arch/sidewalk positions of the edge.
+                if (!edge.archPositions.contains(pos)
+                        && (!edge.sidewalkPositions.contains(pos)
+                            || accessPath.archPositions.contains(pos))
+                ) {
+                    toBeRemoved.add(BlockPos.fromLong(pos));
+                    // If the overlapping bits are air and non-air, count it as a harmful collision. If the number
+                    // of those collisions is too high, return true. Sidewalk and arch bits get ignored for these
+                    // collision detections.
+                    accessPathBitIsAir = accessPathBits.getBlockState(accessPathIndex).isOf(Blocks.AIR);
+                    if ((accessPathBitIsAir != edgeBits.getBlockState(edgeIndex).isOf(Blocks.AIR))
+                            && !accessPath.sidewalkPositions.contains(pos)
+                            && !accessPath.archPositions.contains(pos)
+                            && !edge.sidewalkPositions.contains(pos)
+                            && !edge.archPositions.contains(pos)) {
+                        harmfulOverlappingBits++;
+                        if (harmfulOverlappingBits > 2) {
+                            return true;
                         }
                     }
                 }
@@ -176,29 +186,42 @@ public class GeoFeatureCollision {
         }
         // Check the bits for collision.
         ArrayList<BlockPos> toBeRemoved = new ArrayList<>();
-        for (GeoFeatureBit structureBit : structure.getBits()) {
-            for (GeoFeatureBit accessPathBit : accessPath.getBits()) {
-                if (structureBit.blockPos.equals(accessPathBit.blockPos)
-                        && structureBit.blockState!=null && accessPathBit.blockState!=null) {
-                    // If the position is not part of the connection volume, a collision is detected.
-                    if (
-                            structureBit.blockPos.getX() < Math.min(accessPoint.connectionVolume.get(0).getX(), accessPoint.connectionVolume.get(1).getX())
-                            || structureBit.blockPos.getX() > Math.max(accessPoint.connectionVolume.get(0).getX(), accessPoint.connectionVolume.get(1).getX())
-                            || structureBit.blockPos.getY() < Math.min(accessPoint.connectionVolume.get(0).getY(), accessPoint.connectionVolume.get(1).getY())
-                            || structureBit.blockPos.getY() > Math.max(accessPoint.connectionVolume.get(0).getY(), accessPoint.connectionVolume.get(1).getY())
-                            || structureBit.blockPos.getZ() < Math.min(accessPoint.connectionVolume.get(0).getZ(), accessPoint.connectionVolume.get(1).getZ())
-                            || structureBit.blockPos.getZ() > Math.max(accessPoint.connectionVolume.get(0).getZ(), accessPoint.connectionVolume.get(1).getZ())
-                    ) {
-                        return true;
-                    }
-                    // Position is part of the connection volume. Remove the bit from the access path unless it should
-                    // override arch/sidewalk positions of the access point.
-                    if (!accessPoint.archPositions.contains(structureBit.blockPos)
-                            && (!accessPoint.sidewalkPositions.contains(structureBit.blockPos)
-                                || accessPath.archPositions.contains(structureBit.blockPos))
-                    ) {
-                        toBeRemoved.add(structureBit.blockPos);
-                    }
+        GeoFeatureBits structureBits = structure.getBits();
+        GeoFeatureBits accessPathBits = accessPath.getBits();
+        boolean iterateStructure = structureBits.size() <= accessPathBits.size();
+        GeoFeatureBits iteratedBits = iterateStructure ? structureBits : accessPathBits;
+        BlockPos volumeCorner0 = accessPoint.connectionVolume.get(0);
+        BlockPos volumeCorner1 = accessPoint.connectionVolume.get(1);
+        int structureIndex;
+        int accessPathIndex;
+        long pos;
+        int x, y, z;
+        for (int i=0; i<iteratedBits.size(); i++) {
+            pos = iteratedBits.getPos(i);
+            structureIndex = iterateStructure ? i : structure.indexOfBitAt(pos);
+            accessPathIndex = iterateStructure ? accessPath.indexOfBitAt(pos) : i;
+            if (structureIndex != -1 && accessPathIndex != -1 && structureBits.hasBlockState(structureIndex) && accessPathBits.hasBlockState(accessPathIndex)) {
+                // If the position is not part of the connection volume, a collision is detected.
+                x = BlockPos.unpackLongX(pos);
+                y = BlockPos.unpackLongY(pos);
+                z = BlockPos.unpackLongZ(pos);
+                if (
+                        x < Math.min(volumeCorner0.getX(), volumeCorner1.getX())
+                        || x > Math.max(volumeCorner0.getX(), volumeCorner1.getX())
+                        || y < Math.min(volumeCorner0.getY(), volumeCorner1.getY())
+                        || y > Math.max(volumeCorner0.getY(), volumeCorner1.getY())
+                        || z < Math.min(volumeCorner0.getZ(), volumeCorner1.getZ())
+                        || z > Math.max(volumeCorner0.getZ(), volumeCorner1.getZ())
+                ) {
+                    return true;
+                }
+                // Position is part of the connection volume. Remove the bit from the access path unless it should
+                // override arch/sidewalk positions of the access point.
+                if (!accessPoint.archPositions.contains(pos)
+                        && (!accessPoint.sidewalkPositions.contains(pos)
+                            || accessPath.archPositions.contains(pos))
+                ) {
+                    toBeRemoved.add(BlockPos.fromLong(pos));
                 }
             }
         }
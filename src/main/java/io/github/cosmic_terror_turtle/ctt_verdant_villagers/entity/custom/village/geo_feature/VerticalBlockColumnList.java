@@ -0,0 +1,96 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * An ordered list of {@link VerticalBlockColumn}s in which no two columns overlap (see
+ * {@link VerticalBlockColumn#columnsOverlap}). Adding a column that overlaps an existing one moves the first
+ * overlapping column (in insertion order) to the anchor of the new column instead. Since columns can only overlap if
+ * their anchors share x and z, the columns are chained per (x,z) column, so that adding only tests the columns at the
+ * same x and z instead of the whole list.
+ */
+public class VerticalBlockColumnList implements Iterable<VerticalBlockColumn> {
+
+    private final ArrayList<VerticalBlockColumn> columns = new ArrayList<>();
+    private final IntArrayList nextAtSameXZ = new IntArrayList(); // Index of the next column with the same x and z or -1
+    private final Long2IntOpenHashMap firstIndexByXZ = new Long2IntOpenHashMap();
+    private final Long2IntOpenHashMap lastIndexByXZ = new Long2IntOpenHashMap();
+
+    public VerticalBlockColumnList() {
+        firstIndexByXZ.defaultReturnValue(-1);
+        lastIndexByXZ.defaultReturnValue(-1);
+    }
+
+    /**
+     * Adds a column to the list if it does not overlap any existing columns. If there is overlap, the first
+     * overlapping column will copy the anchor of {@code column} instead.
+     * @param column The column to be added.
+     */
+    public void add(VerticalBlockColumn column) {
+        if (!moveOverlappingColumn(column, column.anchor)) {
+            append(column);
+        }
+    }
+
+    /**
+     * Same as adding {@code template.copyWith(anchor)}, but the copy is only created if it gets added to the list.
+     * @param template The column whose states should be added.
+     * @param anchor The anchor of the added column.
+     */
+    public void add(VerticalBlockColumn template, BlockPos anchor) {
+        if (!moveOverlappingColumn(template, anchor)) {
+            append(template.copyWith(anchor));
+        }
+    }
+
+    public int size() {
+        return columns.size();
+    }
+
+    @Override
+    public Iterator<VerticalBlockColumn> iterator() {
+        return columns.iterator();
+    }
+
+    /**
+     * Moves the first column overlapping the given column to the given anchor.
+     * @return True if an overlapping column was found.
+     */
+    private boolean moveOverlappingColumn(VerticalBlockColumn column, BlockPos anchor) {
+        int yMin = anchor.getY() - column.baseLevelIndex;
+        int yMax = yMin + column.states.length - 1;
+        VerticalBlockColumn oldColumn;
+        int oldYMin;
+        for (int i=firstIndexByXZ.get(getXZKey(anchor)); i!=-1; i=nextAtSameXZ.getInt(i)) {
+            oldColumn = columns.get(i);
+            oldYMin = oldColumn.anchor.getY() - oldColumn.baseLevelIndex;
+            if (oldYMin <= yMax && yMin <= oldYMin + oldColumn.states.length - 1) {
+                oldColumn.anchor = anchor;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(VerticalBlockColumn column) {
+        int index = columns.size();
+        long key = getXZKey(column.anchor);
+        columns.add(column);
+        nextAtSameXZ.add(-1);
+        int last = lastIndexByXZ.put(key, index);
+        if (last == -1) {
+            firstIndexByXZ.put(key, index);
+        } else {
+            nextAtSameXZ.set(last, index);
+        }
+    }
+
+    private static long getXZKey(BlockPos pos) {
+        return (long) pos.getX() & 0xFFFFFFFFL | ((long) pos.getZ() & 0xFFFFFFFFL) << 32;
+    }
+}
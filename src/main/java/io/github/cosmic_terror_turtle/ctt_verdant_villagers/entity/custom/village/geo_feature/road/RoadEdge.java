@@ -2,17 +2,19 @@ package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.villa
 
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBit;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.ServerVillage;
-import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.TerrainTypeUtils;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.TerrainTypeCache;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.VerticalBlockColumn;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.VerticalBlockColumnList;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.MathUtils;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.MathHelper;
-import net.minecraft.world.World;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 public class RoadEdge extends RoadFeature {
@@ -24,6 +26,7 @@ public class RoadEdge extends RoadFeature {
     public static final int SPIRAL_BASE_Y_DIFF = 16;
     public static final int SPIRAL_BASE_RADIUS = 11;
     public static final int MAX_SPIRALS = 3;
+    public static final double MAX_TERRAIN_ADJUSTMENT = 0.2; // The maximum terrain adjustment as a fraction of d
 
     public static final int FIRST = 1;
     public static final int SECOND = 2;
@@ -42,9 +45,20 @@ public class RoadEdge extends RoadFeature {
     private double ySlope; // The slope of this edge's delta-Y versus d.
     private int spiralNum; // The number of upward spirals. If negative, the spirals go down.
     private boolean spiralsLeft; // Whether the spirals are to the left or the right (starting at 'from').
+    private double spiralRadius;
+    private double sin; // Sine of the angle between the x-axis and the line from 'from' to 'to'
+    private double cos; // Cosine of the angle between the x-axis and the line from 'from' to 'to'
+    // The parameters for rasterizing this edge (see rasterize()). The road type is null once this edge is rasterized.
+    private @Nullable RoadType plannedRoadType = null;
+    private boolean plannedAsAccessPath;
+    private boolean plannedWithSpirals;
+    private boolean plannedFluidIsSurfaceForCoasts;
+    private @Nullable TerrainAdjustment plannedTerrainAdjustment = null; // Set by prepareTerrainAdjustment()
 
     /**
-     * Instantiates a road edge using {@link RoadType}.
+     * Instantiates a road edge using {@link RoadType}. Only the planning stage of the edge (length, slope and
+     * spirals) is computed, which is cheap. The bits, mega blocks and road dots are created when
+     * the edge is rasterized (see {@link RoadEdge#rasterize}), so that candidates can be rejected before that.
      * @param elementID The village-wide unique ID.
      * @param village The {@link ServerVillage} this edge belongs to.
      * @param from The {@link RoadJunction} this edge starts from.
@@ -68,12 +82,122 @@ public class RoadEdge extends RoadFeature {
         }
 
         preparePolynomialFunction(village.random, isAccessPath, spiral);
-        setBitsMegaBlocksAndRoadDots(village, roadType, isAccessPath, spiral, fluidIsSurfaceForCoasts);
+        prepareDirection();
+        prepareSlopeAndSpirals(village.random, roadType, spiral);
+        plannedRoadType = roadType;
+        plannedAsAccessPath = isAccessPath;
+        plannedWithSpirals = spiral;
+        plannedFluidIsSurfaceForCoasts = fluidIsSurfaceForCoasts;
+    }
+
+    /**
+     * Creates the bits, mega blocks and road dots of this edge. Does nothing if this edge has already been rasterized.
+     * @param village The {@link ServerVillage} this edge belongs to.
+     */
+    public void rasterize(ServerVillage village) {
+        if (plannedRoadType == null) {
+            return;
+        }
+        setBitsMegaBlocksAndRoadDots(village, plannedRoadType, plannedAsAccessPath, plannedWithSpirals);
+        plannedRoadType = null;
+        plannedTerrainAdjustment = null;
+    }
+
+    /**
+     * Computes the terrain adjustment of this edge ahead of rasterizing it, so that the planned polyline (see
+     * {@link RoadEdge#getPlannedPolyline}) has the heights of the rasterized edge. Rasterizing reuses the adjustment.
+     * Does nothing if this edge does not adjust to the terrain, has already been rasterized or has been prepared.
+     * @param village The {@link ServerVillage} this edge belongs to.
+     */
+    public void prepareTerrainAdjustment(ServerVillage village) {
+        if (adjustToTerrain && plannedRoadType != null && plannedTerrainAdjustment == null) {
+            plannedTerrainAdjustment = new TerrainAdjustment(village, sin, cos, plannedFluidIsSurfaceForCoasts);
+        }
+    }
+
+    private void prepareDirection() {
+        double angleAtFrom;
+        if (to.pos.getZ()>from.pos.getZ()) {
+            angleAtFrom = Math.acos((to.pos.getX()-from.pos.getX())/d);
+        } else {
+            angleAtFrom = -Math.acos((to.pos.getX()-from.pos.getX())/d);
+        }
+        sin = Math.sin(angleAtFrom);
+        cos = Math.cos(angleAtFrom);
+    }
+
+    private void prepareSlopeAndSpirals(Random random, RoadType roadType, boolean spiral) {
+        double aOffsetStart = from.sameHeightRadius;
+        double aOffsetEnd = to.sameHeightRadius;
+        spiralNum = 0;
+        spiralsLeft = true;
+        double spiralYDiff = SPIRAL_BASE_Y_DIFF*roadType.scale;
+        spiralRadius = SPIRAL_BASE_RADIUS*roadType.scale;
+        if (d > aOffsetStart + aOffsetEnd) {
+            int yDiff = to.pos.getY()-from.pos.getY();
+            if (spiral) {
+                spiralNum = (int) (yDiff/spiralYDiff);
+                spiralsLeft = random.nextBoolean();
+            }
+            ySlope = (yDiff-spiralNum*spiralYDiff)/(d-aOffsetStart-aOffsetEnd);
+        } else {
+            ySlope = 1000000;
+        }
+    }
+
+    /**
+     * Gets the maximum height by which the terrain adjustment can move the centerline of this edge away from its
+     * slope.
+     * @return The maximum height difference.
+     */
+    public double getMaxTerrainAdjustment() {
+        return MAX_TERRAIN_ADJUSTMENT*d;
+    }
+
+    /**
+     * Creates the polyline of the planned centerline of this edge. The heights of the points follow the planned slope
+     * of the edge and, if it has been prepared (see {@link RoadEdge#prepareTerrainAdjustment}), its terrain
+     * adjustment. They then differ from the heights of the rasterized edge only by rounding.
+     * @param pointSpace The maximum distance between consecutive points.
+     * @return The polyline or null if this edge has spirals.
+     */
+    public @Nullable RoadPolyline getPlannedPolyline(double pointSpace) {
+        if (spiralNum != 0) {
+            return null;
+        }
+        int steps = Math.max(1, MathHelper.ceil(d/pointSpace));
+        double[] points = new double[3*(steps+1)];
+        double a;
+        double f_of_a;
+        for (int i=0; i<=steps; i++) {
+            a = d*i/steps;
+            f_of_a = getFunctionAt(a);
+            points[3*i] = from.pos.getX() + ROUNDING_OFFSET + a*cos - f_of_a*sin;
+            points[3*i+1] = from.pos.getY() + getPlannedYCoord(a)
+                    + (plannedTerrainAdjustment == null ? 0 : plannedTerrainAdjustment.getYOffset(a));
+            points[3*i+2] = from.pos.getZ() + ROUNDING_OFFSET + a*sin + f_of_a*cos;
+        }
+        return new RoadPolyline(this, points);
+    }
+
+    /**
+     * Calculates the height of the centerline relative to {@code from} without spirals and terrain adjustment.
+     * @param a The position along the edge.
+     * @return The y-offset to {@code from}.
+     */
+    private double getPlannedYCoord(double a) {
+        if (a<from.sameHeightRadius) {
+            return 0;
+        } else if (a<d-to.sameHeightRadius) {
+            return ySlope*(a-from.sameHeightRadius);
+        } else {
+            return to.pos.getY()-from.pos.getY();
+        }
     }
 
     private void preparePolynomialFunction(Random random, boolean isAccessPath, boolean spiral) {
         double fraction; // The fraction of d that abs(function) should return at max.
-        int deg = spiral ? 1 : MathUtils.nextInt(1, 3);
+        int deg = spiral ? 1 : MathUtils.nextInt(random, 1, 3);
         switch (deg) {
             case 1 -> {
                 polynomialDegree = FIRST;
@@ -133,44 +257,21 @@ public class RoadEdge extends RoadFeature {
     }
 
     private void setBitsMegaBlocksAndRoadDots(ServerVillage village, RoadType roadType,
-                                              boolean isAccessPath, boolean spiral, boolean fluidIsSurfaceForCoasts) {
+                                              boolean isAccessPath, boolean spiral) {
         boolean overwriteJunctions = isAccessPath;
 
-        ArrayList<VerticalBlockColumn> normalColumns = new ArrayList<>();
-        ArrayList<VerticalBlockColumn> specialColumns = new ArrayList<>();
-        ArrayList<VerticalBlockColumn> outerNormalColumns = new ArrayList<>();
-        ArrayList<VerticalBlockColumn> outerSpecialColumns = new ArrayList<>();
-        ArrayList<VerticalBlockColumn> columnsToAddTo;
-        double angleAtFrom;
-        if (to.pos.getZ()>from.pos.getZ()) {
-            angleAtFrom = Math.acos((to.pos.getX()-from.pos.getX())/d);
-        } else {
-            angleAtFrom = -Math.acos((to.pos.getX()-from.pos.getX())/d);
-        }
-        double sin = Math.sin(angleAtFrom);
-        double cos = Math.cos(angleAtFrom);
+        VerticalBlockColumnList normalColumns = new VerticalBlockColumnList();
+        VerticalBlockColumnList specialColumns = new VerticalBlockColumnList();
+        VerticalBlockColumnList outerNormalColumns = new VerticalBlockColumnList();
+        VerticalBlockColumnList outerSpecialColumns = new VerticalBlockColumnList();
+        VerticalBlockColumnList columnsToAddTo;
+        // Merged columns by their top and bottom columns
+        Reference2ObjectOpenHashMap<VerticalBlockColumn, Reference2ObjectOpenHashMap<VerticalBlockColumn, VerticalBlockColumn>> mergedColumns = new Reference2ObjectOpenHashMap<>();
         double aOffsetStart = from.sameHeightRadius;
         double aOffsetEnd = to.sameHeightRadius;
-        spiralNum = 0;
-        spiralsLeft = true;
         double spiralYDiff = SPIRAL_BASE_Y_DIFF*roadType.scale;
-        double spiralRadius = SPIRAL_BASE_RADIUS*roadType.scale;
-        if (d > aOffsetStart + aOffsetEnd) {
-            int yDiff = to.pos.getY()-from.pos.getY();
-            if (spiral) {
-                spiralNum = (int) (yDiff/spiralYDiff);
-                spiralsLeft = village.random.nextBoolean();
-            }
-            ySlope = (yDiff-spiralNum*spiralYDiff)/(d-aOffsetStart-aOffsetEnd);
-        } else {
-            ySlope = 1000000;
-        }
-        TerrainAdjustment terrainAdjustment;
-        if (adjustToTerrain) {
-            terrainAdjustment = new TerrainAdjustment(village, sin, cos, fluidIsSurfaceForCoasts);
-        } else {
-            terrainAdjustment = null;
-        }
+        prepareTerrainAdjustment(village);
+        TerrainAdjustment terrainAdjustment = plannedTerrainAdjustment;
         double aCopy;
         double aCoord;
         double faCoord;
@@ -190,7 +291,7 @@ public class RoadEdge extends RoadFeature {
         double spaceAfterLastSpecialColumn = 0.0;
         double spaceAfterLastDot = 0.0;
         double spaceAfterLastTerrainCheck = 0.0;
-        World world = village.getWorld();
+        TerrainTypeCache terrainTypeCache = village.getPlanningTerrainTypeCache();
         String topTerrain;
         String bottomTerrain;
         ArrayList<VerticalBlockColumn> columnsTop;
@@ -257,8 +358,8 @@ public class RoadEdge extends RoadFeature {
             spaceAfterLastTerrainCheck += ROAD_STEP;
             if (spaceAfterLastTerrainCheck > ROAD_TYPE_TERRAIN_SPACE && from.radius < a && a < d-to.radius) {
                 spaceAfterLastTerrainCheck = 0;
-                topTerrain = TerrainTypeUtils.getTerrainType(true, world, centerPos, (int) (radius+2));
-                bottomTerrain = TerrainTypeUtils.getTerrainType(false, world, centerPos, (int) (radius+2));
+                topTerrain = terrainTypeCache.getTerrainType(true, centerPos, (int) (radius+2));
+                bottomTerrain = terrainTypeCache.getTerrainType(false, centerPos, (int) (radius+2));
                 columnsTop = roadType.edgeTemplateBlockColumns.get(RoadType.TERRAIN_TYPE_ABOVE_KEY).get(topTerrain);
                 columnsBottom = roadType.edgeTemplateBlockColumns.get(RoadType.TERRAIN_TYPE_BELOW_KEY).get(bottomTerrain);
                 specialColumnsTop = roadType.edgeSpecialTemplateBlockColumns.get(RoadType.TERRAIN_TYPE_ABOVE_KEY).get(topTerrain);
@@ -273,8 +374,8 @@ public class RoadEdge extends RoadFeature {
             for (double rad=0; rad<=radius; rad+=ROAD_STEP) {
                 // Position math
                 anchorPositions.clear();
-                for (double offset : new Double[]{rad, -rad}) {
-                    tmp = offset/Math.sqrt(1+f_slope*f_slope);
+                for (int side=1; side>=-1; side-=2) {
+                    tmp = side*rad/Math.sqrt(1+f_slope*f_slope);
                     aCoord = aCopy+f_slope*tmp;
                     faCoord = f_of_a-tmp;
                     anchorPositions.add(BlockPos.ofFloored(
@@ -304,9 +405,9 @@ public class RoadEdge extends RoadFeature {
                 }
                 // Avoid placing the default merge column.
                 if (columnTop != null || columnBottom != null) {
-                    merged = VerticalBlockColumn.merge(columnTop, columnBottom);
+                    merged = getMergedColumn(mergedColumns, columnTop, columnBottom);
                     for (BlockPos anchor : anchorPositions) {
-                        addToColumns(columnsToAddTo, merged.copyWith(anchor));
+                        columnsToAddTo.add(merged, anchor);
                     }
                 }
                 // Special columns (only place when outside the junction's same height radii)
@@ -330,9 +431,9 @@ public class RoadEdge extends RoadFeature {
                     }
                     // Avoid placing the default merge column.
                     if (columnTop != null || columnBottom != null) {
-                        merged = VerticalBlockColumn.merge(columnTop, columnBottom);
+                        merged = getMergedColumn(mergedColumns, columnTop, columnBottom);
                         for (BlockPos anchor : anchorPositions) {
-                            addToColumns(columnsToAddTo, merged.copyWith(anchor));
+                            columnsToAddTo.add(merged, anchor);
                         }
                     }
                 }
@@ -347,13 +448,13 @@ public class RoadEdge extends RoadFeature {
         }
         // Merge the lists of columns: First the outer special/normal columns, then the inner special/normal columns.
         for (VerticalBlockColumn column : outerNormalColumns) {
-            addToColumns(outerSpecialColumns, column);
+            outerSpecialColumns.add(column);
         }
         for (VerticalBlockColumn column : specialColumns) {
-            addToColumns(outerSpecialColumns, column);
+            outerSpecialColumns.add(column);
         }
         for (VerticalBlockColumn column : normalColumns) {
-            addToColumns(outerSpecialColumns, column);
+            outerSpecialColumns.add(column);
         }
         // Extract bits from columns.
         boolean columnOverlapsFrom;
@@ -384,11 +485,11 @@ public class RoadEdge extends RoadFeature {
                 //     -or the position is part of the junction's arch
                 if (writeEntireColumn || column.ints[i] != 2 && (
                         columnOverlapsFrom && (
-                                column.ints[i] != 1 && from.sidewalkPositions.contains(absPos)
-                                || from.archPositions.contains(absPos))
+                                column.ints[i] != 1 && from.sidewalkPositions.contains(absPos.asLong())
+                                || from.archPositions.contains(absPos.asLong()))
                         || columnOverlapsTo && (
-                                column.ints[i] != 1 && to.sidewalkPositions.contains(absPos)
-                                || to.archPositions.contains(absPos))
+                                column.ints[i] != 1 && to.sidewalkPositions.contains(absPos.asLong())
+                                || to.archPositions.contains(absPos.asLong()))
                 )) {
                     // Add bit.
                     bit = new GeoFeatureBit(column.states[i], relPos);
@@ -396,8 +497,8 @@ public class RoadEdge extends RoadFeature {
                     // Check ints of the column: 1 for sidewalk, 2 for arch, 3 for pillar.
                     switch (column.ints[i]) {
                         default -> {}
-                        case 1 -> sidewalkPositions.add(absPos);
-                        case 2 -> archPositions.add(absPos);
+                        case 1 -> sidewalkPositions.add(absPos.asLong());
+                        case 2 -> archPositions.add(absPos.asLong());
                         case 3 -> pillarStartBits.add(new GeoFeatureBit(column.states[i], absPos));
                     }
                 }
@@ -407,19 +508,23 @@ public class RoadEdge extends RoadFeature {
     }
 
     /**
-     * Adds a vertical road column to a list if it does not overlap any existing columns. If there is overlap, the
-     * first overlapping column will copy the anchor of {@code newColumn} instead.
-     * @param columns   The list of road columns.
-     * @param newColumn The column to be added.
+     * Same as {@link VerticalBlockColumn#merge}, but columns merged from the same pair of columns are reused instead of
+     * being merged again for every step along the edge.
+     * @param mergedColumns The merged columns by their top and bottom columns.
+     * @param top The column on top.
+     * @param bottom The column below.
+     * @return The merged column. Must not be modified.
      */
-    private static void addToColumns(ArrayList<VerticalBlockColumn> columns, VerticalBlockColumn newColumn) {
-        for (VerticalBlockColumn oldColumn : columns) {
-            if (VerticalBlockColumn.columnsOverlap(oldColumn, newColumn)) {
-                oldColumn.anchor = newColumn.anchor;
-                return;
-            }
+    private static VerticalBlockColumn getMergedColumn(
+            Reference2ObjectOpenHashMap<VerticalBlockColumn, Reference2ObjectOpenHashMap<VerticalBlockColumn, VerticalBlockColumn>> mergedColumns,
+            @Nullable VerticalBlockColumn top, @Nullable VerticalBlockColumn bottom) {
+        if (top == null || bottom == null) {
+            // Merging returns one of the inputs or the default column without creating a new column.
+            return VerticalBlockColumn.merge(top, bottom);
         }
-        columns.add(newColumn);
+        return mergedColumns
+                .computeIfAbsent(top, key -> new Reference2ObjectOpenHashMap<>())
+                .computeIfAbsent(bottom, key -> VerticalBlockColumn.merge(top, bottom));
     }
 
     public double getYSlope() {
@@ -468,6 +573,8 @@ public class RoadEdge extends RoadFeature {
         ySlope = nbt.getDouble("ySlope");
         spiralNum = nbt.getInt("spiralNum");
         spiralsLeft = nbt.getBoolean("spiralsLeft");
+        spiralRadius = nbt.getDouble("spiralRadius");
+        prepareDirection();
     }
     /**
      * Saves this RoadEdge to an NbtCompound.
@@ -500,8 +607,9 @@ public class RoadEdge extends RoadFeature {
         nbt.putDouble("e", e);
         nbt.putBoolean("adjustToTerrain", adjustToTerrain);
         nbt.putDouble("ySlope", ySlope);
-        nbt.putInt("ySlope", spiralNum);
-        nbt.putBoolean("ySlope", spiralsLeft);
+        nbt.putInt("spiralNum", spiralNum);
+        nbt.putBoolean("spiralsLeft", spiralsLeft);
+        nbt.putDouble("spiralRadius", spiralRadius);
         return nbt;
     }
 
@@ -519,22 +627,57 @@ public class RoadEdge extends RoadFeature {
 
         private final double aOffsetStart;
         private final double aOffsetEnd;
-        private ArrayList<Double> yOffsetValues;
+        // The offset values and a buffer of the same size. Smoothing passes read from yOffsetValues, write into the
+        // buffer and then swap both arrays, so that every pass only uses the values of the previous pass.
+        private double[] yOffsetValues;
+        private double[] yOffsetBuffer;
 
         public TerrainAdjustment(ServerVillage village, double sin, double cos, boolean fluidIsSurfaceForCoasts) {
             aOffsetStart = from.sameHeightRadius;
             aOffsetEnd = to.sameHeightRadius;
 
-            yOffsetValues = new ArrayList<>();
-
-            // Get offset values
+            int size = 0;
             for (double a=0; a<d; a+=TERRAIN_ADJUSTING_SPACE) {
+                size++;
+            }
+            yOffsetValues = new double[size];
+            yOffsetBuffer = new double[size];
+
+            // Get offset values. The surface blocks of all adjusting points are determined in one batch.
+            double maxOffset = getMaxTerrainAdjustment();
+            int[] probeIndices = new int[size];
+            BlockPos[] startPositions = new BlockPos[size];
+            int[] minYs = new int[size];
+            int[] maxYs = new int[size];
+            double[] yCoords = new double[size];
+            int probes = 0;
+            double a;
+            for (int i=0; i<size; i++) {
+                a = i*TERRAIN_ADJUSTING_SPACE;
                 if (a<aOffsetStart || d-aOffsetEnd<a) {
-                    yOffsetValues.add(0.0);
+                    yOffsetValues[i] = 0.0;
                 } else {
-                    yOffsetValues.add(getTerrainOffset(village, sin, cos, a, ySlope*(a-aOffsetStart), 0.2*d, fluidIsSurfaceForCoasts));
+                    yCoords[probes] = ySlope*(a-aOffsetStart);
+                    startPositions[probes] = from.pos.add(
+                            (int) (a*cos - getFunctionAt(a)*sin),
+                            (int) yCoords[probes],
+                            (int) (a*sin + getFunctionAt(a)*cos)
+                    );
+                    minYs[probes] = (int) (startPositions[probes].getY()-maxOffset);
+                    maxYs[probes] = (int) (startPositions[probes].getY()+maxOffset);
+                    probeIndices[probes] = i;
+                    probes++;
                 }
             }
+            BlockPos[] surfaceBlocks = village.getSurfaceBlocks(
+                    Arrays.copyOf(startPositions, probes),
+                    Arrays.copyOf(minYs, probes),
+                    Arrays.copyOf(maxYs, probes),
+                    fluidIsSurfaceForCoasts
+            );
+            for (int j=0; j<probes; j++) {
+                yOffsetValues[probeIndices[j]] = getTerrainOffset(village, startPositions[j], surfaceBlocks[j], yCoords[j], maxOffset);
+            }
 
             // Smooth offset values
             for (int i=0; i<MAX_SMOOTHING_ITERATIONS; i++) {
@@ -548,26 +691,15 @@ public class RoadEdge extends RoadFeature {
             smoothOutliers();
         }
 
-        private double getTerrainOffset(ServerVillage village, double sin, double cos, double a,
-                                        double yCoord, double maxOffset, boolean fluidIsSurfaceForCoasts) {
-            BlockPos startPosition = from.pos.add(
-                    (int) (a*cos - getFunctionAt(a)*sin),
-                    (int) yCoord,
-                    (int) (a*sin + getFunctionAt(a)*cos)
-            );
-            BlockPos surfaceBlock = village.getSurfaceBlock(
-                    startPosition,
-                    (int) (startPosition.getY()-maxOffset),
-                    (int) (startPosition.getY()+maxOffset),
-                    fluidIsSurfaceForCoasts
-            );
+        private double getTerrainOffset(ServerVillage village, BlockPos startPosition, @Nullable BlockPos surfaceBlock,
+                                        double yCoord, double maxOffset) {
             double terrainOffset;
             if (surfaceBlock != null) {
                 terrainOffset = surfaceBlock.getY() - yCoord - from.pos.getY();
             } else {
                 // No surface block found. For air, start offset at max in order to get a bridge-like arched slope. For
                 // other terrain types on top, start at zero.
-                if (TerrainTypeUtils.getTerrainType(true, village.getWorld(), startPosition, 6).equals("air")) {
+                if (village.getPlanningTerrainTypeCache().getTerrainType(true, startPosition, 6).equals("air")) {
                     terrainOffset = maxOffset;
                 } else {
                     terrainOffset = 0;
@@ -586,15 +718,14 @@ public class RoadEdge extends RoadFeature {
          * @return True if more smoothing may be needed.
          */
         private boolean smoothOffsets(boolean smoothAll) {
-            ArrayList<Double> newOffsets = new ArrayList<>();
             double a;
             boolean smoothingNeeded = false;
 
-            for (int i=0; i<yOffsetValues.size(); i++) {
+            for (int i=0; i<yOffsetValues.length; i++) {
                 // Only values between the aOffsets can be smoothed.
                 a = i*TERRAIN_ADJUSTING_SPACE;
                 if (a<aOffsetStart || d-aOffsetEnd<a) {
-                    newOffsets.add(yOffsetValues.get(i));
+                    yOffsetBuffer[i] = yOffsetValues[i];
                     continue;
                 }
 
@@ -604,12 +735,12 @@ public class RoadEdge extends RoadFeature {
                         || Math.abs((getYOffsetFromIndex(i+1)-getYOffsetFromIndex(i))/TERRAIN_ADJUSTING_SPACE+ySlope) > ServerVillage.ROAD_EDGE_MAX_Y_SLOPE
                 ) {
                     smoothingNeeded = true;
-                    newOffsets.add( yOffsetValues.get(i) + SMOOTHING_FACTOR * (getYOffsetFromIndex(i+1)+getYOffsetFromIndex(i-1)-2*yOffsetValues.get(i)) );
+                    yOffsetBuffer[i] = yOffsetValues[i] + SMOOTHING_FACTOR * (getYOffsetFromIndex(i+1)+getYOffsetFromIndex(i-1)-2*yOffsetValues[i]);
                 } else {
-                    newOffsets.add(yOffsetValues.get(i));
+                    yOffsetBuffer[i] = yOffsetValues[i];
                 }
             }
-            yOffsetValues = newOffsets;
+            swapBuffers();
 
             return smoothingNeeded;
         }
@@ -619,43 +750,47 @@ public class RoadEdge extends RoadFeature {
          * avoid single-adjusting-point bumps in the road.
          */
         private void smoothOutliers() {
-            ArrayList<Double> newOffsets = new ArrayList<>();
             double a;
             double average;
 
-            for (int i=0; i<yOffsetValues.size(); i++) {
+            for (int i=0; i<yOffsetValues.length; i++) {
                 // Only values between the aOffsets can be smoothed.
                 a = i*TERRAIN_ADJUSTING_SPACE;
                 if (a<aOffsetStart || d-aOffsetEnd<a) {
-                    newOffsets.add(yOffsetValues.get(i));
+                    yOffsetBuffer[i] = yOffsetValues[i];
                     continue;
                 }
 
                 // If there is a bump at this adjusting point, then replace that value with the average of both neighbors.
                 average = (getYOffsetFromIndex(i+1) + getYOffsetFromIndex(i-1)) / 2;
                 if (Math.abs(getYOffsetFromIndex(i) - average) > BUMP_THRESHOLD) {
-                    newOffsets.add(average);
+                    yOffsetBuffer[i] = average;
                 } else {
-                    newOffsets.add(yOffsetValues.get(i));
+                    yOffsetBuffer[i] = yOffsetValues[i];
                 }
             }
+            swapBuffers();
+        }
 
-            yOffsetValues = newOffsets;
+        private void swapBuffers() {
+            double[] tmp = yOffsetValues;
+            yOffsetValues = yOffsetBuffer;
+            yOffsetBuffer = tmp;
         }
 
         private double getYOffsetFromIndex(int index) {
-            if (index < 0 || index >= yOffsetValues.size()) {
+            if (index < 0 || index >= yOffsetValues.length) {
                 return 0;
             }
-            return yOffsetValues.get(index);
+            return yOffsetValues[index];
         }
 
         private double interpolateOffset(int leftIndex, double percentageToRightPoint) {
             if (leftIndex < -1) {
                 leftIndex = -1;
             }
-            if (leftIndex > yOffsetValues.size()-1) {
-                leftIndex = yOffsetValues.size()-1;
+            if (leftIndex > yOffsetValues.length-1) {
+                leftIndex = yOffsetValues.length-1;
             }
             return (1-percentageToRightPoint) * getYOffsetFromIndex(leftIndex) + percentageToRightPoint * getYOffsetFromIndex(leftIndex+1);
         }
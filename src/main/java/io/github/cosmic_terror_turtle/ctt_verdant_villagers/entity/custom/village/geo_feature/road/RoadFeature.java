@@ -3,6 +3,8 @@ package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.villa
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeature;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBit;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.NbtUtils;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.util.math.BlockPos;
 import org.jetbrains.annotations.NotNull;
@@ -11,8 +13,14 @@ import java.util.ArrayList;
 
 public class RoadFeature extends GeoFeature {
 
-    public ArrayList<BlockPos> sidewalkPositions = new ArrayList<>();
-    public ArrayList<BlockPos> archPositions = new ArrayList<>();
+    /**
+     * The positions of sidewalk bits, packed with {@link BlockPos#asLong}.
+     */
+    public final LongOpenHashSet sidewalkPositions = new LongOpenHashSet();
+    /**
+     * The positions of arch bits, packed with {@link BlockPos#asLong}.
+     */
+    public final LongOpenHashSet archPositions = new LongOpenHashSet();
     public ArrayList<GeoFeatureBit> pillarStartBits = new ArrayList<>();
 
     public RoadFeature(long elementID) {
@@ -21,19 +29,26 @@ public class RoadFeature extends GeoFeature {
 
     @Override
     public void removeBits(ArrayList<BlockPos> absolutePositions) {
-        ArrayList<GeoFeatureBit> toBeRemoved = new ArrayList<>();
-        for (GeoFeatureBit bit : bits) {
-            if (absolutePositions.contains(bit.blockPos)) {
-                toBeRemoved.add(bit);
-
-            }
+        LongOpenHashSet positions = new LongOpenHashSet(absolutePositions.size());
+        for (BlockPos pos : absolutePositions) {
+            positions.add(pos.asLong());
         }
-        for (GeoFeatureBit bit : toBeRemoved) {
-            bits.remove(bit);
-            sidewalkPositions.remove(bit.blockPos);
-            archPositions.remove(bit.blockPos);
-            pillarStartBits.removeIf(pillarBit -> pillarBit.blockPos.equals(bit.blockPos));
+        LongOpenHashSet removed = new LongOpenHashSet();
+        bits.removeIf(packedPos -> {
+            if (positions.contains(packedPos)) {
+                removed.add(packedPos);
+                return true;
+            }
+            return false;
+        });
+        LongIterator iterator = removed.iterator();
+        long packedPos;
+        while (iterator.hasNext()) {
+            packedPos = iterator.nextLong();
+            sidewalkPositions.remove(packedPos);
+            archPositions.remove(packedPos);
         }
+        pillarStartBits.removeIf(pillarBit -> removed.contains(pillarBit.blockPos.asLong()));
         updateBounds();
         updateBoundingBoxChunks();
     }
@@ -46,11 +61,11 @@ public class RoadFeature extends GeoFeature {
         super(nbt);
         NbtCompound sidewalkNbt = nbt.getCompound("sidewalk");
         for (String key : sidewalkNbt.getKeys()) {
-            sidewalkPositions.add(NbtUtils.blockPosFromNbt(sidewalkNbt.getCompound(key)));
+            sidewalkPositions.add(NbtUtils.blockPosFromNbt(sidewalkNbt.getCompound(key)).asLong());
         }
         NbtCompound archNbt = nbt.getCompound("arch");
         for (String key : archNbt.getKeys()) {
-            archPositions.add(NbtUtils.blockPosFromNbt(archNbt.getCompound(key)));
+            archPositions.add(NbtUtils.blockPosFromNbt(archNbt.getCompound(key)).asLong());
         }
         NbtCompound pillarNbt = nbt.getCompound("pillar");
         for (String key : pillarNbt.getKeys()) {
@@ -67,15 +82,15 @@ public class RoadFeature extends GeoFeature {
         int i;
         NbtCompound sidewalkNbt = new NbtCompound();
         i=0;
-        for (BlockPos pos : sidewalkPositions) {
-            sidewalkNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(pos));
+        for (long pos : sidewalkPositions) {
+            sidewalkNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(BlockPos.fromLong(pos)));
             i++;
         }
         nbt.put("sidewalk", sidewalkNbt);
         NbtCompound archNbt = new NbtCompound();
         i=0;
-        for (BlockPos pos : archPositions) {
-            archNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(pos));
+        for (long pos : archPositions) {
+            archNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(BlockPos.fromLong(pos)));
             i++;
         }
         nbt.put("arch", archNbt);
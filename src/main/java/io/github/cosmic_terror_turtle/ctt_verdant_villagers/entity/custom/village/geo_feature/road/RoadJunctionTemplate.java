@@ -0,0 +1,171 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeatureBit;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.VerticalBlockColumn;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.util.BlockRotation;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The bits of a {@link RoadJunction} relative to its position, with rotated block states and the indices of the
+ * sidewalk, arch and pillar bits. A template only depends on the road type, the terrain types, the chosen special
+ * columns and the rotation mode, so junctions with the same combination share one template (see
+ * {@link RoadType#getJunctionTemplate}). Templates must not be modified.
+ */
+public class RoadJunctionTemplate {
+
+    private final List<GeoFeatureBit> relativeBits;
+    private final int[] sidewalkIndices;
+    private final int[] archIndices;
+    private final int[] pillarIndices;
+
+    RoadJunctionTemplate(RoadType type, ArrayList<VerticalBlockColumn> templateBlockColumnsTop,
+                         ArrayList<VerticalBlockColumn> templateBlockColumnsBottom,
+                         @Nullable ArrayList<VerticalBlockColumn> specialColumnsTop,
+                         @Nullable ArrayList<VerticalBlockColumn> specialColumnsBottom, boolean rotateAlternative) {
+        double radius = type.junctionRadius;
+        int squaredRadius;
+        VerticalBlockColumn templateColumn;
+        VerticalBlockColumn templateColumnTop;
+        VerticalBlockColumn templateColumnBottom;
+        BlockPos position;
+        GeoFeatureBit bit;
+        BlockRotation rotation;
+        double angle;
+        ArrayList<GeoFeatureBit> bits = new ArrayList<>();
+        IntArrayList sidewalk = new IntArrayList();
+        IntArrayList arch = new IntArrayList();
+        IntArrayList pillar = new IntArrayList();
+        for (int x = (int) -radius; x<=radius; x++) {
+            for (int z = (int) -radius; z<=radius; z++) {
+                squaredRadius = x*x+z*z;
+                if (squaredRadius > radius*radius) {
+                    continue;
+                }
+                // Get normal columns.
+                templateColumnTop = null;
+                templateColumnBottom = null;
+                for (int i = 0; i<type.junctionBlockColumnRadii.size(); i++) {
+                    if (squaredRadius <= type.junctionBlockColumnRadii.get(i)*type.junctionBlockColumnRadii.get(i)) {
+                        // Both top and bottom need to have the same length as the radii list or less.
+                        if (i < templateBlockColumnsTop.size()) {
+                            templateColumnTop = templateBlockColumnsTop.get(i);
+                        }
+                        if (i < templateBlockColumnsBottom.size()) {
+                            templateColumnBottom = templateBlockColumnsBottom.get(i);
+                        }
+                        break;
+                    }
+                }
+                // If possible, use special instead of normal columns.
+                for (int i = 0; i<type.junctionSpecialBlockColumnRadii.size(); i++) {
+                    if (squaredRadius <= type.junctionSpecialBlockColumnRadii.get(i)*type.junctionSpecialBlockColumnRadii.get(i)) {
+                        // Check if the special columns top/bottom have an entry here (the radii list should be as long
+                        // as the longest columns list).
+                        if (specialColumnsTop != null && i < specialColumnsTop.size()) {
+                            templateColumnTop = specialColumnsTop.get(i);
+                        }
+                        if (specialColumnsBottom != null && i < specialColumnsBottom.size()) {
+                            templateColumnBottom = specialColumnsBottom.get(i);
+                        }
+                        break;
+                    }
+                }
+                // Avoid placing the default column.
+                if (templateColumnTop == null && templateColumnBottom == null) {
+                    continue;
+                }
+                // Merge both columns.
+                templateColumn = VerticalBlockColumn.merge(templateColumnTop, templateColumnBottom);
+                // Determine rotation.
+                if (Math.abs(x) == Math.abs(z)) {
+                    if (z <= 0) {
+                        // Northern half
+                        if (x >= 0) {
+                            rotation = BlockRotation.NONE;
+                        } else {
+                            rotation = BlockRotation.COUNTERCLOCKWISE_90;
+                        }
+                    } else {
+                        // Southern half
+                        if (x >= 0) {
+                            rotation = BlockRotation.CLOCKWISE_90;
+                        } else {
+                            rotation = BlockRotation.CLOCKWISE_180;
+                        }
+                    }
+                    if (rotateAlternative) {
+                        rotation = rotation.rotate(BlockRotation.CLOCKWISE_90);
+                    }
+                } else {
+                    angle = Math.asin(x/Math.sqrt(squaredRadius))/Math.PI;
+                    if (z<0) {
+                        // Northern half
+                        if (angle <= -0.25) {
+                            rotation = BlockRotation.COUNTERCLOCKWISE_90;
+                        } else if (-0.25 < angle && angle <= 0.25) {
+                            rotation = BlockRotation.NONE;
+                        } else {
+                            rotation = BlockRotation.CLOCKWISE_90;
+                        }
+                    } else {
+                        // Southern half
+                        if (angle < -0.25) {
+                            rotation = BlockRotation.COUNTERCLOCKWISE_90;
+                        } else if (-0.25 <= angle && angle < 0.25) {
+                            rotation = BlockRotation.CLOCKWISE_180;
+                        } else {
+                            rotation = BlockRotation.CLOCKWISE_90;
+                        }
+                    }
+                }
+                // Create bits.
+                position = new BlockPos(x, 0, z);
+                for (int i=0; i<templateColumn.states.length; i++) {
+                    // Add bit.
+                    bit = new GeoFeatureBit(templateColumn.states[i], position.up(i-templateColumn.baseLevelIndex));
+                    if (bit.blockState != null) {
+                        bit.blockState = bit.blockState.rotate(rotation);
+                    }
+                    // Check ints of the column: 1 for sidewalk, 2 for arch, 3 for pillar.
+                    switch (templateColumn.ints[i]) {
+                        default -> {}
+                        case 1 -> sidewalk.add(bits.size());
+                        case 2 -> arch.add(bits.size());
+                        case 3 -> pillar.add(bits.size());
+                    }
+                    bits.add(bit);
+                }
+            }
+        }
+        relativeBits = Collections.unmodifiableList(bits);
+        sidewalkIndices = sidewalk.toIntArray();
+        archIndices = arch.toIntArray();
+        pillarIndices = pillar.toIntArray();
+    }
+
+    /**
+     * Gets the bits relative to the position of the junction.
+     * @return An unmodifiable list of the bits. The bits themselves must not be modified either.
+     */
+    public List<GeoFeatureBit> getRelativeBits() {
+        return relativeBits;
+    }
+
+    public int[] getSidewalkIndices() {
+        return sidewalkIndices;
+    }
+
+    public int[] getArchIndices() {
+        return archIndices;
+    }
+
+    public int[] getPillarIndices() {
+        return pillarIndices;
+    }
+}
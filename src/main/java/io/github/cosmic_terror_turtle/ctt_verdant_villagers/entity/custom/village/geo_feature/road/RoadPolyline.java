@@ -0,0 +1,62 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.road;
+
+/**
+ * A simplified centerline of a {@link RoadEdge}: a polyline whose points lie on the road surface. The x- and
+ * z-coordinates are absolute with a block at (x, z) covering the coordinates from x to x+1 and z to z+1 (see
+ * {@link RoadEdge#getPlannedPolyline}).
+ */
+public class RoadPolyline {
+
+    public final RoadEdge edge;
+    private final double[] points; // The x-, y- and z-coordinate of each point
+    private final int size;
+
+    /**
+     * Creates a new polyline.
+     * @param edge The edge whose centerline is described by the polyline.
+     * @param points The x-, y- and z-coordinate of each point.
+     */
+    public RoadPolyline(RoadEdge edge, double[] points) {
+        this.edge = edge;
+        this.points = points;
+        size = points.length / 3;
+    }
+
+    /**
+     * Creates the polyline of a rasterized edge from its road dots, which lie on the road surface of the edge.
+     * @param edge The rasterized edge.
+     * @return The polyline from {@code edge.from} over all road dots to {@code edge.to}.
+     */
+    public static RoadPolyline ofRoadDots(RoadEdge edge) {
+        double[] points = new double[3*(edge.roadDots.size()+2)];
+        int index = 0;
+        points[index++] = edge.from.pos.getX() + RoadEdge.ROUNDING_OFFSET;
+        points[index++] = edge.from.pos.getY();
+        points[index++] = edge.from.pos.getZ() + RoadEdge.ROUNDING_OFFSET;
+        for (RoadDot dot : edge.roadDots) {
+            points[index++] = dot.pos.getX() + RoadEdge.ROUNDING_OFFSET;
+            points[index++] = dot.pos.getY();
+            points[index++] = dot.pos.getZ() + RoadEdge.ROUNDING_OFFSET;
+        }
+        points[index++] = edge.to.pos.getX() + RoadEdge.ROUNDING_OFFSET;
+        points[index++] = edge.to.pos.getY();
+        points[index] = edge.to.pos.getZ() + RoadEdge.ROUNDING_OFFSET;
+        return new RoadPolyline(edge, points);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getX(int index) {
+        return points[3*index];
+    }
+
+    public double getY(int index) {
+        return points[3*index+1];
+    }
+
+    public double getZ(int index) {
+        return points[3*index+2];
+    }
+}
@@ -5,6 +5,8 @@ import io.github.cosmic_terror_turtle.ctt_verdant_villagers.data.village.RawVert
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.ServerVillage;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.VerticalBlockColumn;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -30,6 +32,8 @@ public class RoadType {
     HashMap<String, HashMap<String, ArrayList<VerticalBlockColumn>>> junctionTemplateBlockColumns;
     ArrayList<Double> junctionSpecialBlockColumnRadii;
     HashMap<String, HashMap<String, HashMap<String, ArrayList<VerticalBlockColumn>>>> junctionSpecialTemplateBlockColumns;
+    // Junction templates by terrain types, special column keys and rotation mode
+    private final HashMap<String, RoadJunctionTemplate> junctionTemplates = new HashMap<>();
 
     public RoadType(ServerVillage village, RawRoadType rawRoadType) {
         // Edge
@@ -116,4 +120,28 @@ public class RoadType {
         junctionSameHeightRadius = 1.6 * junctionRadius;
     }
 
+    /**
+     * Gets the template of the junctions with the given terrain types, special columns and rotation mode. Templates
+     * are created on the first request and reused afterwards.
+     * @param terrainTypeTop The terrain type above the junction.
+     * @param terrainTypeBottom The terrain type below the junction.
+     * @param specialKeyTop The key of the special columns used above or null if there are none.
+     * @param specialKeyBottom The key of the special columns used below or null if there are none.
+     * @param rotateAlternative Whether the diagonal columns are rotated alternatively.
+     * @return The junction template.
+     */
+    public RoadJunctionTemplate getJunctionTemplate(String terrainTypeTop, String terrainTypeBottom,
+                                                    @Nullable String specialKeyTop, @Nullable String specialKeyBottom,
+                                                    boolean rotateAlternative) {
+        String key = terrainTypeTop + "|" + terrainTypeBottom + "|" + specialKeyTop + "|" + specialKeyBottom + "|" + rotateAlternative;
+        return junctionTemplates.computeIfAbsent(key, k -> new RoadJunctionTemplate(
+                this,
+                junctionTemplateBlockColumns.get(TERRAIN_TYPE_ABOVE_KEY).get(terrainTypeTop),
+                junctionTemplateBlockColumns.get(TERRAIN_TYPE_BELOW_KEY).get(terrainTypeBottom),
+                specialKeyTop == null ? null : junctionSpecialTemplateBlockColumns.get(TERRAIN_TYPE_ABOVE_KEY).get(terrainTypeTop).get(specialKeyTop),
+                specialKeyBottom == null ? null : junctionSpecialTemplateBlockColumns.get(TERRAIN_TYPE_BELOW_KEY).get(terrainTypeBottom).get(specialKeyBottom),
+                rotateAlternative
+        ));
+    }
+
 }
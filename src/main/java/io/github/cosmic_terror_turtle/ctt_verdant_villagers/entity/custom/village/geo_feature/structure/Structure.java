@@ -23,11 +23,11 @@ public class Structure extends GeoFeature {
         this.anchor = anchor;
         dataPerStructureType = template.dataPerStructureType;
 
-        setBitsAndPointsOfInterest(template, getRandomRotation(random));
+        setBitsAndPointsOfInterest(random, template, getRandomRotation(random));
     }
 
-    private void setBitsAndPointsOfInterest(StructureTemplate template, int rotation) {
-        setBits(template.getBits(), anchor, rotation);
+    private void setBitsAndPointsOfInterest(Random random, StructureTemplate template, int rotation) {
+        setBits(template.getBits(random), anchor, rotation);
 
         pointsOfInterest = new ArrayList<>();
         PointOfInterest newPoint;
@@ -2,6 +2,7 @@ package io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.villa
 
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.geo_feature.GeoFeature;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.util.NbtUtils;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.util.math.BlockPos;
 import org.jetbrains.annotations.NotNull;
@@ -15,8 +16,14 @@ public class StructureAccessPoint extends PointOfInterest {
      * A list of two block positions that determine the lower and upper coordinate tips of the volume.
      */
     public ArrayList<BlockPos> connectionVolume = new ArrayList<>();
-    public ArrayList<BlockPos> sidewalkPositions = new ArrayList<>();
-    public ArrayList<BlockPos> archPositions = new ArrayList<>();
+    /**
+     * The sidewalk positions, packed with {@link BlockPos#asLong}.
+     */
+    public LongOpenHashSet sidewalkPositions = new LongOpenHashSet();
+    /**
+     * The arch positions, packed with {@link BlockPos#asLong}.
+     */
+    public LongOpenHashSet archPositions = new LongOpenHashSet();
 
     /**
      * Creates a new structure access point.
@@ -28,33 +35,38 @@ public class StructureAccessPoint extends PointOfInterest {
         super(pos);
         this.accessPathRoadType = accessPathRoadType;
         this.connectionVolume = connectionVolume;
-        this.sidewalkPositions.addAll(sidewalkPositions);
-        this.archPositions.addAll(archPositions);
+        for (BlockPos sidewalkPos : sidewalkPositions) {
+            this.sidewalkPositions.add(sidewalkPos.asLong());
+        }
+        for (BlockPos archPos : archPositions) {
+            this.archPositions.add(archPos.asLong());
+        }
     }
 
     @Override
     public PointOfInterest copy() {
         ArrayList<BlockPos> connectionVolume = new ArrayList<>(this.connectionVolume);
-        ArrayList<BlockPos> sidewalkPositions = new ArrayList<>(this.sidewalkPositions);
-        ArrayList<BlockPos> archPositions = new ArrayList<>(this.archPositions);
-        return new StructureAccessPoint(new BlockPos(pos), accessPathRoadType, connectionVolume,
-                sidewalkPositions, archPositions);
+        StructureAccessPoint copy = new StructureAccessPoint(new BlockPos(pos), accessPathRoadType, connectionVolume,
+                new ArrayList<>(), new ArrayList<>());
+        copy.sidewalkPositions.addAll(sidewalkPositions);
+        copy.archPositions.addAll(archPositions);
+        return copy;
     }
 
     @Override
     public void setToAbsolutePositions(BlockPos anchor, int rotation) {
         super.setToAbsolutePositions(anchor, rotation);
         ArrayList<BlockPos> newConnectionVolume = new ArrayList<>();
-        ArrayList<BlockPos> newSidewalkPositions = new ArrayList<>();
-        ArrayList<BlockPos> newArchPositions = new ArrayList<>();
+        LongOpenHashSet newSidewalkPositions = new LongOpenHashSet(sidewalkPositions.size());
+        LongOpenHashSet newArchPositions = new LongOpenHashSet(archPositions.size());
         for (BlockPos relPos : this.connectionVolume) {
             newConnectionVolume.add(GeoFeature.rotate(anchor, relPos, rotation));
         }
-        for (BlockPos relPos : this.sidewalkPositions) {
-            newSidewalkPositions.add(GeoFeature.rotate(anchor, relPos, rotation));
+        for (long relPos : this.sidewalkPositions) {
+            newSidewalkPositions.add(GeoFeature.rotate(anchor, BlockPos.fromLong(relPos), rotation).asLong());
         }
-        for (BlockPos relPos : this.archPositions) {
-            newArchPositions.add(GeoFeature.rotate(anchor, relPos, rotation));
+        for (long relPos : this.archPositions) {
+            newArchPositions.add(GeoFeature.rotate(anchor, BlockPos.fromLong(relPos), rotation).asLong());
         }
         this.connectionVolume = newConnectionVolume;
         this.sidewalkPositions = newSidewalkPositions;
@@ -74,11 +86,11 @@ public class StructureAccessPoint extends PointOfInterest {
         }
         NbtCompound sidewalkNbt = nbt.getCompound("sidewalk");
         for (String key : sidewalkNbt.getKeys()) {
-            sidewalkPositions.add(NbtUtils.blockPosFromNbt(sidewalkNbt.getCompound(key)));
+            sidewalkPositions.add(NbtUtils.blockPosFromNbt(sidewalkNbt.getCompound(key)).asLong());
         }
         NbtCompound archNbt = nbt.getCompound("arch");
         for (String key : archNbt.getKeys()) {
-            archPositions.add(NbtUtils.blockPosFromNbt(archNbt.getCompound(key)));
+            archPositions.add(NbtUtils.blockPosFromNbt(archNbt.getCompound(key)).asLong());
         }
     }
     /**
@@ -100,15 +112,15 @@ public class StructureAccessPoint extends PointOfInterest {
         nbt.put("connectionVolume", connectionVolumeNbt);
         NbtCompound sidewalkNbt = new NbtCompound();
         i=0;
-        for (BlockPos pos : sidewalkPositions) {
-            sidewalkNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(pos));
+        for (long pos : sidewalkPositions) {
+            sidewalkNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(BlockPos.fromLong(pos)));
             i++;
         }
         nbt.put("sidewalk", sidewalkNbt);
         NbtCompound archNbt = new NbtCompound();
         i=0;
-        for (BlockPos pos : archPositions) {
-            archNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(pos));
+        for (long pos : archPositions) {
+            archNbt.put(Integer.toString(i), NbtUtils.blockPosToNbt(BlockPos.fromLong(pos)));
             i++;
         }
         nbt.put("arch", archNbt);
@@ -8,6 +8,7 @@ import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.villag
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Random;
 
 public class StructureTemplate {
 
@@ -26,10 +27,15 @@ public class StructureTemplate {
         pointsOfInterest.addAll(rawTemplate.pointsOfInterest.stream().map(poi -> poi.toPointOfInterest(village)).toList());
     }
 
-    public ArrayList<GeoFeatureBit> getBits() {
+    /**
+     * Selects new block states for the option bits of this template.
+     * @param random The random number generator to use.
+     * @return The bits of this template.
+     */
+    public ArrayList<GeoFeatureBit> getBits(Random random) {
         for (GeoFeatureBit bit : bits) {
             if (bit instanceof GeoFeatureBitOption option) {
-                option.randomize();
+                option.randomize(random);
             }
         }
         return bits;
@@ -0,0 +1,27 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.mixin;
+
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.village.VillageBlockTracker;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+@Mixin(WorldChunk.class)
+public class WorldChunkMixin {
+	@Inject(at = @At("RETURN"), method = "setBlockState(Lnet/minecraft/util/math/BlockPos;Lnet/minecraft/block/BlockState;Z)Lnet/minecraft/block/BlockState;")
+	private void setBlockState(BlockPos pos, BlockState state, boolean moved, CallbackInfoReturnable<BlockState> info) {
+		// A null return value means that nothing has changed.
+		BlockState oldState = info.getReturnValue();
+		if (oldState == null) {
+			return;
+		}
+		World world = ((WorldChunk) (Object) this).getWorld();
+		if (!world.isClient() && world.getServer() != null && world.getServer().isOnThread()) {
+			VillageBlockTracker.onBlockChanged(world, pos, oldState, state);
+		}
+	}
+}
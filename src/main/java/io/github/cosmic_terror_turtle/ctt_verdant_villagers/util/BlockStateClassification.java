@@ -0,0 +1,101 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.util;
+
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+
+/**
+ * A table that holds the classes of every block state (see {@link ModTags.Blocks}) as bits, indexed by the raw id of
+ * the block state. Looking up a class this way is cheaper than {@link BlockState#isIn}, and several classes can be
+ * tested with one lookup. The table is rebuilt whenever tags may have changed and replaced as a whole, so it can be
+ * read from any thread.
+ */
+public class BlockStateClassification {
+
+    public static final byte NATURAL_GROUND = 1;
+    public static final byte VILLAGE_TREE = 1 << 1;
+    public static final byte VILLAGE_UNTOUCHED = 1 << 2;
+    /**
+     * Set for block states that contain a fluid (including waterlogged blocks).
+     */
+    public static final byte FLUID = 1 << 3;
+
+    private static volatile byte[] classes = new byte[0];
+
+    /**
+     * Rebuilds the table once the server has started and after every data pack reload.
+     */
+    public static void registerEvents() {
+        ServerLifecycleEvents.SERVER_STARTED.register(server -> rebuild());
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, resourceManager, success) -> rebuild());
+    }
+
+    /**
+     * Computes the classes of all block states and replaces the current table.
+     */
+    public static void rebuild() {
+        byte[] newClasses = new byte[Block.STATE_IDS.size()];
+        for (BlockState state : Block.STATE_IDS) {
+            newClasses[Block.STATE_IDS.getRawId(state)] = computeClasses(state);
+        }
+        classes = newClasses;
+    }
+
+    private static byte computeClasses(BlockState state) {
+        byte stateClasses = 0;
+        if (state.isIn(ModTags.Blocks.NATURAL_GROUND_BLOCKS)) {
+            stateClasses |= NATURAL_GROUND;
+        }
+        if (state.isIn(ModTags.Blocks.VILLAGE_TREE_BLOCKS)) {
+            stateClasses |= VILLAGE_TREE;
+        }
+        if (state.isIn(ModTags.Blocks.VILLAGE_UNTOUCHED_BLOCKS)) {
+            stateClasses |= VILLAGE_UNTOUCHED;
+        }
+        if (!state.getFluidState().isEmpty()) {
+            stateClasses |= FLUID;
+        }
+        return stateClasses;
+    }
+
+    /**
+     * Gets all classes of a block state.
+     * @param state The block state.
+     * @return The class bits of the block state.
+     */
+    public static byte getClasses(BlockState state) {
+        byte[] table = classes;
+        int rawId = Block.STATE_IDS.getRawId(state);
+        if (rawId >= 0 && rawId < table.length) {
+            return table[rawId];
+        }
+        // The table has not been built yet.
+        return computeClasses(state);
+    }
+
+    /**
+     * Tests if a block state belongs to any of the given classes.
+     * @param state The block state.
+     * @param classBits The classes to test, combined with bitwise or.
+     * @return True if the block state belongs to at least one of the classes.
+     */
+    public static boolean isAny(BlockState state, int classBits) {
+        return (getClasses(state) & classBits) != 0;
+    }
+
+    public static boolean isNaturalGround(BlockState state) {
+        return isAny(state, NATURAL_GROUND);
+    }
+
+    public static boolean isVillageTree(BlockState state) {
+        return isAny(state, VILLAGE_TREE);
+    }
+
+    public static boolean isVillageUntouched(BlockState state) {
+        return isAny(state, VILLAGE_UNTOUCHED);
+    }
+
+    public static boolean hasFluid(BlockState state) {
+        return isAny(state, FLUID);
+    }
+}
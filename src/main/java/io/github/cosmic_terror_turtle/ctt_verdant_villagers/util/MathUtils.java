@@ -6,19 +6,14 @@ import java.util.Random;
 
 public class MathUtils {
 
-    private static final Random random = new Random();
-
-    public static Random getRandom() {
-        return random;
-    }
-
     /**
      * Generates a random int from within the given bounds.
+     * @param random The random number generator to use.
      * @param min Minimum value - inclusive.
      * @param max Maximum value - inclusive.
      * @return A random int.
      */
-    public static int nextInt(int min, int max) {
+    public static int nextInt(Random random, int min, int max) {
         return min + random.nextInt(1 + max - min);
     }
 
@@ -49,4 +44,18 @@ public class MathUtils {
                 && cubeLowerTip.getY() <= pos.getY() && pos.getY() < cubeLowerTip.getY() + cubeSideLength
                 && cubeLowerTip.getZ() <= pos.getZ() && pos.getZ() < cubeLowerTip.getZ() + cubeSideLength;
     }
+
+    /**
+     * Approximates the cumulative distribution function of the standard normal distribution (absolute error below
+     * 1.5e-7, Abramowitz and Stegun 7.1.26).
+     * @param z The value to evaluate the function at.
+     * @return The probability that a standard normally distributed variable is smaller than z.
+     */
+    public static double normalCdf(double z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))))
+                * Math.exp(-x * x);
+        return z < 0 ? (1 - erf) / 2 : (1 + erf) / 2;
+    }
 }
@@ -1,6 +1,7 @@
 package io.github.cosmic_terror_turtle.ctt_verdant_villagers.util;
 
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.command.SaveVerdantVillageStructureCommand;
+import io.github.cosmic_terror_turtle.ctt_verdant_villagers.command.VillageWorkersCommand;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.ModEntities;
 import io.github.cosmic_terror_turtle.ctt_verdant_villagers.entity.custom.VillageHeartEntity;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
@@ -19,5 +20,6 @@ public class ModRegistries {
 
     private static void registerCommands() {
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> SaveVerdantVillageStructureCommand.register(dispatcher));
+        CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> VillageWorkersCommand.register(dispatcher));
     }
 }
@@ -0,0 +1,57 @@
+package io.github.cosmic_terror_turtle.ctt_verdant_villagers.util;
+
+import java.util.Random;
+
+/**
+ * A {@link Random} that generates its numbers with SplitMix64. Seeds for independent streams can be derived from a
+ * seed and any number of keys with {@link SplitMixRandom#mix}, so that a stream can be reproduced from the keys alone
+ * (for example the village and the index of a planning step). Unlike {@link Random}, instances are not thread-safe;
+ * threads that need random numbers at the same time use streams of their own.
+ */
+public class SplitMixRandom extends Random {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public SplitMixRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * Derives the seed of a stream from another seed and a key. Different keys give independent streams.
+     * @param seed The seed to derive from.
+     * @param key The key of the stream.
+     * @return The derived seed.
+     */
+    public static long mix(long seed, long key) {
+        return mix64(mix64(seed) + (key+1) * GOLDEN_GAMMA);
+    }
+
+    /**
+     * Restarts the stream with a new seed.
+     * @param seed The seed.
+     */
+    @Override
+    public void setSeed(long seed) {
+        super.setSeed(seed);
+        state = seed;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}